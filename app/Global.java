@@ -0,0 +1,87 @@
+import clustering.ClusterIndex;
+import clustering.LocationWriter;
+import clustering.QueryExecutor;
+import clustering.TileCache;
+import clustering.TilePrefetcher;
+import play.Application;
+import play.Configuration;
+import play.GlobalSettings;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Application wide hooks.
+ */
+public class Global extends GlobalSettings {
+
+    /**
+     * The default estimated size of the cluster cache.
+     */
+    private static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The default time in milliseconds a request waits for its clusters.
+     */
+    private static final long DEFAULT_QUERY_TIMEOUT = 5000;
+
+    /**
+     * The default time in milliseconds between two writes of the moved positions.
+     */
+    private static final long DEFAULT_WRITE_INTERVAL = 500;
+
+    @Override
+    public void onStart(Application app) {
+        Configuration conf = app.configuration();
+        Long cacheSize = conf.getBytes("clustering.cache.size");
+        ClusterIndex.setCache(new TileCache(cacheSize != null ? cacheSize : DEFAULT_CACHE_SIZE));
+
+        if (getBoolean(conf, "clustering.prefetch.enabled", true)) {
+            ClusterIndex.setPrefetcher(new TilePrefetcher(
+                    getInt(conf, "clustering.prefetch.threads", 1),
+                    getInt(conf, "clustering.prefetch.queueSize", 256),
+                    getInt(conf, "clustering.prefetch.tilesPerSecond", 200)));
+        }
+
+        // Leave some of the connections to the jobs, the prefetcher and the other actions
+        int connections = getInt(conf, "db.default.partitionCount", 1) * getInt(conf, "db.default.maxConnectionsPerPartition", 30);
+        Long timeout = conf.getMilliseconds("clustering.query.timeout");
+        ClusterIndex.setExecutor(new QueryExecutor(
+                getInt(conf, "clustering.query.threads", Math.max(connections / 2, 1)),
+                getInt(conf, "clustering.query.queueSize", 64),
+                timeout != null ? timeout : DEFAULT_QUERY_TIMEOUT));
+
+        Long interval = conf.getMilliseconds("clustering.writes.interval");
+        ClusterIndex.setWriter(new LocationWriter(LocationWriter.DATABASE,
+                getInt(conf, "clustering.writes.capacity", 100000),
+                getInt(conf, "clustering.writes.batchSize", 1000),
+                interval != null ? interval : DEFAULT_WRITE_INTERVAL));
+
+        ClusterIndex.setOffHeap(getBoolean(conf, "clustering.index.offHeap", true));
+        int parallelism = getInt(conf, "clustering.index.parallelism", Runtime.getRuntime().availableProcessors());
+        ClusterIndex.setAggregator(parallelism > 1 ? new ForkJoinPool(parallelism) : null);
+        String snapshot = conf.getString("clustering.index.snapshot");
+        ClusterIndex.setSnapshot(snapshot != null && !snapshot.isEmpty() ? app.getFile(snapshot) : null);
+        // Build the in-memory cluster index without delaying the start of the application,
+        // requests are answered from the database until it is ready.
+        ClusterIndex.loadAsync();
+    }
+
+    @Override
+    public void onStop(Application app) {
+        // Write the waiting positions while the database is still there
+        ClusterIndex.setWriter(null);
+        ClusterIndex.setPrefetcher(null);
+        ClusterIndex.setExecutor(null);
+        ClusterIndex.setAggregator(null);
+    }
+
+    private static int getInt(Configuration conf, String key, int defaultValue) {
+        Integer value = conf.getInt(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private static boolean getBoolean(Configuration conf, String key, boolean defaultValue) {
+        Boolean value = conf.getBoolean(key);
+        return value != null ? value : defaultValue;
+    }
+}
@@ -2,11 +2,18 @@ package clustering;
 
 import models.Location;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by evelina on 12/04/2014.
  */
 public class Cluster {
 
+    public long quadKey;
+    /**
+     * The centroid of the locations in the cluster, which is where most of them are inside the tile.
+     */
     public LatLng center;
     public LatLng topLeft;
     public LatLng topRight;
@@ -14,8 +21,14 @@ public class Cluster {
     public LatLng bottomRight;
     public Location location;
     public int count;
+    /**
+     * Changes whenever the count, the centroid or the single location of the cluster changes,
+     * so a client can tell whether the cluster it holds is still current.
+     */
+    public int stamp;
 
     private Cluster(Builder builder) {
+        quadKey = builder.quadKey;
         center = builder.center;
         topLeft = builder.topLeft;
         topRight = builder.topRight;
@@ -23,9 +36,57 @@ public class Cluster {
         bottomRight = builder.bottomRight;
         location = builder.location;
         count = builder.count;
+        stamp = center != null ? stamp(count, center.latitude, center.longitude, location) : count;
+    }
+
+    /**
+     * Computes the {@link #stamp} of a cluster.
+     *
+     * @param count     how many locations are inside the tile
+     * @param latitude  the latitude of the centroid
+     * @param longitude the longitude of the centroid
+     * @param location  the only location of the cluster, or null
+     * @return
+     */
+    public static int stamp(int count, double latitude, double longitude, Location location) {
+        int stamp = count;
+        stamp = 31 * stamp + hash(latitude);
+        stamp = 31 * stamp + hash(longitude);
+        if (location != null && location.id != null) {
+            stamp = 31 * stamp + location.id.hashCode();
+        }
+        return stamp;
+    }
+
+    private static int hash(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    /**
+     * Builds a {@link Cluster} for every visited cluster.
+     */
+    public static final class Collector implements ClusterVisitor {
+        public final List<Cluster> clusters = new ArrayList<Cluster>();
+
+        @Override
+        public void visit(long quadKey, int count, double latitude, double longitude, Location location) {
+            QuadTile tile = QuadTile.getTileFromQuadKey(quadKey);
+            clusters.add(new Builder()
+                    .quadKey(quadKey)
+                    .center(new LatLng(latitude, longitude))
+                    .topLeft(tile.getTopLeft())
+                    .topRight(tile.getTopRight())
+                    .bottomLeft(tile.getBottomLeft())
+                    .bottomRight(tile.getBottomRight())
+                    .location(location)
+                    .count(count)
+                    .build());
+        }
     }
 
     public static final class Builder {
+        private long quadKey;
         private LatLng center;
         private LatLng topLeft;
         private LatLng topRight;
@@ -37,6 +98,11 @@ public class Cluster {
         public Builder() {
         }
 
+        public Builder quadKey(long quadKey) {
+            this.quadKey = quadKey;
+            return this;
+        }
+
         public Builder center(LatLng center) {
             this.center = center;
             return this;
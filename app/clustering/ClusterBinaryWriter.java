@@ -0,0 +1,69 @@
+package clustering;
+
+import models.Location;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes the visited clusters straight to a stream in a compact little-endian binary layout,
+ * an alternative to {@link ClusterJsonWriter} for clients which care about the payload size.
+ * <p>
+ * <br/>
+ * Every cluster is a record of 20 bytes, followed by 8 more for single location clusters:
+ * <p>long tileKey, the {@link QuadKey} of the cluster tile</p>
+ * <p>int count, how many locations are inside the tile</p>
+ * <p>float latitude, float longitude, the centroid of the locations</p>
+ * <p>long id, the id of the location, only when count is 1</p>
+ * <p>
+ * <br/>
+ * The tile corners are not sent, the client computes them from the tile key.
+ */
+public class ClusterBinaryWriter implements ClusterVisitor {
+
+    /**
+     * The content type of the binary clusters.
+     */
+    public static final String MIME_TYPE = "application/x-clusters";
+
+    private static final int RECORD_SIZE = 8 + 4 + 4 + 4;
+
+    private final OutputStream out;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE + 8).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * @param out the stream closed by {@link #close()}
+     */
+    public ClusterBinaryWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void visit(long quadKey, int count, double latitude, double longitude, Location location) {
+        record.clear();
+        record.putLong(quadKey);
+        record.putInt(count);
+        record.putFloat((float) latitude);
+        record.putFloat((float) longitude);
+        if (count == 1) {
+            record.putLong(location != null && location.id != null ? location.id : 0);
+        }
+        try {
+            out.write(record.array(), 0, record.position());
+        } catch (IOException e) {
+            // The visitors cannot throw checked exceptions, the caller of the visit unwraps it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Closes the stream.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,55 @@
+package clustering;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The difference between the clusters a client already holds and the clusters of its current viewport.
+ * <p>
+ * <br/>
+ * A client remembers the {@link Cluster#quadKey} and {@link Cluster#stamp} of every cluster it shows and
+ * sends them back with its next viewport. Only the clusters it does not hold yet, the ones whose stamp changed
+ * and the keys of the ones it should drop are sent back, so a small pan costs a few clusters instead of
+ * the whole screen.
+ */
+public class ClusterDiff {
+
+    /**
+     * The clusters the client does not hold, by quad key.
+     */
+    public Map<Long, Cluster> added = new LinkedHashMap<Long, Cluster>();
+    /**
+     * The clusters the client holds with a different stamp, by quad key.
+     */
+    public Map<Long, Cluster> changed = new LinkedHashMap<Long, Cluster>();
+    /**
+     * The quad keys of the clusters the client holds which are not part of the viewport any more.
+     */
+    public List<Long> removed = new ArrayList<Long>();
+
+    /**
+     * Compares the clusters of a viewport with the ones held by a client.
+     *
+     * @param clusters the current clusters of the viewport
+     * @param held     the stamps of the clusters held by the client, by quad key
+     * @return
+     */
+    public static ClusterDiff diff(List<Cluster> clusters, Map<Long, Integer> held) {
+        ClusterDiff diff = new ClusterDiff();
+        Map<Long, Integer> remaining = new HashMap<Long, Integer>(held);
+        for (Cluster cluster : clusters) {
+            Integer stamp = remaining.remove(cluster.quadKey);
+            if (stamp == null) {
+                diff.added.put(cluster.quadKey, cluster);
+            } else if (stamp != cluster.stamp) {
+                diff.changed.put(cluster.quadKey, cluster);
+            }
+        }
+        // Whatever is left is out of the viewport, emptied or at another zoom level
+        diff.removed.addAll(remaining.keySet());
+        return diff;
+    }
+}
@@ -0,0 +1,608 @@
+package clustering;
+
+import models.Location;
+import models.LocationLog;
+import models.TileCount;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the resident {@link PointIndex} used to answer the cluster queries from memory.
+ * <p>
+ * <br/>
+ * The index is built from the location table and swapped in once it is complete, so readers
+ * either see the previous index or the new one but never a partially loaded one. The writes going through
+ * the index change it in place, and once they add up to a sizeable share of the locations the index is
+ * loaded again in the background, see {@link PointIndex#needsCompaction()}.
+ * <p>
+ * <br/>
+ * Every load from the table is saved to a {@link PointSnapshot}. On startup the index maps the snapshot and
+ * replays the changes of the {@link LocationLog} made since, which is much faster than reading every location.
+ * <p>
+ * <br/>
+ * The clusters served to the clients are cached in a {@link TileCache}, invalidated by every write
+ * going through the index and cleared when a new index is swapped in.
+ */
+public class ClusterIndex {
+
+    private static Logger log = LoggerFactory.getLogger(ClusterIndex.class);
+
+    private static volatile PointIndex index;
+
+    private static volatile boolean offHeap = true;
+
+    private static volatile File snapshot;
+
+    private static volatile ForkJoinPool aggregator;
+
+    /**
+     * How many changed locations are read back from the table at a time when replaying the log.
+     */
+    private static final int REPLAY_BATCH_SIZE = 1000;
+
+    private static final AtomicBoolean compacting = new AtomicBoolean();
+
+    private static volatile TileCache cache = new TileCache(0);
+
+    private static volatile TilePrefetcher prefetcher;
+
+    private static volatile QueryExecutor executor;
+
+    private static volatile LocationWriter writer;
+
+    /**
+     * @return the loaded index or null if it has not been loaded yet.
+     */
+    public static PointIndex get() {
+        return index;
+    }
+
+    /**
+     * Chooses where the next loads keep the locations.
+     *
+     * @param directBuffers true to keep them outside of the Java heap
+     */
+    public static void setOffHeap(boolean directBuffers) {
+        offHeap = directBuffers;
+    }
+
+    /**
+     * Chooses the file the index is saved to after every load from the table and restored from on startup.
+     *
+     * @param file the snapshot file, or null to always load from the table
+     */
+    public static void setSnapshot(File file) {
+        snapshot = file;
+    }
+
+    /**
+     * Deletes the snapshot before changes bypassing the {@link LocationLog}, so a restart cannot restore
+     * an index missing them. The next load from the table saves a new one.
+     */
+    public static void deleteSnapshot() {
+        File file = snapshot;
+        if (file != null && file.exists() && !file.delete()) {
+            log.warn("Could not delete the snapshot {}", file);
+        }
+    }
+
+    /**
+     * Chooses the pool splitting the large scans of the indexes loaded from now on, shutting down the previous one.
+     *
+     * @param pool the pool of the aggregation tasks, or null to scan on the calling thread
+     */
+    public static void setAggregator(ForkJoinPool pool) {
+        ForkJoinPool previous = aggregator;
+        aggregator = pool;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * @return the cache of the clusters served from the index.
+     */
+    public static TileCache cache() {
+        return cache;
+    }
+
+    /**
+     * Replaces the cache of the clusters, for example with one of a different size.
+     *
+     * @param tileCache
+     */
+    public static void setCache(TileCache tileCache) {
+        cache = tileCache;
+    }
+
+    /**
+     * @return the prefetcher warming the cache around the served viewports, or null if there is none.
+     */
+    public static TilePrefetcher prefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Replaces the prefetcher, shutting down the previous one.
+     *
+     * @param tilePrefetcher the new prefetcher or null to stop prefetching
+     */
+    public static void setPrefetcher(TilePrefetcher tilePrefetcher) {
+        TilePrefetcher previous = prefetcher;
+        prefetcher = tilePrefetcher;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * @return the executor of the cluster queries of the requests, or null if they run on the calling thread.
+     */
+    public static QueryExecutor executor() {
+        return executor;
+    }
+
+    /**
+     * Replaces the executor of the cluster queries, shutting down the previous one.
+     *
+     * @param queryExecutor the new executor or null to run the queries on the calling thread
+     */
+    public static void setExecutor(QueryExecutor queryExecutor) {
+        QueryExecutor previous = executor;
+        executor = queryExecutor;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * @return the writer of the positions moved through the index, or null if there is none.
+     */
+    public static LocationWriter writer() {
+        return writer;
+    }
+
+    /**
+     * Replaces the writer of the positions, shutting down the previous one once it wrote its waiting positions.
+     *
+     * @param locationWriter the new writer or null to stop accepting positions
+     */
+    public static void setWriter(LocationWriter locationWriter) {
+        LocationWriter previous = writer;
+        writer = locationWriter;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Returns the clusters at the given zoom level of all the cached tiles intersecting the given bounds.
+     * The clusters come from the loaded index or from the {@link TileCount}s until it is loaded.
+     *
+     * @param sw   south west bound {@link LatLng}
+     * @param ne   north east bound {@link LatLng}
+     * @param zoom the zoom level of the clusters
+     * @return
+     * @throws SQLException
+     */
+    public static List<Cluster> getClusters(LatLng sw, LatLng ne, ZoomLevel zoom) throws SQLException {
+        TileCache current = cache;
+        if (!current.isEnabled()) {
+            PointIndex loaded = index;
+            return loaded != null ? loaded.getClusters(sw, ne, zoom) : TileCount.findClusters(sw, ne, zoom);
+        }
+        List<Cluster> clusters = new ArrayList<Cluster>();
+        for (long blockKey : QuadTile.getQuadKeys(sw, ne, TileCache.getBlockZoom(zoom))) {
+            clusters.addAll(current.get(blockKey, zoom, LOADER));
+        }
+        return clusters;
+    }
+
+    /**
+     * Visits the clusters at the given zoom level of all the cached tiles intersecting the given bounds,
+     * without collecting them when they are not cached.
+     *
+     * @param sw      south west bound {@link LatLng}
+     * @param ne      north east bound {@link LatLng}
+     * @param zoom    the zoom level of the clusters
+     * @param visitor receives the clusters
+     * @throws SQLException
+     */
+    public static void visitClusters(LatLng sw, LatLng ne, ZoomLevel zoom, ClusterVisitor visitor) throws SQLException {
+        TileCache current = cache;
+        if (!current.isEnabled()) {
+            PointIndex loaded = index;
+            if (loaded != null) {
+                loaded.visitClusters(sw, ne, zoom, visitor);
+            } else {
+                TileCount.visitClusters(sw, ne, zoom, visitor);
+            }
+            return;
+        }
+        for (long blockKey : QuadTile.getQuadKeys(sw, ne, TileCache.getBlockZoom(zoom))) {
+            for (Cluster cluster : current.get(blockKey, zoom, LOADER)) {
+                visitor.visit(cluster.quadKey, cluster.count,
+                        cluster.center.latitude, cluster.center.longitude, cluster.location);
+            }
+        }
+    }
+
+    static final TileCache.Loader LOADER = new TileCache.Loader() {
+        @Override
+        public List<Cluster> load(long quadKey, ZoomLevel zoom) throws SQLException {
+            PointIndex loaded = index;
+            return loaded != null ? loaded.getClusters(quadKey, zoom) : TileCount.findClusters(quadKey, zoom);
+        }
+    };
+
+    /**
+     * Adds a new location to the loaded index, if any.
+     *
+     * @param location
+     */
+    public static void add(Location location) {
+        PointIndex current = index;
+        if (current != null && location.quadKey != null) {
+            current.add(copy(location));
+            compactIfNeeded(current);
+        }
+        invalidate(location.quadKey);
+    }
+
+    /**
+     * Removes a location from the loaded index, if any.
+     *
+     * @param location
+     */
+    public static void remove(Location location) {
+        PointIndex current = index;
+        if (current != null && location.quadKey != null) {
+            current.remove(location.quadKey, location.id);
+            compactIfNeeded(current);
+        }
+        invalidate(location.quadKey);
+    }
+
+    /**
+     * Moves a location of the loaded index, if any.
+     *
+     * @param oldQuadKey the quad key of the location before it moved, or null if it had none
+     * @param location   the location at its new position
+     */
+    public static void move(Long oldQuadKey, Location location) {
+        PointIndex current = index;
+        if (current != null) {
+            if (location.quadKey != null) {
+                current.move(location.id, oldQuadKey, copy(location));
+            } else if (oldQuadKey != null) {
+                current.remove(oldQuadKey, location.id);
+            }
+            compactIfNeeded(current);
+        }
+        invalidate(oldQuadKey);
+        invalidate(location.quadKey);
+    }
+
+    /**
+     * Drops the cached clusters containing a location once the change is visible to the loaders.
+     */
+    private static void invalidate(Long quadKey) {
+        if (quadKey != null) {
+            cache.invalidate(quadKey);
+        }
+    }
+
+    /**
+     * Loads the index again once the writes made it worth it, unless a load is already running.
+     */
+    private static void compactIfNeeded(PointIndex current) {
+        if (current.needsCompaction() && compacting.compareAndSet(false, true)) {
+            log.info("Loading the cluster index again, {} of its {} locations changed since it was loaded",
+                    current.getChanges(), current.size());
+            Thread loader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load();
+                    } catch (SQLException e) {
+                        log.error("Could not load the cluster index", e);
+                    } finally {
+                        compacting.set(false);
+                    }
+                }
+            }, "cluster-index-compactor");
+            loader.setDaemon(true);
+            loader.start();
+        }
+    }
+
+    /**
+     * The index keeps its own copy of a location, so later changes to the bean do not alter its sums.
+     */
+    private static Location copy(Location location) {
+        Location copy = new Location();
+        copy.id = location.id;
+        copy.name = location.name;
+        copy.latitude = location.latitude;
+        copy.longitude = location.longitude;
+        copy.quadKey = location.quadKey;
+        return copy;
+    }
+
+    /**
+     * Reads all the locations having a quad key and replaces the current index with a freshly built one.
+     * The locations are read from the ix_location_quad_key index alone, already in the order of their quad keys,
+     * straight into the columns of a {@link PointStore}. Their names are left in the table.
+     * The new index is then saved to the snapshot file, if any.
+     * <p>
+     * <br/>
+     * The positions waiting in the {@link LocationWriter} are written first. The flushes and the saves of the
+     * locations go on while the table is read, so the changes logged since the read started are then replayed
+     * in the new index, see {@link LocationLog}, and the positions still waiting are moved in it.
+     *
+     * @throws SQLException
+     */
+    public static void load() throws SQLException {
+        LocationWriter pending = writer;
+        if (pending != null) {
+            pending.flush();
+        }
+        String sql = "SELECT id, latitude, longitude, quad_key FROM location WHERE quad_key IS NOT NULL ORDER BY quad_key";
+
+        long start = System.currentTimeMillis();
+        PointStore.Builder builder;
+        long logId;
+
+        Connection conn = play.db.DB.getConnection();
+        Statement stmt = null;
+        try {
+            // Before reading the locations, so the snapshot never claims changes it has not seen
+            logId = LocationLog.lastId(conn);
+            stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // Size the columns up front instead of doubling them while reading
+            ResultSet count = stmt.executeQuery("SELECT COUNT(*) FROM location WHERE quad_key IS NOT NULL");
+            builder = new PointStore.Builder(count.next() ? (int) count.getLong(1) : 0, offHeap);
+            count.close();
+
+            if ("MySQL".equals(conn.getMetaData().getDatabaseProductName())) {
+                // Stream the rows one by one instead of buffering the whole table in the driver
+                stmt.setFetchSize(Integer.MIN_VALUE);
+            }
+            ResultSet result = stmt.executeQuery(sql);
+            while (result.next()) {
+                builder.add(result.getLong(4), result.getDouble(2), result.getDouble(3), result.getLong(1));
+            }
+        } finally {
+            try {
+                if (stmt != null) {
+                    stmt.close();
+                }
+                conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        PointStore store = builder.build();
+        PointIndex loaded = new PointIndex(store, NAMES, aggregator);
+        index = loaded;
+        int replayed = catchUp(loaded, logId);
+        cache.clear();
+        log.info("Loaded {} locations ({} bytes) into the cluster index and replayed {} changed locations in {} ms",
+                store.size(), store.getMemoryUsage(), replayed, System.currentTimeMillis() - start);
+
+        save(store, logId);
+    }
+
+    /**
+     * Saves a freshly loaded store to the snapshot file and forgets the changes it includes.
+     */
+    private static void save(PointStore store, long logId) throws SQLException {
+        File file = snapshot;
+        if (file == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            PointSnapshot.write(store, logId, file);
+        } catch (IOException e) {
+            log.error("Could not save the cluster index to " + file, e);
+            return;
+        }
+
+        int deleted;
+        Connection conn = play.db.DB.getConnection();
+        try {
+            deleted = LocationLog.truncate(conn, logId);
+        } finally {
+            conn.close();
+        }
+        log.info("Saved the cluster index to {} in {} ms, deleted {} changes from the log",
+                file, System.currentTimeMillis() - start, deleted);
+    }
+
+    /**
+     * Maps the snapshot file and replays the changes of the {@link LocationLog} made since it was saved.
+     *
+     * @return false if there is no valid snapshot to restore
+     * @throws SQLException
+     */
+    public static boolean restore() throws SQLException {
+        File file = snapshot;
+        if (file == null || !file.isFile()) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        PointSnapshot saved;
+        try {
+            saved = PointSnapshot.map(file);
+        } catch (IOException e) {
+            log.warn("Could not restore the cluster index from " + file, e);
+            return false;
+        }
+
+        PointIndex restored = new PointIndex(saved.store, NAMES, aggregator);
+        index = restored;
+        int replayed = catchUp(restored, saved.logId);
+        cache.clear();
+        log.info("Restored {} locations into the cluster index from {} and replayed {} changed locations in {} ms",
+                restored.size(), file, replayed, System.currentTimeMillis() - start);
+        compactIfNeeded(restored);
+        return true;
+    }
+
+    /**
+     * Replays the changes of the {@link LocationLog} made after a change in an index just swapped in, then moves
+     * the positions waiting in the {@link LocationWriter} in it.
+     * <p>
+     * <br/>
+     * No flush runs meanwhile, so every position written by the writer is either in the replayed changes
+     * or still waiting, and the positions still waiting replace the older rows the replay read.
+     *
+     * @return how many changed locations were replayed
+     */
+    private static int catchUp(PointIndex current, long logId) throws SQLException {
+        LocationWriter pending = writer;
+        if (pending == null) {
+            return replay(current, logId);
+        }
+        // The flushes hold the monitor of the writer
+        synchronized (pending) {
+            int replayed = replay(current, logId);
+            pending.reapply(current);
+            return replayed;
+        }
+    }
+
+    /**
+     * Drops every location changed after a change of the {@link LocationLog} wherever it was, then adds it back
+     * from its current row.
+     */
+    private static int replay(PointIndex current, long logId) throws SQLException {
+        Connection conn = play.db.DB.getConnection();
+        try {
+            Map<Long, Set<Long>> changes = LocationLog.findChanges(conn, logId);
+            for (Map.Entry<Long, Set<Long>> change : changes.entrySet()) {
+                for (long quadKey : change.getValue()) {
+                    current.remove(quadKey, change.getKey());
+                }
+            }
+            long[] ids = new long[REPLAY_BATCH_SIZE];
+            int count = 0;
+            for (long id : changes.keySet()) {
+                ids[count++] = id;
+                if (count == ids.length) {
+                    addCurrent(conn, current, ids, count);
+                    count = 0;
+                }
+            }
+            addCurrent(conn, current, ids, count);
+            return changes.size();
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Adds the changed locations still having a position to a restored index.
+     */
+    private static void addCurrent(Connection conn, PointIndex restored, long[] ids, int count) throws SQLException {
+        if (count == 0) {
+            return;
+        }
+        StringBuilder sql = new StringBuilder("SELECT id, name, latitude, longitude, quad_key FROM location WHERE id IN (");
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") AND quad_key IS NOT NULL");
+
+        PreparedStatement stmt = conn.prepareStatement(sql.toString());
+        try {
+            for (int i = 0; i < count; i++) {
+                stmt.setLong(i + 1, ids[i]);
+            }
+            ResultSet result = stmt.executeQuery();
+            while (result.next()) {
+                Location location = new Location();
+                location.id = result.getLong(1);
+                location.name = result.getString(2);
+                location.latitude = result.getDouble(3);
+                location.longitude = result.getDouble(4);
+                location.quadKey = result.getLong(5);
+                restored.add(location);
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Reads the names of the single location clusters by primary key.
+     */
+    static final PointIndex.Names NAMES = new PointIndex.Names() {
+        @Override
+        public Map<Long, String> find(long[] ids, int count) throws SQLException {
+            Map<Long, String> names = new HashMap<Long, String>(count * 2);
+            StringBuilder sql = new StringBuilder("SELECT id, name FROM location WHERE id IN (");
+            for (int i = 0; i < count; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+
+            Connection conn = play.db.DB.getConnection();
+            try {
+                PreparedStatement stmt = conn.prepareStatement(sql.toString());
+                try {
+                    for (int i = 0; i < count; i++) {
+                        stmt.setLong(i + 1, ids[i]);
+                    }
+                    ResultSet result = stmt.executeQuery();
+                    while (result.next()) {
+                        names.put(result.getLong(1), result.getString(2));
+                    }
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                conn.close();
+            }
+            return names;
+        }
+    };
+
+    /**
+     * Restores the index from its snapshot, or loads it from the table without one, on a background thread,
+     * logging any failure.
+     */
+    public static void loadAsync() {
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!restore()) {
+                        load();
+                    }
+                } catch (SQLException e) {
+                    log.error("Could not load the cluster index", e);
+                }
+            }
+        }, "cluster-index-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+}
@@ -0,0 +1,98 @@
+package clustering;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import models.Location;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the visited clusters straight to a stream as a JSON object of clusters by quad key,
+ * the same document as serializing a map of {@link Cluster}s, without building the clusters or a JSON tree.
+ */
+public class ClusterJsonWriter implements ClusterVisitor {
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final JsonGenerator json;
+
+    /**
+     * Starts the JSON object, the stream is closed by {@link #close()}.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public ClusterJsonWriter(OutputStream out) throws IOException {
+        json = factory.createGenerator(out);
+        json.writeStartObject();
+    }
+
+    @Override
+    public void visit(long quadKey, int count, double latitude, double longitude, Location location) {
+        try {
+            QuadTile tile = QuadTile.getTileFromQuadKey(quadKey);
+            json.writeObjectFieldStart(Long.toString(quadKey));
+            json.writeNumberField("quadKey", quadKey);
+            writeLatLng("center", latitude, longitude);
+            writeLatLng("topLeft", tile.getTopLeft());
+            writeLatLng("topRight", tile.getTopRight());
+            writeLatLng("bottomLeft", tile.getBottomLeft());
+            writeLatLng("bottomRight", tile.getBottomRight());
+            if (location != null) {
+                json.writeObjectFieldStart("location");
+                writeNumberField("id", location.id);
+                writeNumberField("latitude", location.latitude);
+                writeNumberField("longitude", location.longitude);
+                writeNumberField("quadKey", location.quadKey);
+                json.writeStringField("name", location.name);
+                json.writeEndObject();
+            } else {
+                json.writeNullField("location");
+            }
+            json.writeNumberField("count", count);
+            json.writeNumberField("stamp", Cluster.stamp(count, latitude, longitude, location));
+            json.writeEndObject();
+        } catch (IOException e) {
+            // The visitors cannot throw checked exceptions, the caller of the visit unwraps it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Ends the JSON object and closes the stream.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        json.writeEndObject();
+        json.close();
+    }
+
+    private void writeLatLng(String name, LatLng latLng) throws IOException {
+        writeLatLng(name, latLng.latitude, latLng.longitude);
+    }
+
+    private void writeLatLng(String name, double latitude, double longitude) throws IOException {
+        json.writeObjectFieldStart(name);
+        json.writeNumberField("latitude", latitude);
+        json.writeNumberField("longitude", longitude);
+        json.writeEndObject();
+    }
+
+    private void writeNumberField(String name, Long value) throws IOException {
+        if (value != null) {
+            json.writeNumberField(name, value);
+        } else {
+            json.writeNullField(name);
+        }
+    }
+
+    private void writeNumberField(String name, Double value) throws IOException {
+        if (value != null) {
+            json.writeNumberField(name, value);
+        } else {
+            json.writeNullField(name);
+        }
+    }
+}
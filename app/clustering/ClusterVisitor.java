@@ -0,0 +1,19 @@
+package clustering;
+
+import models.Location;
+
+/**
+ * Receives the clusters of a query one at a time, so they can be written out as they are found
+ * instead of being collected first.
+ */
+public interface ClusterVisitor {
+
+    /**
+     * @param quadKey   the {@link QuadKey} of the cluster tile
+     * @param count     how many locations are inside the tile
+     * @param latitude  the latitude of the centroid of the locations
+     * @param longitude the longitude of the centroid of the locations
+     * @param location  the only location of the cluster, or null if it has more than one
+     */
+    void visit(long quadKey, int count, double latitude, double longitude, Location location);
+}
@@ -0,0 +1,84 @@
+package clustering;
+
+import static java.lang.Math.*;
+
+/**
+ * The ways of computing the distance in meters between two positions, from the most accurate to the fastest.
+ * <p>
+ * <br/>
+ * {@link #VINCENTY} follows the WGS84 ellipsoid and is accurate to the millimeter, at the cost of up to
+ * 20 iterations of trigonometry. {@link #HAVERSINE} assumes a spherical Earth, within 0.6% of Vincenty
+ * everywhere. {@link #EQUIRECTANGULAR} projects the two positions on a plane, as accurate as haversine for
+ * a few kilometers but drifting with the distance and near the poles, for filtering and ranking close points.
+ */
+public enum DistanceMode {
+
+    VINCENTY {
+        @Override
+        public double distance(double startLatitude, double startLongitude, double endLatitude, double endLongitude) {
+            return LocationUtils.distanceBetween(startLatitude, startLongitude, endLatitude, endLongitude);
+        }
+    },
+
+    HAVERSINE {
+        @Override
+        public double distance(double startLatitude, double startLongitude, double endLatitude, double endLongitude) {
+            double lat1 = toRadians(startLatitude);
+            double lat2 = toRadians(endLatitude);
+            double sinDLat = sin((lat2 - lat1) / 2);
+            double sinDLng = sin(toRadians(endLongitude - startLongitude) / 2);
+            double a = sinDLat * sinDLat + cos(lat1) * cos(lat2) * sinDLng * sinDLng;
+            return 2 * EARTH_RADIUS * asin(min(1.0, sqrt(a)));
+        }
+    },
+
+    EQUIRECTANGULAR {
+        @Override
+        public double distance(double startLatitude, double startLongitude, double endLatitude, double endLongitude) {
+            double dLng = endLongitude - startLongitude;
+            // Take the short way around the antimeridian
+            if (dLng > 180) {
+                dLng -= 360;
+            } else if (dLng < -180) {
+                dLng += 360;
+            }
+            double x = toRadians(dLng) * cos(toRadians((startLatitude + endLatitude) / 2));
+            double y = toRadians(endLatitude - startLatitude);
+            return EARTH_RADIUS * sqrt(x * x + y * y);
+        }
+    };
+
+    /**
+     * The mean radius of the Earth in meters.
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    /**
+     * Computes the distance in meters between two positions.
+     *
+     * @param startLatitude
+     * @param startLongitude
+     * @param endLatitude
+     * @param endLongitude
+     * @return
+     */
+    public abstract double distance(double startLatitude, double startLongitude, double endLatitude, double endLongitude);
+
+    /**
+     * Computes the distances in meters between a position and a range of positions, without allocating.
+     *
+     * @param latitude   the latitude of the position
+     * @param longitude  the longitude of the position
+     * @param latitudes  the latitudes of the other positions
+     * @param longitudes the longitudes of the other positions
+     * @param from       the index of the first other position
+     * @param to         the index after the last other position
+     * @param distances  receives the distance to every other position at its index
+     */
+    public void distances(double latitude, double longitude, double[] latitudes, double[] longitudes,
+                          int from, int to, double[] distances) {
+        for (int i = from; i < to; i++) {
+            distances[i] = distance(latitude, longitude, latitudes[i], longitudes[i]);
+        }
+    }
+}
@@ -20,17 +20,33 @@ public class LatLng implements QueryStringBindable<LatLng> {
         this.longitude = longitude;
     }
 
-    @Override
-    public F.Option<LatLng> bind(String key, java.util.Map<String, String[]> data) {
-        if (data.containsKey(key)) {
+    /**
+     * Parses a "latitude,longitude" pair.
+     *
+     * @param value
+     * @return the position or null if the value is not a valid pair
+     */
+    public static LatLng parse(String value) {
+        if (value != null) {
             try {
-                String[] values = data.get(key)[0].split(",");
+                String[] values = value.split(",");
                 if (values.length == 2) {
-                    return F.Some(new LatLng(Double.parseDouble(values[0]), Double.parseDouble(values[1])));
+                    return new LatLng(Double.parseDouble(values[0]), Double.parseDouble(values[1]));
                 }
             } catch (NumberFormatException e) {
             }
         }
+        return null;
+    }
+
+    @Override
+    public F.Option<LatLng> bind(String key, java.util.Map<String, String[]> data) {
+        if (data.containsKey(key)) {
+            LatLng latLng = parse(data.get(key)[0]);
+            if (latLng != null) {
+                return F.Some(latLng);
+            }
+        }
         return F.None();
     }
 
@@ -66,17 +66,61 @@ public class LocationUtils {
      * @return
      */
     public static Point latLngToWorldPoint(LatLng latLng, ZoomLevel zoom) {
-        final double latitude = clipLatitude(latLng.latitude);
-        final double longitude = clipLongitude(latLng.longitude);
-        final double sinLatitude = sin(latitude * (PI / 180.0));
+        return new Point(longitudeToPixelX(latLng.longitude, zoom), latitudeToPixelY(latLng.latitude, zoom));
+    }
 
-        final double x = (longitude + 180.0) / 360.0;
-        final double y = 0.5 - log((1.0 + sinLatitude) / (1.0 - sinLatitude)) / (4.0 * PI);
+    /**
+     * Same as {@link #latLngToWorldPoint(LatLng, ZoomLevel)} without allocating, the pixel x is packed
+     * in the high 32 bits and the pixel y in the low 32 bits, see {@link #pixelX(long)} and {@link #pixelY(long)}.
+     *
+     * @param latitude
+     * @param longitude
+     * @param zoom
+     * @return
+     */
+    public static long latLngToWorldPixel(double latitude, double longitude, ZoomLevel zoom) {
+        return ((long) longitudeToPixelX(longitude, zoom) << 32) | latitudeToPixelY(latitude, zoom);
+    }
 
-        final double pixelX = clip(x * zoom.mapSize + 0.5, 0, zoom.mapSize - 1);
-        final double pixelY = clip(y * zoom.mapSize + 0.5, 0, zoom.mapSize - 1);
+    /**
+     * @param worldPixel a pixel packed by {@link #latLngToWorldPixel(double, double, ZoomLevel)}
+     * @return the x coordinate of the pixel.
+     */
+    public static int pixelX(long worldPixel) {
+        return (int) (worldPixel >>> 32);
+    }
+
+    /**
+     * @param worldPixel a pixel packed by {@link #latLngToWorldPixel(double, double, ZoomLevel)}
+     * @return the y coordinate of the pixel.
+     */
+    public static int pixelY(long worldPixel) {
+        return (int) worldPixel;
+    }
+
+    /**
+     * Computes the x coordinate of the world pixel of a longitude. The x coordinate only depends on the longitude.
+     *
+     * @param longitude
+     * @param zoom
+     * @return
+     */
+    public static int longitudeToPixelX(double longitude, ZoomLevel zoom) {
+        final double x = (clipLongitude(longitude) + 180.0) / 360.0;
+        return (int) clip(x * zoom.mapSize + 0.5, 0, zoom.mapSize - 1);
+    }
 
-        return new Point((int) pixelX, (int) pixelY);
+    /**
+     * Computes the y coordinate of the world pixel of a latitude. The y coordinate only depends on the latitude.
+     *
+     * @param latitude
+     * @param zoom
+     * @return
+     */
+    public static int latitudeToPixelY(double latitude, ZoomLevel zoom) {
+        final double sinLatitude = sin(clipLatitude(latitude) * (PI / 180.0));
+        final double y = 0.5 - log((1.0 + sinLatitude) / (1.0 - sinLatitude)) / (4.0 * PI);
+        return (int) clip(y * zoom.mapSize + 0.5, 0, zoom.mapSize - 1);
     }
 
     /**
@@ -101,43 +145,102 @@ public class LocationUtils {
      * @return
      */
     public static Point worldPointToTileXY(Point point) {
-        final int tileX = (int) Math.floor((double) point.x / TILE_SIZE);
-        final int tileY = (int) Math.floor((double) point.y / TILE_SIZE);
-        return new Point(tileX, tileY);
+        return new Point(pixelToTile(point.x), pixelToTile(point.y));
+    }
+
+    /**
+     * Computes the x or y coordinate of the tile containing a world pixel x or y coordinate.
+     *
+     * @param pixel
+     * @return
+     */
+    public static int pixelToTile(int pixel) {
+        return (int) Math.floor((double) pixel / TILE_SIZE);
+    }
+
+    /**
+     * Computes the x coordinate of the tile containing a longitude at a zoom level.
+     *
+     * @param longitude
+     * @param zoom
+     * @return
+     */
+    public static int longitudeToTileX(double longitude, ZoomLevel zoom) {
+        return pixelToTile(longitudeToPixelX(longitude, zoom));
+    }
+
+    /**
+     * Computes the y coordinate of the tile containing a latitude at a zoom level.
+     *
+     * @param latitude
+     * @param zoom
+     * @return
+     */
+    public static int latitudeToTileY(double latitude, ZoomLevel zoom) {
+        return pixelToTile(latitudeToPixelY(latitude, zoom));
     }
 
     public static float distanceBetween(double startLatitude, double startLongitude,
                                         double endLatitude, double endLongitude) {
-        float[] results = new float[1];
-        distanceBetween(startLatitude, startLongitude, endLatitude, endLongitude, results);
-        return results[0];
+        return computeDistanceAndBearing(startLatitude, startLongitude, endLatitude, endLongitude, null);
     }
 
     /**
-     * Computes the QuadKey string for a tile at a certain level.
+     * Computes the distance in meters between two positions with the given accuracy.
      *
+     * @param startLatitude
+     * @param startLongitude
+     * @param endLatitude
+     * @param endLongitude
+     * @param mode           how accurately, and so how fast, the distance is computed
      * @return
      */
-    public static String getQuadKey(int x, int y, int zoom) {
-        StringBuilder quadKey = new StringBuilder();
-        for (int i = zoom; i > 0; i--) {
-            char digit = '0';
-            int mask = 1 << (i - 1);
-            if ((x & mask) != 0) {
-                digit++;
-            }
-            if ((y & mask) != 0) {
-                digit++;
-                digit++;
-            }
-            quadKey.append(digit);
-        }
-        return quadKey.toString();
+    public static double distanceBetween(double startLatitude, double startLongitude,
+                                         double endLatitude, double endLongitude, DistanceMode mode) {
+        return mode.distance(startLatitude, startLongitude, endLatitude, endLongitude);
     }
 
-    public static String getQuadKey(LatLng latLng, ZoomLevel zoom) {
-        Point tile = worldPointToTileXY(latLngToWorldPoint(latLng, zoom));
-        return getQuadKey(tile.x, tile.y, zoom.zoom);
+    /**
+     * Computes the {@link QuadKey} for a tile at a certain level.
+     *
+     * @return
+     */
+    public static long getQuadKey(int x, int y, int zoom) {
+        return QuadKey.of(x, y, zoom);
+    }
+
+    public static long getQuadKey(LatLng latLng, ZoomLevel zoom) {
+        return getQuadKey(latLng.latitude, latLng.longitude, zoom);
+    }
+
+    /**
+     * Computes the {@link QuadKey} of the tile containing a position at a certain level, without allocating.
+     *
+     * @param latitude
+     * @param longitude
+     * @param zoom
+     * @return
+     */
+    public static long getQuadKey(double latitude, double longitude, ZoomLevel zoom) {
+        return QuadKey.of(longitudeToTileX(longitude, zoom), latitudeToTileY(latitude, zoom), zoom.zoom);
+    }
+
+    /**
+     * Computes the {@link QuadKey}s of the tiles containing a range of positions at a certain level,
+     * without allocating.
+     *
+     * @param latitudes  the latitudes of the positions
+     * @param longitudes the longitudes of the positions
+     * @param from       the index of the first position
+     * @param to         the index after the last position
+     * @param zoom       the zoom level of the tiles
+     * @param quadKeys   receives the quad key of every position at its index
+     */
+    public static void getQuadKeys(double[] latitudes, double[] longitudes, int from, int to, ZoomLevel zoom,
+                                   long[] quadKeys) {
+        for (int i = from; i < to; i++) {
+            quadKeys[i] = QuadKey.of(longitudeToTileX(longitudes[i], zoom), latitudeToTileY(latitudes[i], zoom), zoom.zoom);
+        }
     }
 
     public static void distanceBetween(double startLatitude, double startLongitude,
@@ -149,8 +252,12 @@ public class LocationUtils {
                 endLatitude, endLongitude, results);
     }
 
-    private static void computeDistanceAndBearing(double lat1, double lon1,
-                                                  double lat2, double lon2, float[] results) {
+    /**
+     * @param results receives the distance and the initial and final bearings if it is long enough, may be null
+     * @return the distance
+     */
+    private static float computeDistanceAndBearing(double lat1, double lon1,
+                                                   double lat2, double lon2, float[] results) {
         // Based on http://www.ngs.noaa.gov/PUBS_LIB/inverse.pdf
         // using the "Inverse Formula" (section 4)
 
@@ -235,6 +342,9 @@ public class LocationUtils {
         }
 
         float distance = (float) (b * A * (sigma - deltaSigma));
+        if (results == null) {
+            return distance;
+        }
         results[0] = distance;
         if (results.length > 1) {
             float initialBearing = (float) Math.atan2(cosU2 * sinLambda,
@@ -248,5 +358,6 @@ public class LocationUtils {
                 results[2] = finalBearing;
             }
         }
+        return distance;
     }
 }
@@ -0,0 +1,640 @@
+package clustering;
+
+import models.Location;
+import models.LocationLog;
+import models.TileCount;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves locations in the {@link ClusterIndex} right away and writes their new positions to the location table
+ * later, in batches.
+ * <p>
+ * <br/>
+ * The positions waiting to be written are kept by location id, so a location moving several times between two
+ * flushes is written once, at its last position. At most {@link #getCapacity()} locations can wait: the positions
+ * of other locations are rejected until a flush makes room, while the waiting ones can still move. A background
+ * thread flushes the waiting positions every interval, {@link #getBatchSize()} per transaction, along with their
+ * {@link TileCount.Changes} and their {@link LocationLog} rows, and {@link #shutdown()} flushes whatever is left.
+ * <p>
+ * <br/>
+ * Until they are flushed the positions only live in memory: {@link #getLag()} tells how old the oldest one is,
+ * which is how much a crash would lose. The index keeps serving them when it is loaded again, see
+ * {@link #reapply(PointIndex)}.
+ */
+public class LocationWriter {
+
+    private static Logger log = LoggerFactory.getLogger(LocationWriter.class);
+
+    /**
+     * How many ids are looked up in a single query.
+     */
+    private static final int LOOKUP_BATCH_SIZE = 1000;
+
+    /**
+     * How many locks serialize the writes of the locations, locations hashing to the same lock wait for each other.
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * How many flushes a position failing on its own, while the other positions of its batch are written,
+     * is tried in before it is dropped.
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Reads and writes the positions of the locations.
+     */
+    public interface Store {
+        /**
+         * @param ids   the ids of the locations
+         * @param count how many ids to read from the array
+         * @return the stored quad keys by id, null for the locations without a position, the missing locations
+         * are left out
+         * @throws SQLException
+         */
+        Map<Long, Long> findQuadKeys(long[] ids, int count) throws SQLException;
+
+        /**
+         * Writes the positions of a batch of locations in a single transaction.
+         *
+         * @param positions
+         * @return how many of the locations were found
+         * @throws SQLException
+         */
+        int write(List<Position> positions) throws SQLException;
+    }
+
+    /**
+     * The new position of a location.
+     */
+    public static final class Position {
+        public final long id;
+        public final double latitude;
+        public final double longitude;
+        /**
+         * The {@link QuadKey} of the position at {@link ZoomLevel#Z19}.
+         */
+        public final long quadKey;
+
+        /**
+         * The {@link System#nanoTime()} of the oldest position it replaced which is not written yet.
+         */
+        long since;
+        /**
+         * The quad key the location has in the table, while the position waits to be written.
+         */
+        Long stored;
+        /**
+         * How many flushes could not write the position on its own.
+         */
+        int attempts;
+
+        /**
+         * @param id
+         * @param latitude
+         * @param longitude
+         */
+        public Position(long id, double latitude, double longitude) {
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.quadKey = LocationUtils.getQuadKey(latitude, longitude, ZoomLevel.Z19);
+        }
+    }
+
+    /**
+     * What became of the positions given to {@link #write(List)}.
+     */
+    public static final class Outcome {
+        /**
+         * How many positions were accepted.
+         */
+        public int accepted;
+        /**
+         * The ids of the locations rejected because too many locations are waiting to be written.
+         */
+        public final List<Long> rejected = new ArrayList<Long>();
+        /**
+         * The ids of the locations which do not exist.
+         */
+        public final List<Long> unknown = new ArrayList<Long>();
+    }
+
+    private final Store store;
+    private final int capacity;
+    private final int batchSize;
+
+    private final ConcurrentMap<Long, Position> pending = new ConcurrentHashMap<Long, Position>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Object[] locks = new Object[STRIPES];
+    private final ScheduledExecutorService flusher;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long lastFlush;
+    private volatile long lastFlushTime;
+
+    /**
+     * @param store     reads and writes the positions
+     * @param capacity  how many locations can wait to be written
+     * @param batchSize how many locations are written per transaction
+     * @param interval  the time in milliseconds between two flushes
+     */
+    public LocationWriter(Store store, int capacity, int batchSize, long interval) {
+        this.store = store;
+        this.capacity = capacity;
+        this.batchSize = Math.max(batchSize, 1);
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "location-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    // An exception would cancel the next flushes
+                    log.error("Could not flush the positions", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Moves the locations in the index and queues their positions to be written. The positions of the locations
+     * not waiting yet are rejected once {@link #getCapacity()} locations wait.
+     *
+     * @param positions the new positions, of distinct locations or in the order they were taken
+     * @return
+     * @throws SQLException if the locations could not be looked up
+     */
+    public Outcome write(List<Position> positions) throws SQLException {
+        Outcome outcome = new Outcome();
+        Map<Long, Long> stored = lookup(positions);
+        for (Position position : positions) {
+            synchronized (lock(position.id)) {
+                Position previous = pending.get(position.id);
+                Long oldQuadKey;
+                if (previous != null) {
+                    position.since = previous.since;
+                    position.stored = previous.stored;
+                    oldQuadKey = previous.quadKey;
+                    pending.put(position.id, position);
+                    coalesced.incrementAndGet();
+                } else {
+                    if (!stored.containsKey(position.id)) {
+                        outcome.unknown.add(position.id);
+                        continue;
+                    }
+                    if (size.get() >= capacity) {
+                        outcome.rejected.add(position.id);
+                        rejected.incrementAndGet();
+                        continue;
+                    }
+                    position.since = System.nanoTime();
+                    position.stored = stored.get(position.id);
+                    oldQuadKey = position.stored;
+                    pending.put(position.id, position);
+                    size.incrementAndGet();
+                }
+                ClusterIndex.move(oldQuadKey, location(position));
+            }
+            outcome.accepted++;
+            accepted.incrementAndGet();
+        }
+        return outcome;
+    }
+
+    /**
+     * Writes all the waiting positions. The positions of a batch which cannot be written are written one by one,
+     * so a single failing position does not hold back the others: it stays waiting and is dropped once it failed
+     * in {@link #MAX_ATTEMPTS} flushes. The flush stops at the first batch none of whose positions can be written,
+     * the table is then likely unreachable. The flush holds the monitor of the writer, which the
+     * {@link ClusterIndex} takes to catch up with the writes of a fresh index.
+     *
+     * @return how many positions were written
+     */
+    public synchronized int flush() {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        int written = 0;
+        List<Position> batch = new ArrayList<Position>(batchSize);
+        for (Position position : pending.values()) {
+            batch.add(position);
+            if (batch.size() == batchSize) {
+                int count = writeBatch(batch);
+                if (count == 0) {
+                    return written;
+                }
+                written += count;
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            int count = writeBatch(batch);
+            if (count == 0) {
+                return written;
+            }
+            written += count;
+        }
+        lastFlush = System.currentTimeMillis();
+        lastFlushTime = lastFlush - start;
+        log.debug("Wrote {} positions in {} ms", written, lastFlushTime);
+        return written;
+    }
+
+    /**
+     * @return how many positions of the batch were written
+     */
+    private int writeBatch(List<Position> batch) {
+        try {
+            written(batch, store.write(batch));
+            return batch.size();
+        } catch (SQLException e) {
+            failures.incrementAndGet();
+            log.warn("Could not write {} positions, writing them one by one: {}", batch.size(), e.getMessage());
+        }
+
+        int written = 0;
+        List<Position> failed = new ArrayList<Position>();
+        SQLException error = null;
+        List<Position> single = new ArrayList<Position>(1);
+        for (Position position : batch) {
+            single.clear();
+            single.add(position);
+            try {
+                written(single, store.write(single));
+                written++;
+            } catch (SQLException e) {
+                failed.add(position);
+                error = e;
+            }
+        }
+        if (written == 0) {
+            log.error("Could not write " + batch.size() + " positions, " + size.get() + " are waiting", error);
+            return 0;
+        }
+        for (Position position : failed) {
+            synchronized (lock(position.id)) {
+                if (++position.attempts < MAX_ATTEMPTS || !pending.remove(position.id, position)) {
+                    continue;
+                }
+                size.decrementAndGet();
+            }
+            dropped.incrementAndGet();
+            log.error("Dropped the position of location " + position.id + " after " + MAX_ATTEMPTS
+                    + " failed writes, the index keeps it until it is loaded again", error);
+        }
+        return written;
+    }
+
+    /**
+     * Forgets the positions of a batch written to the table.
+     *
+     * @param found how many of the locations were found
+     */
+    private void written(List<Position> batch, int found) {
+        for (Position position : batch) {
+            synchronized (lock(position.id)) {
+                if (pending.remove(position.id, position)) {
+                    size.decrementAndGet();
+                } else {
+                    // Moved again meanwhile, the table now has this position
+                    Position next = pending.get(position.id);
+                    if (next != null) {
+                        next.stored = position.quadKey;
+                    }
+                }
+            }
+        }
+        flushed.addAndGet(found);
+        // Deleted while their positions were waiting
+        missing.addAndGet(batch.size() - found);
+    }
+
+    /**
+     * Moves the waiting locations in an index loaded from the table, which still has them at their stored
+     * positions.
+     *
+     * @param index
+     */
+    public void reapply(PointIndex index) {
+        for (Position position : pending.values()) {
+            synchronized (lock(position.id)) {
+                if (pending.get(position.id) != position) {
+                    continue;
+                }
+                // The location may have moved in the index already, before it was swapped in
+                if (position.stored != null) {
+                    index.getStore().remove(position.stored, position.id);
+                }
+                index.move(position.id, null, location(position));
+            }
+        }
+    }
+
+    /**
+     * Stops the background flushes and writes the positions still waiting.
+     */
+    public void shutdown() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        if (size.get() > 0) {
+            log.warn("{} positions could not be written before stopping", size.get());
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return how many locations wait for their position to be written.
+     */
+    public int getPending() {
+        return size.get();
+    }
+
+    /**
+     * @return how many positions were accepted.
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return how many accepted positions replaced one still waiting, and will never be written.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return how many positions were rejected for lack of room.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return how many positions were written.
+     */
+    public long getFlushed() {
+        return flushed.get();
+    }
+
+    /**
+     * @return how many positions were not written because their location was deleted.
+     */
+    public long getMissing() {
+        return missing.get();
+    }
+
+    /**
+     * @return how many batches could not be written.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return how many positions were dropped after failing {@link #MAX_ATTEMPTS} times.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the time in milliseconds of the end of the last complete flush, 0 if there was none.
+     */
+    public long getLastFlush() {
+        return lastFlush;
+    }
+
+    /**
+     * @return how long in milliseconds the last complete flush took.
+     */
+    public long getLastFlushTime() {
+        return lastFlushTime;
+    }
+
+    /**
+     * @return how long in milliseconds the oldest waiting position has been waiting, 0 if none is.
+     */
+    public long getLag() {
+        long now = System.nanoTime();
+        long oldest = now;
+        for (Position position : pending.values()) {
+            oldest = Math.min(oldest, position.since);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(now - oldest);
+    }
+
+    /**
+     * Looks up the stored quad keys of the locations which neither wait to be written nor moved in the index
+     * since it was loaded, the others are known.
+     */
+    private Map<Long, Long> lookup(List<Position> positions) throws SQLException {
+        Map<Long, Long> stored = new HashMap<Long, Long>();
+        PointIndex index = ClusterIndex.get();
+        long[] ids = new long[Math.min(positions.size(), LOOKUP_BATCH_SIZE)];
+        int count = 0;
+        for (Position position : positions) {
+            Position waiting = pending.get(position.id);
+            if (waiting != null) {
+                // Where the table has it if the position is written before the new one is queued
+                stored.put(position.id, waiting.quadKey);
+                continue;
+            }
+            Location changed = index != null ? index.getChanged(position.id) : null;
+            if (changed != null) {
+                // Written already, or it would be waiting
+                stored.put(position.id, changed.quadKey);
+                continue;
+            }
+            ids[count++] = position.id;
+            if (count == ids.length) {
+                stored.putAll(store.findQuadKeys(ids, count));
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            stored.putAll(store.findQuadKeys(ids, count));
+        }
+        return stored;
+    }
+
+    private Object lock(long id) {
+        return locks[(int) (id ^ (id >>> 32)) & (STRIPES - 1)];
+    }
+
+    private static Location location(Position position) {
+        Location location = new Location();
+        location.id = position.id;
+        location.latitude = position.latitude;
+        location.longitude = position.longitude;
+        location.quadKey = position.quadKey;
+        return location;
+    }
+
+    /**
+     * Reads and writes the positions in the location table, moving the locations between the {@link TileCount}s
+     * and recording the moves in the {@link LocationLog} in the same transaction.
+     */
+    public static final Store DATABASE = new Store() {
+        @Override
+        public Map<Long, Long> findQuadKeys(long[] ids, int count) throws SQLException {
+            Map<Long, Long> quadKeys = new HashMap<Long, Long>(count * 2);
+            Connection conn = play.db.DB.getConnection();
+            try {
+                PreparedStatement stmt = conn.prepareStatement(
+                        "SELECT id, quad_key FROM location WHERE id IN (" + placeholders(count) + ")");
+                try {
+                    for (int i = 0; i < count; i++) {
+                        stmt.setLong(i + 1, ids[i]);
+                    }
+                    ResultSet result = stmt.executeQuery();
+                    while (result.next()) {
+                        quadKeys.put(result.getLong(1), (Long) result.getObject(2));
+                    }
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                conn.close();
+            }
+            return quadKeys;
+        }
+
+        @Override
+        public int write(List<Position> positions) throws SQLException {
+            int count = positions.size();
+            Connection conn = play.db.DB.getConnection(false);
+            try {
+                Map<Long, Location> old = findPositions(conn, positions);
+
+                long[] ids = new long[count];
+                Long[] oldQuadKeys = new Long[count];
+                Long[] newQuadKeys = new Long[count];
+                TileCount.Changes changes = new TileCount.Changes();
+                PreparedStatement update = conn.prepareStatement(
+                        "UPDATE location SET latitude = ?, longitude = ?, quad_key = ? WHERE id = ?");
+                int found = 0;
+                try {
+                    for (Position position : positions) {
+                        Location before = old.get(position.id);
+                        if (before == null) {
+                            continue;
+                        }
+                        update.setDouble(1, position.latitude);
+                        update.setDouble(2, position.longitude);
+                        update.setLong(3, position.quadKey);
+                        update.setLong(4, position.id);
+                        update.addBatch();
+
+                        if (before.quadKey != null) {
+                            changes.move(position.id, before.latitude, before.longitude, before.quadKey,
+                                    position.latitude, position.longitude, position.quadKey);
+                        } else {
+                            changes.add(position.id, position.latitude, position.longitude, position.quadKey);
+                        }
+                        ids[found] = position.id;
+                        oldQuadKeys[found] = before.quadKey;
+                        newQuadKeys[found] = position.quadKey;
+                        found++;
+                    }
+                    if (found > 0) {
+                        update.executeBatch();
+                    }
+                } finally {
+                    update.close();
+                }
+                changes.apply(conn);
+                LocationLog.append(conn, ids, oldQuadKeys, newQuadKeys, found);
+                conn.commit();
+                return found;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.close();
+            }
+        }
+
+        /**
+         * Reads the stored positions of the locations, locking their rows until the transaction ends.
+         */
+        private Map<Long, Location> findPositions(Connection conn, List<Position> positions) throws SQLException {
+            Map<Long, Location> found = new HashMap<Long, Location>(positions.size() * 2);
+            PreparedStatement stmt = conn.prepareStatement("SELECT id, latitude, longitude, quad_key FROM location " +
+                    "WHERE id IN (" + placeholders(positions.size()) + ") FOR UPDATE");
+            try {
+                for (int i = 0; i < positions.size(); i++) {
+                    stmt.setLong(i + 1, positions.get(i).id);
+                }
+                ResultSet result = stmt.executeQuery();
+                while (result.next()) {
+                    Location location = new Location();
+                    location.id = result.getLong(1);
+                    location.latitude = result.getDouble(2);
+                    location.longitude = result.getDouble(3);
+                    location.quadKey = (Long) result.getObject(4);
+                    found.put(location.id, location);
+                }
+            } finally {
+                stmt.close();
+            }
+            return found;
+        }
+
+        private String placeholders(int count) {
+            StringBuilder sql = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            return sql.toString();
+        }
+    };
+}
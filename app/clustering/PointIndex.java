@@ -0,0 +1,346 @@
+package clustering;
+
+import models.Location;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The locations of the {@link ClusterIndex}: a {@link PointStore} snapshot of the location table plus a
+ * {@link TileCounter} of the locations added or moved since the snapshot was taken.
+ * <p>
+ * <br/>
+ * The clusters of both are merged tile by tile. Neither takes a lock to be read, so the queries never wait
+ * for the locations moving under them, see {@link #move(long, Long, Location)}. The snapshot does not keep the names of its locations,
+ * so the names of the single location clusters are read from the database, {@link #NAMES_BATCH_SIZE} at a time.
+ * <p>
+ * <br/>
+ * Removed locations stay in the snapshot as holes and the counter grows with every write, so once they hold
+ * more than {@link #COMPACTION_RATIO} of the locations the index should be loaded again,
+ * see {@link #needsCompaction()}.
+ */
+public class PointIndex {
+
+    /**
+     * How many clusters are held back while the names of their single locations are read.
+     */
+    public static final int NAMES_BATCH_SIZE = 512;
+
+    /**
+     * The share of changed locations above which the snapshot should be taken again.
+     */
+    public static final double COMPACTION_RATIO = 0.05;
+
+    private static final int MIN_COMPACTION_CHANGES = 10000;
+
+    /**
+     * Reads the names of the locations of the snapshot.
+     */
+    public interface Names {
+        /**
+         * @param ids   the ids of the locations
+         * @param count how many ids to read from the array
+         * @return the names by id, the missing ones are left without a name
+         * @throws SQLException
+         */
+        Map<Long, String> find(long[] ids, int count) throws SQLException;
+    }
+
+    private final PointStore store;
+    private final TileCounter overlay = new TileCounter(1024);
+    /**
+     * The locations counted by the overlay, by id.
+     */
+    private final ConcurrentMap<Long, Location> added = new ConcurrentHashMap<Long, Location>();
+    private final Names names;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param store the snapshot of the locations
+     * @param names reads the names of the locations of the snapshot
+     */
+    public PointIndex(PointStore store, Names names) {
+        this(store, names, null);
+    }
+
+    /**
+     * @param store the snapshot of the locations
+     * @param names reads the names of the locations of the snapshot
+     * @param pool  the pool splitting the large scans of the snapshot, or null to scan on the calling thread
+     */
+    public PointIndex(PointStore store, Names names, ForkJoinPool pool) {
+        this.store = store;
+        this.names = names;
+        this.pool = pool;
+    }
+
+    public PointStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return how many locations the index holds.
+     */
+    public int size() {
+        return store.size() - store.removed() + overlay.size();
+    }
+
+    /**
+     * @return how many locations were added to or removed from the index since the snapshot was taken.
+     */
+    public int getChanges() {
+        return store.removed() + overlay.size();
+    }
+
+    /**
+     * @return true once the changes since the snapshot make it worth taking again.
+     */
+    public boolean needsCompaction() {
+        int changes = getChanges();
+        return changes >= MIN_COMPACTION_CHANGES && changes > COMPACTION_RATIO * store.size();
+    }
+
+    /**
+     * Counts a new location at its position, or moves it there if it already changed since the snapshot.
+     *
+     * @param location a copy of the location the index can keep, with its position
+     */
+    public void add(Location location) {
+        Location previous = added.put(location.id, location);
+        if (previous != null) {
+            overlay.move(location.id, position(previous), position(location));
+        } else {
+            overlay.add(location.id, position(location));
+        }
+    }
+
+    /**
+     * @param quadKey the {@link QuadKey} of the location at {@link ZoomLevel#Z19}
+     * @param id      the id of the location
+     * @return true if the location was found
+     */
+    public boolean remove(long quadKey, long id) {
+        Location previous = added.remove(id);
+        if (previous != null) {
+            overlay.remove(id, position(previous));
+            return true;
+        }
+        return store.remove(quadKey, id);
+    }
+
+    /**
+     * Moves a location, in a single update of the counters if it already moved since the snapshot.
+     *
+     * @param id         the id of the location
+     * @param oldQuadKey the {@link QuadKey} of the location before it moved, or null if it had none
+     * @param location   a copy of the location at its new position the index can keep
+     */
+    public void move(long id, Long oldQuadKey, Location location) {
+        Location previous = added.put(id, location);
+        if (previous != null) {
+            overlay.move(id, position(previous), position(location));
+            return;
+        }
+        if (oldQuadKey != null) {
+            store.remove(oldQuadKey, id);
+        }
+        overlay.add(id, position(location));
+    }
+
+    /**
+     * @param id the id of the location
+     * @return the location as it was added or last moved since the snapshot, or null if it has not changed since.
+     */
+    public Location getChanged(long id) {
+        return added.get(id);
+    }
+
+    private static LatLng position(Location location) {
+        return new LatLng(location.latitude, location.longitude);
+    }
+
+    /**
+     * Returns all the clusters at the given zoom level inside a tile of a lower (or the same) zoom level.
+     *
+     * @param quadKey the {@link QuadKey} of the tile
+     * @param zoom    the zoom level of the clusters
+     * @return
+     * @throws SQLException
+     */
+    public List<Cluster> getClusters(long quadKey, ZoomLevel zoom) throws SQLException {
+        Cluster.Collector collector = new Cluster.Collector();
+        visitClusters(quadKey, zoom, collector);
+        return collector.clusters;
+    }
+
+    /**
+     * Returns all the clusters at the given zoom level whose tiles intersect the given bounds.
+     *
+     * @param sw   south west bound {@link LatLng}
+     * @param ne   north east bound {@link LatLng}
+     * @param zoom the zoom level of the clusters
+     * @return
+     * @throws SQLException
+     */
+    public List<Cluster> getClusters(LatLng sw, LatLng ne, ZoomLevel zoom) throws SQLException {
+        Cluster.Collector collector = new Cluster.Collector();
+        visitClusters(sw, ne, zoom, collector);
+        return collector.clusters;
+    }
+
+    /**
+     * Visits all the clusters at the given zoom level inside a tile of a lower (or the same) zoom level,
+     * in quad key order.
+     *
+     * @param quadKey the {@link QuadKey} of the tile
+     * @param zoom    the zoom level of the clusters
+     * @param visitor receives the clusters
+     * @throws SQLException
+     */
+    public void visitClusters(long quadKey, ZoomLevel zoom, ClusterVisitor visitor) throws SQLException {
+        Cluster.Collector changes = new Cluster.Collector();
+        overlay.visitTiles(quadKey, zoom, changes(changes));
+        Merger merger = new Merger(changes.clusters, visitor);
+        store.visitClusters(quadKey, zoom, pool, merger);
+        merger.finish();
+    }
+
+    /**
+     * Visits all the clusters at the given zoom level whose tiles intersect the given bounds, in quad key order.
+     *
+     * @param sw      south west bound {@link LatLng}
+     * @param ne      north east bound {@link LatLng}
+     * @param zoom    the zoom level of the clusters
+     * @param visitor receives the clusters
+     * @throws SQLException
+     */
+    public void visitClusters(LatLng sw, LatLng ne, ZoomLevel zoom, ClusterVisitor visitor) throws SQLException {
+        Cluster.Collector changes = new Cluster.Collector();
+        overlay.visitTiles(sw, ne, zoom, changes(changes));
+        Merger merger = new Merger(changes.clusters, visitor);
+        store.visitClusters(sw, ne, zoom, pool, merger);
+        merger.finish();
+    }
+
+    /**
+     * Collects the tiles of the overlay as clusters, with the location of the single location ones.
+     */
+    private TileCounter.Visitor changes(final ClusterVisitor visitor) {
+        return new TileCounter.Visitor() {
+            @Override
+            public void visit(long quadKey, int count, double latitude, double longitude, long id) {
+                Location location = id >= 0 ? added.get(id) : null;
+                // The location may have moved away since the tile was read, or the id sum be read in the middle
+                // of a move, it is then left out of the cluster
+                if (location != null && !QuadKey.contains(quadKey,
+                        LocationUtils.getQuadKey(location.latitude, location.longitude, ZoomLevel.Z19))) {
+                    location = null;
+                }
+                visitor.visit(quadKey, count, latitude, longitude, location);
+            }
+        };
+    }
+
+    /**
+     * Merges the clusters of the snapshot with the ones of the changes, both in quad key order,
+     * and holds them back until the names of their single locations are known.
+     */
+    private final class Merger implements ClusterVisitor {
+        private final List<Cluster> changes;
+        private final ClusterVisitor visitor;
+        private int next;
+
+        private final long[] quadKeys = new long[NAMES_BATCH_SIZE];
+        private final int[] counts = new int[NAMES_BATCH_SIZE];
+        private final double[] latitudes = new double[NAMES_BATCH_SIZE];
+        private final double[] longitudes = new double[NAMES_BATCH_SIZE];
+        private final Location[] locations = new Location[NAMES_BATCH_SIZE];
+        private final long[] ids = new long[NAMES_BATCH_SIZE];
+        private int size;
+        private int unnamed;
+        private SQLException error;
+
+        Merger(List<Cluster> changes, ClusterVisitor visitor) {
+            this.changes = changes;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void visit(long quadKey, int count, double latitude, double longitude, Location location) {
+            while (next < changes.size() && changes.get(next).quadKey < quadKey) {
+                hold(changes.get(next++));
+            }
+            if (next < changes.size() && changes.get(next).quadKey == quadKey) {
+                Cluster change = changes.get(next++);
+                int total = count + change.count;
+                latitude = (latitude * count + change.center.latitude * change.count) / total;
+                longitude = (longitude * count + change.center.longitude * change.count) / total;
+                hold(quadKey, total, latitude, longitude, null);
+            } else {
+                hold(quadKey, count, latitude, longitude, location);
+            }
+        }
+
+        void finish() throws SQLException {
+            while (next < changes.size()) {
+                hold(changes.get(next++));
+            }
+            flush();
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void hold(Cluster cluster) {
+            hold(cluster.quadKey, cluster.count, cluster.center.latitude, cluster.center.longitude, cluster.location);
+        }
+
+        private void hold(long quadKey, int count, double latitude, double longitude, Location location) {
+            if (error != null) {
+                return;
+            }
+            quadKeys[size] = quadKey;
+            counts[size] = count;
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            locations[size] = location;
+            size++;
+            if (location != null && location.name == null) {
+                ids[unnamed++] = location.id;
+            }
+            if (size == NAMES_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (error != null) {
+                return;
+            }
+            if (unnamed > 0) {
+                try {
+                    Map<Long, String> found = names.find(ids, unnamed);
+                    for (int i = 0; i < size; i++) {
+                        if (locations[i] != null && locations[i].name == null) {
+                            locations[i].name = found.get(locations[i].id);
+                        }
+                    }
+                } catch (SQLException e) {
+                    // The visit cannot throw, the error is thrown once it is done
+                    error = e;
+                    return;
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                visitor.visit(quadKeys[i], counts[i], latitudes[i], longitudes[i], locations[i]);
+                locations[i] = null;
+            }
+            size = 0;
+            unnamed = 0;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package clustering;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link PointStore} saved to a file, so the cluster index starts by mapping the file instead of reading
+ * the whole location table.
+ * <p>
+ * <br/>
+ * The file is little endian. A header of {@link #HEADER_SIZE} bytes holds the magic "PNTS", a version int of
+ * {@link #VERSION}, the location count as an int, a reserved int, the id of the last location_log row
+ * the snapshot includes as a long and the CRC32 of the columns as a long. The four columns of the store follow:
+ * the quad keys as longs, the latitudes and longitudes as floats and the ids as ints.
+ * <p>
+ * <br/>
+ * The columns are mapped privately: the store can mark removed locations in its copy of the pages without
+ * writing them to the file. The file is written next to its final name and renamed once complete,
+ * so a crash never leaves half a snapshot behind.
+ */
+public class PointSnapshot {
+
+    public static final int MAGIC = 0x53544e50;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The locations of the snapshot.
+     */
+    public final PointStore store;
+    /**
+     * The id of the last change of the location_log the snapshot includes.
+     */
+    public final long logId;
+
+    private PointSnapshot(PointStore store, long logId) {
+        this.store = store;
+        this.logId = logId;
+    }
+
+    /**
+     * Maps a snapshot file, after checking its header and its checksum.
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static PointSnapshot map(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        // Private mappings need a channel open for writing, even though they never write to the file
+        RandomAccessFile input = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException(file + " has version " + header.getInt(4) + " instead of " + VERSION);
+            }
+            int size = header.getInt(8);
+            long logId = header.getLong(16);
+            long checksum = header.getLong(24);
+            if (size < 0 || channel.size() != HEADER_SIZE + 20L * size) {
+                throw new IOException(file + " should hold " + size + " locations but has " + channel.size() + " bytes");
+            }
+
+            // Every column is mapped on its own, so each one can be up to 2GB
+            long position = HEADER_SIZE;
+            MappedByteBuffer keys = map(channel, position, 8L * size);
+            MappedByteBuffer latitudes = map(channel, position += 8L * size, 4L * size);
+            MappedByteBuffer longitudes = map(channel, position += 4L * size, 4L * size);
+            MappedByteBuffer ids = map(channel, position + 4L * size, 4L * size);
+
+            CRC32 crc = new CRC32();
+            update(crc, keys);
+            update(crc, latitudes);
+            update(crc, longitudes);
+            update(crc, ids);
+            if (crc.getValue() != checksum) {
+                throw new IOException(file + " is corrupted, its checksum does not match");
+            }
+
+            return new PointSnapshot(new PointStore(keys.asLongBuffer(), latitudes.asFloatBuffer(),
+                    longitudes.asFloatBuffer(), ids.asIntBuffer(), size), logId);
+        } finally {
+            // The mappings stay valid once the channel is closed
+            input.close();
+        }
+    }
+
+    /**
+     * Writes a store to a snapshot file, replacing the previous one.
+     *
+     * @param store the locations
+     * @param logId the id of the last change of the location_log the store includes
+     * @param file
+     * @throws IOException
+     */
+    public static void write(PointStore store, long logId, File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        int size = store.size();
+        RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+        try {
+            output.setLength(0);
+            FileChannel channel = output.getChannel();
+            channel.position(HEADER_SIZE);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < size; i++) {
+                flushIfFull(channel, buffer, crc, 8);
+                buffer.putLong(store.getQuadKey(i));
+            }
+            for (int i = 0; i < size; i++) {
+                flushIfFull(channel, buffer, crc, 4);
+                buffer.putFloat(store.getLatitude(i));
+            }
+            for (int i = 0; i < size; i++) {
+                flushIfFull(channel, buffer, crc, 4);
+                buffer.putFloat(store.getLongitude(i));
+            }
+            for (int i = 0; i < size; i++) {
+                flushIfFull(channel, buffer, crc, 4);
+                buffer.putInt(store.getId(i));
+            }
+            flushIfFull(channel, buffer, crc, BUFFER_SIZE);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(0).putLong(logId).putLong(crc.getValue()).flip();
+            channel.position(0);
+            writeFully(channel, header);
+            channel.force(true);
+        } finally {
+            output.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("A column of " + length + " bytes does not fit in a buffer");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.PRIVATE, position, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static void update(CRC32 crc, MappedByteBuffer column) {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        ByteBuffer source = column.duplicate();
+        while (source.hasRemaining()) {
+            int length = Math.min(bytes.length, source.remaining());
+            source.get(bytes, 0, length);
+            crc.update(bytes, 0, length);
+        }
+    }
+
+    /**
+     * Writes out the buffer when it has no room left for the next value.
+     */
+    private static void flushIfFull(FileChannel channel, ByteBuffer buffer, CRC32 crc, int needed) throws IOException {
+        if (buffer.remaining() >= needed) {
+            return;
+        }
+        buffer.flip();
+        crc.update(buffer.array(), 0, buffer.limit());
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package clustering;
+
+import models.Location;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A columnar snapshot of the locations, sorted by their {@link ZoomLevel#Z19} {@link QuadKey}.
+ * <p>
+ * <br/>
+ * Every location takes 20 bytes in four parallel columns: its quad key as a long, its latitude and longitude
+ * as floats (about a meter apart at most) and its id as an int. There are no objects per location, so the
+ * columns can hold tens of millions of locations, on the heap or off it in direct buffers or mapped from a {@link PointSnapshot}.
+ * The names stay in the database.
+ * <p>
+ * <br/>
+ * Since the keys are sorted and every tile is a contiguous range of keys, see {@link QuadKey}, the clusters
+ * of a tile at any zoom level are the runs of keys sharing the same ancestor: visiting the clusters of some
+ * bounds is a binary search per key range of {@link QuadTile#getCoveringRanges(LatLng, LatLng, ZoomLevel, int)}
+ * followed by a linear scan of the locations inside it.
+ * <p>
+ * <br/>
+ * Large scans, such as a whole country at a low zoom level, can be split into {@link ForkJoinPool} tasks of
+ * {@link #TASK_SIZE} locations, however few tiles they cover. The tasks fill their own partial clusters,
+ * which are then visited in order on the calling thread, merging the two halves of the tiles cut between two
+ * tasks. Scans of fewer than {@link #PARALLEL_THRESHOLD} locations stay on the calling thread.
+ * <p>
+ * <br/>
+ * The store is immutable except for {@link #remove(long, long)}, which marks a location as removed by
+ * setting its latitude to NaN. New locations go elsewhere until the store is rebuilt, see {@link PointIndex}.
+ */
+public class PointStore {
+
+    /**
+     * How many locations a parallel aggregation task scans.
+     */
+    public static final int TASK_SIZE = 64 * 1024;
+
+    /**
+     * The number of locations in view below which the aggregation is not split into tasks.
+     */
+    public static final int PARALLEL_THRESHOLD = 4 * TASK_SIZE;
+
+    private static final int BYTES_PER_POINT = 8 + 4 + 4 + 4;
+
+    private final LongBuffer keys;
+    private final FloatBuffer latitudes;
+    private final FloatBuffer longitudes;
+    private final IntBuffer ids;
+    private final int size;
+    private int removed;
+
+    /**
+     * Wraps columns already sorted by key, for example mapped from a file.
+     *
+     * @param keys       the {@link ZoomLevel#Z19} quad keys, in ascending order
+     * @param latitudes  the latitudes, NaN for the removed locations
+     * @param longitudes the longitudes
+     * @param ids        the ids
+     * @param size       how many locations the columns hold, from index 0
+     */
+    PointStore(LongBuffer keys, FloatBuffer latitudes, FloatBuffer longitudes, IntBuffer ids, int size) {
+        this.keys = keys;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.ids = ids;
+        this.size = size;
+    }
+
+    /**
+     * @return how many locations the store holds, removed ones included.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return how many locations have been removed since the store was built.
+     */
+    public synchronized int removed() {
+        return removed;
+    }
+
+    /**
+     * @return the memory used by the columns, in bytes.
+     */
+    public long getMemoryUsage() {
+        return (long) keys.capacity() * BYTES_PER_POINT;
+    }
+
+    long getQuadKey(int index) {
+        return keys.get(index);
+    }
+
+    float getLatitude(int index) {
+        return latitudes.get(index);
+    }
+
+    float getLongitude(int index) {
+        return longitudes.get(index);
+    }
+
+    int getId(int index) {
+        return ids.get(index);
+    }
+
+    /**
+     * Marks a location as removed, its position keeps its place in the columns.
+     *
+     * @param quadKey the {@link QuadKey} of the location at {@link ZoomLevel#Z19}
+     * @param id      the id of the location
+     * @return true if the location was found
+     */
+    public synchronized boolean remove(long quadKey, long id) {
+        for (int i = lowerBound(quadKey); i < size && keys.get(i) == quadKey; i++) {
+            if (ids.get(i) == id && !Float.isNaN(latitudes.get(i))) {
+                latitudes.put(i, Float.NaN);
+                removed++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Visits all the clusters at the given zoom level whose tiles intersect the given bounds, in quad key order.
+     * The location of a single location cluster only has its id, position and quad key, not its name.
+     *
+     * @param sw      south west bound {@link LatLng}
+     * @param ne      north east bound {@link LatLng}
+     * @param zoom    the zoom level of the clusters
+     * @param visitor receives the clusters
+     */
+    public void visitClusters(LatLng sw, LatLng ne, ZoomLevel zoom, ClusterVisitor visitor) {
+        visitClusters(sw, ne, zoom, null, visitor);
+    }
+
+    /**
+     * Visits all the clusters at the given zoom level whose tiles intersect the given bounds, in quad key order,
+     * splitting the scan into tasks of a pool when there are enough locations in view.
+     *
+     * @param sw      south west bound {@link LatLng}
+     * @param ne      north east bound {@link LatLng}
+     * @param zoom    the zoom level of the clusters
+     * @param pool    the pool of the aggregation tasks, or null to aggregate on the calling thread
+     * @param visitor receives the clusters
+     */
+    public void visitClusters(LatLng sw, LatLng ne, ZoomLevel zoom, ForkJoinPool pool, ClusterVisitor visitor) {
+        // Exact ranges: scanning the locations of a tile outside of the bounds costs more than a binary search
+        long[] ranges = QuadTile.getCoveringRanges(sw, ne, zoom, Integer.MAX_VALUE);
+        int[] bounds = new int[ranges.length];
+        for (int i = 0; i < ranges.length; i += 2) {
+            bounds[i] = lowerBound(QuadKey.min(ranges[i]));
+            bounds[i + 1] = lowerBound(QuadKey.max(ranges[i + 1]) + 1);
+        }
+        visit(bounds, zoom.zoom, pool, visitor);
+    }
+
+    /**
+     * Visits all the clusters at the given zoom level inside a tile of a lower (or the same) zoom level.
+     *
+     * @param quadKey the {@link QuadKey} of the tile
+     * @param zoom    the zoom level of the clusters
+     * @param visitor receives the clusters
+     */
+    public void visitClusters(long quadKey, ZoomLevel zoom, ClusterVisitor visitor) {
+        visitClusters(quadKey, zoom, null, visitor);
+    }
+
+    /**
+     * Visits all the clusters at the given zoom level inside a tile of a lower (or the same) zoom level,
+     * splitting the scan into tasks of a pool when there are enough locations in the tile.
+     *
+     * @param quadKey the {@link QuadKey} of the tile
+     * @param zoom    the zoom level of the clusters
+     * @param pool    the pool of the aggregation tasks, or null to aggregate on the calling thread
+     * @param visitor receives the clusters
+     */
+    public void visitClusters(long quadKey, ZoomLevel zoom, ForkJoinPool pool, ClusterVisitor visitor) {
+        int[] bounds = {lowerBound(QuadKey.min(quadKey)), lowerBound(QuadKey.max(quadKey) + 1)};
+        visit(bounds, zoom.zoom, pool, visitor);
+    }
+
+    /**
+     * Aggregates the locations between pairs of [start, end) indexes, in parallel if there are enough of them.
+     */
+    private void visit(int[] bounds, int zoom, ForkJoinPool pool, ClusterVisitor visitor) {
+        int shift = QuadKey.shift(zoom);
+        long total = 0;
+        for (int i = 0; i < bounds.length; i += 2) {
+            total += bounds[i + 1] - bounds[i];
+        }
+        if (pool == null || total < PARALLEL_THRESHOLD) {
+            for (int i = 0; i < bounds.length; i += 2) {
+                visit(bounds[i], bounds[i + 1], shift, zoom, visitor);
+            }
+            return;
+        }
+
+        List<int[]> slices = new ArrayList<int[]>();
+        for (int i = 0; i < bounds.length; i += 2) {
+            slice(bounds[i], bounds[i + 1], slices);
+        }
+        Partial[] partials = new Partial[slices.size()];
+        pool.invoke(new Aggregation(slices, partials, 0, partials.length, shift, zoom));
+        Joiner joiner = new Joiner(visitor);
+        for (Partial partial : partials) {
+            partial.replay(joiner);
+        }
+        joiner.finish();
+    }
+
+    /**
+     * Cuts [start, end) into slices of {@link #TASK_SIZE} locations, the last one excepted.
+     * A tile may be cut between slices, see {@link Joiner}.
+     */
+    private static void slice(int start, int end, List<int[]> slices) {
+        while (start < end) {
+            int cut = end - start > TASK_SIZE ? start + TASK_SIZE : end;
+            slices.add(new int[]{start, cut});
+            start = cut;
+        }
+    }
+
+    /**
+     * Aggregates the runs of locations sharing the same tile between two indexes.
+     */
+    private void visit(int start, int end, int shift, int zoom, ClusterVisitor visitor) {
+        int i = start;
+        while (i < end) {
+            long tile = keys.get(i) >>> shift;
+            int count = 0;
+            double sumLatitude = 0;
+            double sumLongitude = 0;
+            int single = -1;
+            for (; i < end && keys.get(i) >>> shift == tile; i++) {
+                float latitude = latitudes.get(i);
+                if (latitude != latitude) {
+                    // Removed
+                    continue;
+                }
+                count++;
+                sumLatitude += latitude;
+                sumLongitude += longitudes.get(i);
+                single = i;
+            }
+            if (count > 0) {
+                visitor.visit(QuadKey.fromMorton(tile, zoom), count, sumLatitude / count, sumLongitude / count,
+                        count == 1 ? location(single) : null);
+            }
+        }
+    }
+
+    /**
+     * Splits the slices in halves until a task has a single one to aggregate.
+     */
+    private final class Aggregation extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<int[]> slices;
+        private final Partial[] partials;
+        private final int from;
+        private final int to;
+        private final int shift;
+        private final int zoom;
+
+        Aggregation(List<int[]> slices, Partial[] partials, int from, int to, int shift, int zoom) {
+            this.slices = slices;
+            this.partials = partials;
+            this.from = from;
+            this.to = to;
+            this.shift = shift;
+            this.zoom = zoom;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                int[] slice = slices.get(from);
+                Partial partial = new Partial();
+                visit(slice[0], slice[1], shift, zoom, partial);
+                partials[from] = partial;
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Aggregation(slices, partials, from, middle, shift, zoom),
+                    new Aggregation(slices, partials, middle, to, shift, zoom));
+        }
+    }
+
+    /**
+     * The clusters of a slice, kept in columns until they are visited on the calling thread.
+     */
+    private static final class Partial implements ClusterVisitor {
+        private long[] quadKeys = new long[64];
+        private int[] counts = new int[64];
+        private double[] latitudes = new double[64];
+        private double[] longitudes = new double[64];
+        private Location[] locations = new Location[64];
+        private int size;
+
+        @Override
+        public void visit(long quadKey, int count, double latitude, double longitude, Location location) {
+            if (size == quadKeys.length) {
+                int capacity = size * 2;
+                quadKeys = Arrays.copyOf(quadKeys, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                latitudes = Arrays.copyOf(latitudes, capacity);
+                longitudes = Arrays.copyOf(longitudes, capacity);
+                locations = Arrays.copyOf(locations, capacity);
+            }
+            quadKeys[size] = quadKey;
+            counts[size] = count;
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            locations[size] = location;
+            size++;
+        }
+
+        void replay(ClusterVisitor visitor) {
+            for (int i = 0; i < size; i++) {
+                visitor.visit(quadKeys[i], counts[i], latitudes[i], longitudes[i], locations[i]);
+            }
+        }
+    }
+
+    /**
+     * Merges the consecutive clusters of the same tile, the parts of a tile cut between two slices,
+     * before passing them on.
+     */
+    private static final class Joiner implements ClusterVisitor {
+        private final ClusterVisitor visitor;
+        private long quadKey;
+        private int count;
+        private double sumLatitude;
+        private double sumLongitude;
+        private Location location;
+
+        Joiner(ClusterVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void visit(long quadKey, int count, double latitude, double longitude, Location location) {
+            if (this.count > 0 && this.quadKey == quadKey) {
+                this.count += count;
+                this.sumLatitude += latitude * count;
+                this.sumLongitude += longitude * count;
+                this.location = null;
+                return;
+            }
+            finish();
+            this.quadKey = quadKey;
+            this.count = count;
+            this.sumLatitude = latitude * count;
+            this.sumLongitude = longitude * count;
+            this.location = location;
+        }
+
+        void finish() {
+            if (count > 0) {
+                visitor.visit(quadKey, count, sumLatitude / count, sumLongitude / count, location);
+                count = 0;
+                location = null;
+            }
+        }
+    }
+
+    private Location location(int index) {
+        Location location = new Location();
+        location.id = (long) ids.get(index);
+        location.latitude = (double) latitudes.get(index);
+        location.longitude = (double) longitudes.get(index);
+        location.quadKey = keys.get(index);
+        return location;
+    }
+
+    /**
+     * @return the index of the first location whose key is not less than the given key.
+     */
+    private int lowerBound(long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys.get(middle) < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Appends locations in ascending key order, growing the columns as needed.
+     */
+    public static final class Builder {
+        private final boolean offHeap;
+        private LongBuffer keys;
+        private FloatBuffer latitudes;
+        private FloatBuffer longitudes;
+        private IntBuffer ids;
+        private int size;
+        private long lastKey = Long.MIN_VALUE;
+
+        /**
+         * @param capacity the expected number of locations
+         * @param offHeap  true to hold the columns in direct buffers, outside of the Java heap
+         */
+        public Builder(int capacity, boolean offHeap) {
+            this.offHeap = offHeap;
+            allocate(Math.max(capacity, 16));
+        }
+
+        /**
+         * @param quadKey   the {@link QuadKey} of the location at {@link ZoomLevel#Z19}, not less than the previous one
+         * @param latitude
+         * @param longitude
+         * @param id
+         * @return
+         */
+        public Builder add(long quadKey, double latitude, double longitude, long id) {
+            if (quadKey < lastKey) {
+                throw new IllegalArgumentException("The locations must be added in ascending quad key order");
+            }
+            if (id < 0 || id > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Location ids are stored as ints: " + id);
+            }
+            if (size == keys.capacity()) {
+                allocate(size <= Integer.MAX_VALUE / 2 ? size * 2 : Integer.MAX_VALUE - 8);
+            }
+            keys.put(size, quadKey);
+            latitudes.put(size, (float) latitude);
+            longitudes.put(size, (float) longitude);
+            ids.put(size, (int) id);
+            size++;
+            lastKey = quadKey;
+            return this;
+        }
+
+        public PointStore build() {
+            return new PointStore(keys, latitudes, longitudes, ids, size);
+        }
+
+        private void allocate(int capacity) {
+            if (capacity <= size) {
+                throw new IllegalStateException("The store cannot hold more than " + size + " locations");
+            }
+            LongBuffer newKeys = offHeap ? direct(capacity, 8).asLongBuffer() : LongBuffer.allocate(capacity);
+            FloatBuffer newLatitudes = offHeap ? direct(capacity, 4).asFloatBuffer() : FloatBuffer.allocate(capacity);
+            FloatBuffer newLongitudes = offHeap ? direct(capacity, 4).asFloatBuffer() : FloatBuffer.allocate(capacity);
+            IntBuffer newIds = offHeap ? direct(capacity, 4).asIntBuffer() : IntBuffer.allocate(capacity);
+            if (keys != null) {
+                copy(keys, newKeys);
+                copy(latitudes, newLatitudes);
+                copy(longitudes, newLongitudes);
+                copy(ids, newIds);
+            }
+            keys = newKeys;
+            latitudes = newLatitudes;
+            longitudes = newLongitudes;
+            ids = newIds;
+        }
+
+        private void copy(LongBuffer from, LongBuffer to) {
+            LongBuffer source = from.duplicate();
+            source.limit(size).position(0);
+            to.put(source).clear();
+        }
+
+        private void copy(FloatBuffer from, FloatBuffer to) {
+            FloatBuffer source = from.duplicate();
+            source.limit(size).position(0);
+            to.put(source).clear();
+        }
+
+        private void copy(IntBuffer from, IntBuffer to) {
+            IntBuffer source = from.duplicate();
+            source.limit(size).position(0);
+            to.put(source).clear();
+        }
+
+        private static ByteBuffer direct(int capacity, int bytes) {
+            long length = (long) capacity * bytes;
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalStateException("A column of " + capacity + " locations does not fit in a buffer");
+            }
+            return ByteBuffer.allocateDirect((int) length).order(ByteOrder.nativeOrder());
+        }
+    }
+}
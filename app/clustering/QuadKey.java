@@ -0,0 +1,250 @@
+package clustering;
+
+import static clustering.ZoomLevel.MAX_ZOOM;
+
+/**
+ * Quad keys encoded as primitive longs.
+ * <p>
+ * <br/>
+ * A quad key string such as "0313" is a number in base 4 where every digit is the quarter of the parent tile
+ * (x bit + 2 * y bit). Interleaving the bits of the tile's x and y coordinates (a Morton code) gives exactly
+ * the same number, so the key can be computed and taken apart with a few bitwise operations and no allocations.
+ * <p>
+ * <br/>
+ * The layout of a key is:
+ * <p>bits 5..42: the Morton code of the tile, left aligned as if it were a {@link ZoomLevel#Z19} key</p>
+ * <p>bits 0..4: the zoom level</p>
+ * <p>
+ * <br/>
+ * Left aligning the Morton code keeps every tile sorted right before all of its descendants, so the
+ * {@link ZoomLevel#Z19} keys of all the locations inside a tile form the contiguous range
+ * [{@link #min(long)}, {@link #max(long)}]. Shifting a {@link ZoomLevel#Z19} key right by {@link #shift(int)}
+ * gives the Morton code of its ancestor at that zoom level, which is what the database groups on.
+ *
+ * @see <a href="http://en.wikipedia.org/wiki/Z-order_curve">Z-order curve</a>
+ */
+public final class QuadKey {
+
+    public static final int ZOOM_BITS = 5;
+    public static final long ZOOM_MASK = (1L << ZOOM_BITS) - 1;
+
+    private QuadKey() {
+    }
+
+    /**
+     * Computes the key of the tile (x, y) at a zoom level.
+     *
+     * @param x
+     * @param y
+     * @param zoom
+     * @return
+     */
+    public static long of(int x, int y, int zoom) {
+        return fromMorton(spread(x) | (spread(y) << 1), zoom);
+    }
+
+    /**
+     * Computes the key of a tile from its Morton code at a zoom level.
+     *
+     * @param morton
+     * @param zoom
+     * @return
+     */
+    public static long fromMorton(long morton, int zoom) {
+        return (morton << (ZOOM_BITS + 2 * (MAX_ZOOM - zoom))) | zoom;
+    }
+
+    /**
+     * @return the zoom level of the key.
+     */
+    public static int zoom(long key) {
+        return (int) (key & ZOOM_MASK);
+    }
+
+    /**
+     * @return the Morton code of the tile at its own zoom level.
+     */
+    public static long morton(long key) {
+        return key >>> shift(zoom(key));
+    }
+
+    /**
+     * @return the x coordinate of the tile.
+     */
+    public static int x(long key) {
+        return compact(morton(key));
+    }
+
+    /**
+     * @return the y coordinate of the tile.
+     */
+    public static int y(long key) {
+        return compact(morton(key) >>> 1);
+    }
+
+    /**
+     * How many bits a {@link ZoomLevel#Z19} key has to be shifted right to get the Morton code of
+     * its ancestor at the given zoom level.
+     *
+     * @param zoom
+     * @return
+     */
+    public static int shift(int zoom) {
+        return ZOOM_BITS + 2 * (MAX_ZOOM - zoom);
+    }
+
+    /**
+     * Computes the key of the ancestor tile at a lower (or the same) zoom level.
+     *
+     * @param key
+     * @param zoom
+     * @return
+     */
+    public static long ancestor(long key, int zoom) {
+        if (zoom < 0 || zoom > zoom(key)) {
+            throw new IllegalArgumentException("Zoom level " + zoom + " is not an ancestor of the key's " + zoom(key));
+        }
+        return fromMorton(key >>> shift(zoom), zoom);
+    }
+
+    /**
+     * @return the key of the parent tile.
+     */
+    public static long parent(long key) {
+        return ancestor(key, zoom(key) - 1);
+    }
+
+    /**
+     * Computes the key of one of the four children of a tile.
+     *
+     * @param key
+     * @param digit the quad key digit of the child (0 = top left, 1 = top right, 2 = bottom left, 3 = bottom right)
+     * @return
+     */
+    public static long child(long key, int digit) {
+        final int zoom = zoom(key) + 1;
+        if (zoom > MAX_ZOOM) {
+            throw new IllegalArgumentException("Tiles at zoom level " + MAX_ZOOM + " have no children");
+        }
+        return fromMorton((morton(key) << 2) | digit, zoom);
+    }
+
+    /**
+     * Returns the quad key digit at a zoom level, that is which quarter of its parent the ancestor
+     * of the tile at that zoom level is.
+     *
+     * @param key
+     * @param zoom between 1 and the zoom level of the key
+     * @return
+     */
+    public static int digit(long key, int zoom) {
+        return (int) ((key >>> shift(zoom)) & 3);
+    }
+
+    /**
+     * Computes the key of the first descendant (in Morton order) of a tile at a deeper (or the same) zoom level.
+     *
+     * @param key
+     * @param zoom
+     * @return
+     */
+    public static long first(long key, int zoom) {
+        return (key & ~ZOOM_MASK) | zoom;
+    }
+
+    /**
+     * Computes the key of the last descendant (in Morton order) of a tile at a deeper (or the same) zoom level.
+     * All the descendants at that zoom level lie between {@link #first(long, int)} and this key.
+     *
+     * @param key
+     * @param zoom
+     * @return
+     */
+    public static long last(long key, int zoom) {
+        return fromMorton(((morton(key) + 1) << (2 * (zoom - zoom(key)))) - 1, zoom);
+    }
+
+    /**
+     * @return the smallest {@link ZoomLevel#Z19} key inside the tile.
+     */
+    public static long min(long key) {
+        return first(key, MAX_ZOOM);
+    }
+
+    /**
+     * @return the largest {@link ZoomLevel#Z19} key inside the tile.
+     */
+    public static long max(long key) {
+        return last(key, MAX_ZOOM);
+    }
+
+    /**
+     * @return true if the tile of the first key contains the tile of the second key.
+     */
+    public static boolean contains(long key, long other) {
+        return zoom(key) <= zoom(other) && ancestor(other, zoom(key)) == key;
+    }
+
+    /**
+     * Converts a key to its quad key string representation.
+     *
+     * @param key
+     * @return
+     */
+    public static String toString(long key) {
+        final int zoom = zoom(key);
+        final char[] digits = new char[zoom];
+        for (int i = 1; i <= zoom; i++) {
+            digits[i - 1] = (char) ('0' + digit(key, i));
+        }
+        return new String(digits);
+    }
+
+    /**
+     * Parses a quad key string.
+     *
+     * @param quadKey
+     * @return
+     */
+    public static long fromString(String quadKey) {
+        final int zoom = quadKey.length();
+        if (zoom > MAX_ZOOM) {
+            throw new IllegalArgumentException("Quad key is deeper than zoom level " + MAX_ZOOM + ": " + quadKey);
+        }
+        long morton = 0;
+        for (int i = 0; i < zoom; i++) {
+            int digit = quadKey.charAt(i) - '0';
+            if (digit < 0 || digit > 3) {
+                throw new IllegalArgumentException("Invalid QuadKey digit sequence.");
+            }
+            morton = (morton << 2) | digit;
+        }
+        return fromMorton(morton, zoom);
+    }
+
+    /**
+     * Spreads the lower 32 bits of a value to the even bits of a long.
+     */
+    private static long spread(long v) {
+        v &= 0xFFFFFFFFL;
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+
+    /**
+     * The inverse of {@link #spread(long)}, collects the even bits of a long.
+     */
+    private static int compact(long v) {
+        v &= 0x5555555555555555L;
+        v = (v | (v >>> 1)) & 0x3333333333333333L;
+        v = (v | (v >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v >>> 4)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v >>> 8)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) v;
+    }
+}
@@ -2,6 +2,10 @@ package clustering;
 
 import models.Location;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import static clustering.LocationUtils.*;
 
 
@@ -58,42 +62,46 @@ public class QuadTile {
      */
     public final ZoomLevel zoom;
     /**
-     * The radius of the circle encircling the square tile.
-     */
-    public final double radius;
-    /**
-     * The quad key of this tile at the given zoom level.
+     * The {@link QuadKey} of this tile at the given zoom level.
      */
-    public final String quadKey;
+    public final long quadKey;
 
     /**
-     * The distance between the edge of the world map to the top left corner of the tile.
-     */
-    public final Point worldLeftTop;
-    /**
-     * The distance between the edge of the world map and the bottom right corner of the tile.
-     */
-    public final Point worldRightBottom;
-    /**
-     * The latitude and longitude of the top left corner of the tile.
+     * The latitude and longitude of the corners and of the center of the tile, and the radius of the circle
+     * encircling it, computed on first use since most tiles only need their key.
      */
-    public final LatLng topLeft;
-    /**
-     * The latitude and longitude of the top right corner of the tile.
-     */
-    public final LatLng topRight;
+    private volatile Corners corners;
+    private volatile LatLng center;
+    private volatile double radius = -1;
+
+    private static final class Corners {
+        final LatLng topLeft;
+        final LatLng topRight;
+        final LatLng bottomLeft;
+        final LatLng bottomRight;
+
+        Corners(LatLng topLeft, LatLng bottomRight) {
+            this.topLeft = topLeft;
+            this.bottomRight = bottomRight;
+            this.bottomLeft = new LatLng(bottomRight.latitude, topLeft.longitude);
+            this.topRight = new LatLng(topLeft.latitude, bottomRight.longitude);
+        }
+    }
+
     /**
-     * The latitude and longitude of the bottom left corner of the tile.
+     * The radius only bounds the tile, so the spherical distance is accurate enough.
      */
-    public final LatLng bottomLeft;
+    public static final DistanceMode RADIUS_MODE = DistanceMode.HAVERSINE;
+
     /**
-     * The latitude and longitude of the bottom right corner of the tile.
+     * How many tiles are interned by {@link #get(int, int, ZoomLevel)}, a power of two.
      */
-    public final LatLng bottomRight;
+    private static final int CACHE_SIZE = 1 << 14;
+
     /**
-     * The latitude and longitude of the center of the tile.
+     * The interned tiles, each key has a single slot and a new tile simply replaces the one in its slot.
      */
-    public final LatLng center;
+    private static final AtomicReferenceArray<QuadTile> cache = new AtomicReferenceArray<QuadTile>(CACHE_SIZE);
 
     /**
      * The top left neighbouring tile.
@@ -142,45 +150,193 @@ public class QuadTile {
      * @return
      */
     public static QuadTile getTileFromLatLng(LatLng latLng, ZoomLevel zoom) {
-        final Point center = latLngToWorldPoint(latLng, zoom);
-        final Point tile = worldPointToTileXY(center);
-        return new QuadTile(tile.x, tile.y, zoom);
+        return get(longitudeToTileX(latLng.longitude, zoom), latitudeToTileY(latLng.latitude, zoom), zoom);
     }
 
     /**
-     * Computes the {@link QuadTile} for a given quad key.
+     * Computes the {@link QuadTile} for a given {@link QuadKey}.
      *
      * @param quadKey
      * @return
      */
-    public static QuadTile getTileFromQuadKey(final String quadKey) {
-        int tileX = 0, tileY = 0;
-        int zoom = quadKey.length();
+    public static QuadTile getTileFromQuadKey(final long quadKey) {
+        return get(QuadKey.x(quadKey), QuadKey.y(quadKey), ZoomLevel.get(QuadKey.zoom(quadKey)));
+    }
 
-        for (int i = zoom; i > 0; i--) {
-            int mask = 1 << (i - 1);
-            switch (quadKey.charAt(zoom - i)) {
-                case '0':
-                    break;
+    /**
+     * Returns the tile at (x, y) for a zoom level, reusing the same instance while it stays in the
+     * bounded cache of recently used tiles.
+     *
+     * @param x
+     * @param y
+     * @param zoom
+     * @return
+     */
+    public static QuadTile get(int x, int y, ZoomLevel zoom) {
+        long quadKey = QuadKey.of(x, y, zoom.zoom);
+        // Spread the neighbouring keys over the slots
+        long hash = quadKey * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash >>> 40) & (CACHE_SIZE - 1);
+        QuadTile tile = cache.get(slot);
+        if (tile == null || tile.quadKey != quadKey) {
+            tile = new QuadTile(x, y, zoom);
+            cache.set(slot, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Computes the (x, y) coordinates of the top left tile of the given bounds at a zoom level.
+     * Tile y grows from north to south, so it is the tile of the north west corner.
+     *
+     * @param sw
+     * @param ne
+     * @param zoom
+     * @return
+     */
+    public static Point getMinTileXY(LatLng sw, LatLng ne, ZoomLevel zoom) {
+        return new Point(longitudeToTileX(sw.longitude, zoom), latitudeToTileY(ne.latitude, zoom));
+    }
 
-                case '1':
-                    tileX |= mask;
-                    break;
+    /**
+     * Computes the (x, y) coordinates of the bottom right tile of the given bounds at a zoom level,
+     * that is the tile of the south east corner.
+     *
+     * @param sw
+     * @param ne
+     * @param zoom
+     * @return
+     */
+    public static Point getMaxTileXY(LatLng sw, LatLng ne, ZoomLevel zoom) {
+        return new Point(longitudeToTileX(ne.longitude, zoom), latitudeToTileY(sw.latitude, zoom));
+    }
+
+    /**
+     * Computes the (x, y) coordinates of the top left descendant of a tile at a deeper zoom level.
+     *
+     * @param quadKey
+     * @param zoom
+     * @return
+     */
+    public static Point getMinTileXY(long quadKey, ZoomLevel zoom) {
+        final int shift = zoom.zoom - QuadKey.zoom(quadKey);
+        return new Point(QuadKey.x(quadKey) << shift, QuadKey.y(quadKey) << shift);
+    }
+
+    /**
+     * Computes the (x, y) coordinates of the bottom right descendant of a tile at a deeper zoom level.
+     *
+     * @param quadKey
+     * @param zoom
+     * @return
+     */
+    public static Point getMaxTileXY(long quadKey, ZoomLevel zoom) {
+        final int shift = zoom.zoom - QuadKey.zoom(quadKey);
+        return new Point(((QuadKey.x(quadKey) + 1) << shift) - 1, ((QuadKey.y(quadKey) + 1) << shift) - 1);
+    }
+
+    /**
+     * Computes the {@link QuadKey}s of all the tiles intersecting the given bounds at a zoom level.
+     *
+     * @param sw
+     * @param ne
+     * @param zoom
+     * @return
+     */
+    public static List<Long> getQuadKeys(LatLng sw, LatLng ne, ZoomLevel zoom) {
+        final Point min = getMinTileXY(sw, ne, zoom);
+        final Point max = getMaxTileXY(sw, ne, zoom);
+        List<Long> keys = new ArrayList<Long>();
+        for (int y = min.y; y <= max.y; y++) {
+            for (int x = min.x; x <= max.x; x++) {
+                keys.add(QuadKey.of(x, y, zoom.zoom));
+            }
+        }
+        return keys;
+    }
 
-                case '2':
-                    tileY |= mask;
-                    break;
+    /**
+     * Computes the smallest set of {@link QuadKey}s whose tiles exactly cover the tiles intersecting
+     * the given bounds at a zoom level. Tiles fully inside the bounds are returned as a single
+     * key of a lower zoom level instead of all their descendants. The keys are sorted in Morton order.
+     *
+     * @param sw
+     * @param ne
+     * @param zoom
+     * @return
+     */
+    public static List<Long> getCoveringQuadKeys(LatLng sw, LatLng ne, ZoomLevel zoom) {
+        List<Long> keys = new ArrayList<Long>();
+        cover(0, 0, 0, zoom.zoom, getMinTileXY(sw, ne, zoom), getMaxTileXY(sw, ne, zoom), keys);
+        return keys;
+    }
 
-                case '3':
-                    tileX |= mask;
-                    tileY |= mask;
-                    break;
+    /**
+     * Computes the ranges of {@link QuadKey}s at a zoom level which contain all the tiles intersecting
+     * the given bounds. The result holds pairs of inclusive [from, to] keys sorted in Morton order,
+     * so a query can use range scans on an index of the keys.
+     * <p>
+     * <br/>
+     * When the covering needs more than maxRanges ranges the closest ones are merged, so the
+     * ranges can then include a few tiles outside of the bounds.
+     *
+     * @param sw
+     * @param ne
+     * @param zoom
+     * @param maxRanges the maximum number of ranges to return
+     * @return
+     */
+    public static long[] getCoveringRanges(LatLng sw, LatLng ne, ZoomLevel zoom, int maxRanges) {
+        List<Long> keys = getCoveringQuadKeys(sw, ne, zoom);
+
+        // Join the prefixes whose descendants follow each other
+        long[] ranges = new long[keys.size() * 2];
+        int size = 0;
+        for (long key : keys) {
+            long from = QuadKey.first(key, zoom.zoom);
+            long to = QuadKey.last(key, zoom.zoom);
+            if (size > 0 && QuadKey.morton(ranges[size - 1]) + 1 == QuadKey.morton(from)) {
+                ranges[size - 1] = to;
+            } else {
+                ranges[size++] = from;
+                ranges[size++] = to;
+            }
+        }
 
-                default:
-                    throw new IllegalArgumentException("Invalid QuadKey digit sequence.");
+        // Close the smallest gaps until there are few enough ranges
+        while (size / 2 > Math.max(maxRanges, 1)) {
+            int smallest = 1;
+            for (int i = 3; i < size - 1; i += 2) {
+                if (ranges[i + 1] - ranges[i] < ranges[smallest + 1] - ranges[smallest]) {
+                    smallest = i;
+                }
             }
+            System.arraycopy(ranges, smallest + 2, ranges, smallest, size - smallest - 2);
+            size -= 2;
+        }
+
+        long[] result = new long[size];
+        System.arraycopy(ranges, 0, result, 0, size);
+        return result;
+    }
+
+    private static void cover(int x, int y, int depth, int zoom, Point min, Point max, List<Long> keys) {
+        // The range of tiles at the requested zoom covered by this tile
+        int shift = zoom - depth;
+        int fromX = x << shift;
+        int toX = ((x + 1) << shift) - 1;
+        int fromY = y << shift;
+        int toY = ((y + 1) << shift) - 1;
+        if (toX < min.x || fromX > max.x || toY < min.y || fromY > max.y) {
+            return;
+        }
+        if (fromX >= min.x && toX <= max.x && fromY >= min.y && toY <= max.y) {
+            keys.add(QuadKey.of(x, y, depth));
+            return;
+        }
+        for (int digit = 0; digit < 4; digit++) {
+            cover((x << 1) | (digit & 1), (y << 1) | (digit >> 1), depth + 1, zoom, min, max, keys);
         }
-        return new QuadTile(tileX, tileY, ZoomLevel.get(zoom));
     }
 
 
@@ -188,30 +344,89 @@ public class QuadTile {
         this.x = x;
         this.y = y;
         this.zoom = zoom;
+        this.quadKey = getQuadKey();
+    }
 
-        worldLeftTop = new Point(x * TILE_SIZE, y * TILE_SIZE);
-        worldRightBottom = new Point((x + 1) * TILE_SIZE, (y + 1) * TILE_SIZE);
+    /**
+     * @return the distance between the edge of the world map to the top left corner of the tile.
+     */
+    public Point getWorldLeftTop() {
+        return new Point(x * TILE_SIZE, y * TILE_SIZE);
+    }
 
-        topLeft = worldPointToLatLng(worldLeftTop, zoom);
-        bottomRight = worldPointToLatLng(worldRightBottom, zoom);
+    /**
+     * @return the distance between the edge of the world map and the bottom right corner of the tile.
+     */
+    public Point getWorldRightBottom() {
+        return new Point((x + 1) * TILE_SIZE, (y + 1) * TILE_SIZE);
+    }
+
+    /**
+     * @return the latitude and longitude of the top left corner of the tile.
+     */
+    public LatLng getTopLeft() {
+        return getCorners().topLeft;
+    }
+
+    /**
+     * @return the latitude and longitude of the top right corner of the tile.
+     */
+    public LatLng getTopRight() {
+        return getCorners().topRight;
+    }
 
-        bottomLeft = new LatLng(bottomRight.latitude, topLeft.longitude);
-        topRight = new LatLng(topLeft.latitude, bottomRight.longitude);
+    /**
+     * @return the latitude and longitude of the bottom left corner of the tile.
+     */
+    public LatLng getBottomLeft() {
+        return getCorners().bottomLeft;
+    }
+
+    /**
+     * @return the latitude and longitude of the bottom right corner of the tile.
+     */
+    public LatLng getBottomRight() {
+        return getCorners().bottomRight;
+    }
 
-        // (BR - TL) / 2 + TL
-        //double halfX = (bottomRight.longitude + topLeft.longitude) / 2.0;
-        // (TL - BR) / 2 + BR
-        //double halfY = (bottomRight.latitude + topLeft.latitude) / 2.0;
-        //center = new LatLng(halfY, halfX);
+    /**
+     * @return the latitude and longitude of the center of the tile.
+     */
+    public LatLng getCenter() {
+        LatLng result = center;
+        if (result == null) {
+            // (BR - TL) / 2 + TL
+            int centerX = x * TILE_SIZE + TILE_SIZE / 2;
+            // (TL - BR) / 2 + BR
+            int centerY = y * TILE_SIZE + TILE_SIZE / 2;
+            result = worldPointToLatLng(new Point(centerX, centerY), zoom);
+            center = result;
+        }
+        return result;
+    }
 
-        // (BR - TL) / 2 + TL
-        int centerX = (worldRightBottom.x + worldLeftTop.x) / 2;
-        // (TL - BR) / 2 + BR
-        int centerY = (worldRightBottom.y + worldLeftTop.y) / 2;
-        center = worldPointToLatLng(new Point(centerX, centerY), zoom);
+    /**
+     * @return the radius in meters of the circle encircling the square tile, see {@link #RADIUS_MODE}.
+     */
+    public double getRadius() {
+        double result = radius;
+        if (result < 0) {
+            LatLng center = getCenter();
+            LatLng topLeft = getTopLeft();
+            result = RADIUS_MODE.distance(center.latitude, center.longitude, topLeft.latitude, topLeft.longitude);
+            radius = result;
+        }
+        return result;
+    }
 
-        radius = distanceBetween(center.latitude, center.longitude, topLeft.latitude, topLeft.longitude);
-        quadKey = getQuadKey();
+    private Corners getCorners() {
+        // Computing the corners twice on a race is harmless, they are the same values
+        Corners result = corners;
+        if (result == null) {
+            result = new Corners(worldPointToLatLng(getWorldLeftTop(), zoom), worldPointToLatLng(getWorldRightBottom(), zoom));
+            corners = result;
+        }
+        return result;
     }
 
 
@@ -242,8 +457,8 @@ public class QuadTile {
         double x = latLng.longitude;
         double y = latLng.latitude;
 
-        double centerX = center.longitude;
-        double centerY = center.latitude;
+        double centerX = getCenter().longitude;
+        double centerY = getCenter().latitude;
 
         // Check in what quarter of this tile is the point situated
         if (x < centerX && y < centerY) {
@@ -257,23 +472,23 @@ public class QuadTile {
         }
     }
 
-    public String getQuadKey() {
+    public long getQuadKey() {
         return LocationUtils.getQuadKey(x, y, zoom.zoom);
     }
 
     public QuadTile getNeighbourTile(int x, int y) {
         if (x < 0) {
-            x = zoom.maxTiles.x + x;
+            x = zoom.maxTiles.x + 1 + x;
         } else if (x > zoom.maxTiles.x) {
-            x = x - zoom.maxTiles.x;
+            x = x - zoom.maxTiles.x - 1;
         }
         if (y < 0) {
-            y = zoom.maxTiles.y + y;
+            y = zoom.maxTiles.y + 1 + y;
         } else if (y > zoom.maxTiles.y) {
-            y = y - zoom.maxTiles.y;
+            y = y - zoom.maxTiles.y - 1;
         }
 
-        return new QuadTile(x, y, zoom);
+        return get(x, y, zoom);
     }
 
     @Override
@@ -282,10 +497,10 @@ public class QuadTile {
         sb.append("x=").append(x);
         sb.append(", y=").append(y);
         sb.append(", zoom=").append(zoom);
-        sb.append(", worldLeftTop=").append(worldLeftTop);
-        sb.append(", worldRightBottom=").append(worldRightBottom);
-        sb.append(", topLeft=").append(topLeft);
-        sb.append(", bottomRight=").append(bottomRight);
+        sb.append(", worldLeftTop=").append(getWorldLeftTop());
+        sb.append(", worldRightBottom=").append(getWorldRightBottom());
+        sb.append(", topLeft=").append(getTopLeft());
+        sb.append(", bottomRight=").append(getBottomRight());
         sb.append('}');
         return sb.toString();
     }
@@ -0,0 +1,143 @@
+package clustering;
+
+import play.libs.F;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the blocking cluster queries of the requests off the Play dispatcher, on a bounded pool of threads
+ * sized to the connections it may hold, so slow viewports only wait for each other.
+ * <p>
+ * <br/>
+ * The queue in front of the pool is bounded as well: a query finding it full is rejected at once, so the
+ * caller can shed the request instead of letting the backlog grow. A query still not done after the timeout
+ * is answered with the timeout value; if it had not started yet, it does not run at all.
+ */
+public class QueryExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledThreadPoolExecutor timer;
+    private final long timeoutMillis;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * @param threads       how many queries run at the same time, at most the size of the connection pool
+     * @param queueSize     how many queries can wait for a thread
+     * @param timeoutMillis how long a request waits for its query, queueing included
+     */
+    public QueryExecutor(int threads, int queueSize, long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("cluster-query-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("cluster-query-timer-"));
+        // The timeouts of the queries done in time are cancelled, do not keep them until they expire
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Schedules a query.
+     *
+     * @param query     the query, run on a thread of the pool
+     * @param onTimeout the value of the promise if the query is not done within the timeout
+     * @return the promise of the value of the query, or of the exception it threw
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public <T> F.Promise<T> submit(final F.Function0<T> query, final T onTimeout) {
+        final scala.concurrent.Promise<T> promise = scala.concurrent.Promise$.MODULE$.apply();
+        final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (promise.trySuccess(onTimeout)) {
+                    timedOut.incrementAndGet();
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (promise.isCompleted()) {
+                        // Timed out in the queue, nobody waits for the answer any more
+                        return;
+                    }
+                    try {
+                        promise.trySuccess(query.apply());
+                    } catch (Throwable t) {
+                        promise.tryFailure(t);
+                    } finally {
+                        timeout.cancel(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            timeout.cancel(false);
+            rejected.incrementAndGet();
+            throw e;
+        }
+        return F.Promise.wrap(promise.future());
+    }
+
+    /**
+     * @return how many queries are running.
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return how many queries wait for a thread.
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return how many queries were rejected because the queue was full.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return how many queries were not done within the timeout.
+     */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * Stops the threads, the pending queries are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
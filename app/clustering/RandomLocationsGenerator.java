@@ -1,9 +1,17 @@
 package clustering;
 
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Created by evelina on 12/04/2014.
+ * <p>
+ * <br/>
+ * Besides the uniform locations of the static methods, a generator built with a {@link Builder} produces
+ * reproducible synthetic datasets following a {@link Distribution}. The same seed gives the same hotspots or
+ * cities, and every stream of the generator, see {@link #random(int)}, the same locations in the same order,
+ * so a dataset can be generated again on any number of threads, one stream per thread.
  */
 public class RandomLocationsGenerator {
 
@@ -11,9 +19,41 @@ public class RandomLocationsGenerator {
     // sw=51.508742,-3.240967
     // ne=54.316523,-0.736084
 
-    private static final Random random = new Random();
+    public enum Distribution {
+        /**
+         * Locations spread evenly within the bounds.
+         */
+        UNIFORM,
+        /**
+         * Locations around a few hotspots of the same weight, following a normal distribution.
+         */
+        HOTSPOTS,
+        /**
+         * Locations around many cities whose sizes follow a power law, the largest city of rank 1 holding
+         * 1/rank^exponent of the urban locations and spreading over a larger area, over a rural background.
+         */
+        CITIES
+    }
+
+    /**
+     * The share of the locations of {@link Distribution#CITIES} spread evenly, outside of the cities.
+     */
+    private static final double RURAL = 0.1;
 
     public static LatLng generate(LatLng sw, LatLng ne) {
+        return generate(sw, ne, ThreadLocalRandom.current());
+    }
+
+    /**
+     * Generates a location within bounds with the given generator, for example a
+     * {@link java.util.concurrent.ThreadLocalRandom} to avoid sharing one generator between threads.
+     *
+     * @param sw
+     * @param ne
+     * @param random
+     * @return
+     */
+    public static LatLng generate(LatLng sw, LatLng ne, Random random) {
         double latMin = sw.latitude;
         double latRange = ne.latitude - sw.latitude;
         double lngMin = sw.longitude;
@@ -21,4 +61,207 @@ public class RandomLocationsGenerator {
 
         return new LatLng(latMin + random.nextDouble() * latRange, lngMin + random.nextDouble() * lngRange);
     }
+
+    private final LatLng sw;
+    private final LatLng ne;
+    private final Distribution distribution;
+    private final long seed;
+
+    /**
+     * The centers of the hotspots or cities, their standard deviations in degrees and, for the cities,
+     * the cumulative weights used to pick one.
+     */
+    private final double[] centerLatitudes;
+    private final double[] centerLongitudes;
+    private final double[] sigmaLatitudes;
+    private final double[] sigmaLongitudes;
+    private final double[] cumulativeWeights;
+
+    private RandomLocationsGenerator(Builder builder) {
+        this.sw = builder.sw;
+        this.ne = builder.ne;
+        this.distribution = builder.distribution;
+        this.seed = builder.seed;
+
+        int centers = distribution == Distribution.HOTSPOTS ? builder.hotspots
+                : distribution == Distribution.CITIES ? builder.cities : 0;
+        centerLatitudes = new double[centers];
+        centerLongitudes = new double[centers];
+        sigmaLatitudes = new double[centers];
+        sigmaLongitudes = new double[centers];
+        cumulativeWeights = new double[centers];
+
+        double latRange = ne.latitude - sw.latitude;
+        double lngRange = ne.longitude - sw.longitude;
+        Random random = new Random(mix(seed));
+        double total = 0;
+        for (int i = 0; i < centers; i++) {
+            centerLatitudes[i] = sw.latitude + random.nextDouble() * latRange;
+            centerLongitudes[i] = sw.longitude + random.nextDouble() * lngRange;
+            double sigma;
+            if (distribution == Distribution.HOTSPOTS) {
+                sigma = 0.01 + random.nextDouble() * 0.04;
+            } else {
+                // The area of a city grows with its size, so its radius with the square root of its weight
+                double weight = 1 / Math.pow(i + 1, builder.exponent);
+                total += weight;
+                cumulativeWeights[i] = total;
+                sigma = 0.02 * Math.sqrt(weight);
+            }
+            sigmaLatitudes[i] = sigma * latRange;
+            sigmaLongitudes[i] = sigma * lngRange;
+        }
+        for (int i = 0; i < centers; i++) {
+            cumulativeWeights[i] /= total;
+        }
+    }
+
+    public Distribution getDistribution() {
+        return distribution;
+    }
+
+    /**
+     * Creates the random generator of a stream of locations. Generators of different streams are independent,
+     * and a stream always produces the same locations for the same seed.
+     *
+     * @param stream the index of the stream, for example the index of the thread using it
+     * @return a generator to be used by a single thread
+     */
+    public Random random(int stream) {
+        return new Random(mix(seed + (stream + 1) * 0x9E3779B97F4A7C15L));
+    }
+
+    /**
+     * Generates a location of the distribution.
+     *
+     * @param random the generator of the stream
+     * @return
+     */
+    public LatLng generate(Random random) {
+        double[] latitude = new double[1];
+        double[] longitude = new double[1];
+        generate(random, latitude, longitude, 0, 1);
+        return new LatLng(latitude[0], longitude[0]);
+    }
+
+    /**
+     * Generates locations of the distribution into arrays, without allocating.
+     *
+     * @param random     the generator of the stream
+     * @param latitudes  receives the latitudes
+     * @param longitudes receives the longitudes
+     * @param from       the index of the first location
+     * @param to         the index after the last location
+     */
+    public void generate(Random random, double[] latitudes, double[] longitudes, int from, int to) {
+        double latRange = ne.latitude - sw.latitude;
+        double lngRange = ne.longitude - sw.longitude;
+        for (int i = from; i < to; i++) {
+            int center = pickCenter(random);
+            if (center < 0) {
+                latitudes[i] = sw.latitude + random.nextDouble() * latRange;
+                longitudes[i] = sw.longitude + random.nextDouble() * lngRange;
+                continue;
+            }
+            // The centers are within bounds, so at least a quarter of the draws are kept
+            double latitude;
+            double longitude;
+            do {
+                latitude = centerLatitudes[center] + random.nextGaussian() * sigmaLatitudes[center];
+                longitude = centerLongitudes[center] + random.nextGaussian() * sigmaLongitudes[center];
+            } while (latitude < sw.latitude || latitude > ne.latitude
+                    || longitude < sw.longitude || longitude > ne.longitude);
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+        }
+    }
+
+    /**
+     * @return the index of the hotspot or city of the next location, or -1 to spread it evenly.
+     */
+    private int pickCenter(Random random) {
+        switch (distribution) {
+            case HOTSPOTS:
+                return random.nextInt(centerLatitudes.length);
+            case CITIES:
+                if (random.nextDouble() < RURAL) {
+                    return -1;
+                }
+                int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble());
+                return Math.min(index >= 0 ? index : -index - 1, cumulativeWeights.length - 1);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Spreads the bits of a seed, so consecutive seeds give unrelated generators.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public static final class Builder {
+        private LatLng sw;
+        private LatLng ne;
+        private Distribution distribution = Distribution.UNIFORM;
+        private long seed;
+        private int hotspots = 16;
+        private int cities = 500;
+        private double exponent = 1.07;
+
+        public Builder() {
+        }
+
+        public Builder bounds(LatLng sw, LatLng ne) {
+            this.sw = sw;
+            this.ne = ne;
+            return this;
+        }
+
+        public Builder distribution(Distribution distribution) {
+            this.distribution = distribution;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder hotspots(int hotspots) {
+            this.hotspots = hotspots;
+            return this;
+        }
+
+        public Builder cities(int cities) {
+            this.cities = cities;
+            return this;
+        }
+
+        /**
+         * @param exponent the exponent of the power law of the city sizes, about 1 for real cities
+         * @return
+         */
+        public Builder exponent(double exponent) {
+            this.exponent = exponent;
+            return this;
+        }
+
+        public RandomLocationsGenerator build() {
+            if (sw == null || ne == null) {
+                throw new IllegalStateException("The bounds of the locations are needed");
+            }
+            if (!(sw.latitude < ne.latitude && sw.longitude < ne.longitude)) {
+                // No draw could fall within inverted bounds, or bounds crossing the antimeridian
+                throw new IllegalStateException("The south west bound must be south west of the north east bound");
+            }
+            if (hotspots < 1 || cities < 1) {
+                throw new IllegalStateException("At least one hotspot and one city are needed");
+            }
+            return new RandomLocationsGenerator(this);
+        }
+    }
 }
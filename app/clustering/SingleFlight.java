@@ -0,0 +1,96 @@
+package clustering;
+
+import play.libs.F;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one computation between the identical requests arriving while it is in flight.
+ * <p>
+ * <br/>
+ * The first request for a key starts the computation, the ones asking for the same key before it is done
+ * get the same promise instead of starting their own, and the key is forgotten as soon as the computation
+ * is done. Nothing is kept after that, so unlike a cache it never serves a stale value: it only flattens
+ * the bursts of identical requests, like every client opening the map at the default center at once.
+ *
+ * @param <K> the key of the computation, with equals and hashCode
+ * @param <V> the value of the computation
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, F.Promise<V>> flights = new ConcurrentHashMap<K, F.Promise<V>>();
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+
+    /**
+     * Returns the promise of the computation in flight for a key, or starts it.
+     *
+     * @param key         identifies the computation
+     * @param computation starts the computation, only called if none is in flight for the key
+     * @return the promise shared by all the requests for the key until it is redeemed
+     * @throws RuntimeException whatever starting the computation threw, the requests which joined it
+     *                          meanwhile get a promise failing with it
+     */
+    public F.Promise<V> run(final K key, F.Function0<F.Promise<V>> computation) {
+        final scala.concurrent.Promise<V> promise = scala.concurrent.Promise$.MODULE$.apply();
+        final F.Promise<V> shared = F.Promise.wrap(promise.future());
+        F.Promise<V> inFlight = flights.putIfAbsent(key, shared);
+        if (inFlight != null) {
+            joined.incrementAndGet();
+            return inFlight;
+        }
+        started.incrementAndGet();
+
+        F.Promise<V> computed;
+        try {
+            computed = computation.apply();
+        } catch (Throwable t) {
+            flights.remove(key, shared);
+            promise.failure(t);
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new IllegalStateException(t);
+        }
+
+        F.Promise<V> done = computed.map(new F.Function<V, V>() {
+            @Override
+            public V apply(V value) {
+                flights.remove(key, shared);
+                return value;
+            }
+        }).recover(new F.Function<Throwable, V>() {
+            @Override
+            public V apply(Throwable t) throws Throwable {
+                flights.remove(key, shared);
+                throw t;
+            }
+        });
+        promise.completeWith(done.wrapped());
+        return shared;
+    }
+
+    /**
+     * @return how many computations were started.
+     */
+    public long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * @return how many requests shared a computation started by another one.
+     */
+    public long getJoined() {
+        return joined.get();
+    }
+
+    /**
+     * @return how many computations are in flight.
+     */
+    public int getInFlight() {
+        return flights.size();
+    }
+}
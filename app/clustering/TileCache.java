@@ -0,0 +1,247 @@
+package clustering;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, least recently used cache of the clusters inside canonical tiles.
+ * <p>
+ * <br/>
+ * The clusters requested at a zoom level are grouped by their ancestor tile {@link #BLOCK_DEPTH} levels above,
+ * so each entry holds up to 4^{@link #BLOCK_DEPTH} clusters and two viewports looking at nearly the same area
+ * share the same entries no matter their exact bounds. The size of every entry is estimated in bytes
+ * and the least recently used entries are evicted once the total goes over the limit.
+ * <p>
+ * <br/>
+ * Writes invalidate every entry whose tile contains the written location, without taking the lock of the cache:
+ * every tile has a generation, shared with the few other tiles hashing to the same of {@link #GENERATION_SLOTS}
+ * slots, which the write increments. An entry cached at an older generation of its tile is a miss, and a load
+ * which started before the generation of its tile changed is not cached, so a stale result can never replace
+ * the invalidated one. The loads of the other tiles are kept.
+ */
+public class TileCache {
+
+    /**
+     * How many zoom levels above the clusters the cached tiles are.
+     */
+    public static final int BLOCK_DEPTH = 3;
+
+    /**
+     * How many generations the tiles share.
+     */
+    private static final int GENERATION_SLOTS = 4096;
+
+    /**
+     * Loads the clusters of a tile on a cache miss.
+     */
+    public interface Loader {
+        List<Cluster> load(long quadKey, ZoomLevel zoom) throws SQLException;
+    }
+
+    /**
+     * A snapshot of the cache statistics.
+     */
+    public static class Stats {
+        public long hits;
+        public long misses;
+        public double hitRate;
+        public long evictions;
+        public long invalidations;
+        public int entries;
+        public long bytes;
+        public long maxBytes;
+    }
+
+    private static final class Entry {
+        final List<Cluster> clusters;
+        final long bytes;
+        /**
+         * The generation of the tile when its clusters were loaded.
+         */
+        final long generation;
+
+        Entry(List<Cluster> clusters, long bytes, long generation) {
+            this.clusters = clusters;
+            this.bytes = bytes;
+            this.generation = generation;
+        }
+    }
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(256, 0.75f, true);
+
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private final AtomicLong invalidations = new AtomicLong();
+    /**
+     * The generations of the tiles, incremented on every invalidation of a tile to discard the loads which raced
+     * with it.
+     */
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_SLOTS);
+    /**
+     * Incremented when the whole cache is cleared, to discard all the loads which raced with it.
+     */
+    private long epoch;
+
+    /**
+     * @param maxBytes the estimated size in bytes the cache should not go over, 0 disables caching
+     */
+    public TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return false if the cache has no room at all.
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Computes the zoom level of the cached tiles holding the clusters of a zoom level.
+     *
+     * @param zoom the zoom level of the clusters
+     * @return
+     */
+    public static ZoomLevel getBlockZoom(ZoomLevel zoom) {
+        return ZoomLevel.get(zoom.zoom - BLOCK_DEPTH);
+    }
+
+    /**
+     * Returns the clusters at the given zoom level inside a cached tile, loading them on a miss.
+     *
+     * @param blockKey the {@link QuadKey} of the cached tile, at {@link #getBlockZoom(ZoomLevel)}
+     * @param zoom     the zoom level of the clusters
+     * @param loader   loads the clusters on a miss
+     * @return
+     * @throws SQLException
+     */
+    public List<Cluster> get(long blockKey, ZoomLevel zoom, Loader loader) throws SQLException {
+        final Long key = key(blockKey, zoom);
+        final int slot = slot(key);
+        final long loadGeneration;
+        final long loadEpoch;
+        synchronized (this) {
+            loadGeneration = generations.get(slot);
+            Entry entry = entries.get(key);
+            if (entry != null && entry.generation == loadGeneration) {
+                hits++;
+                return entry.clusters;
+            }
+            if (entry != null) {
+                // Invalidated since it was cached
+                entries.remove(key);
+                bytes -= entry.bytes;
+            }
+            misses++;
+            loadEpoch = epoch;
+        }
+
+        List<Cluster> clusters = loader.load(blockKey, zoom);
+        if (isEnabled()) {
+            put(key, clusters, slot, loadGeneration, loadEpoch);
+        }
+        return clusters;
+    }
+
+    /**
+     * @return true if the clusters of a tile are cached.
+     */
+    public synchronized boolean contains(long blockKey, ZoomLevel zoom) {
+        Long key = key(blockKey, zoom);
+        Entry entry = entries.get(key);
+        return entry != null && entry.generation == generations.get(slot(key));
+    }
+
+    /**
+     * Invalidates all the cached tiles containing a location, for every zoom level. Their entries are dropped
+     * the next time they are read or when they are evicted.
+     *
+     * @param quadKey the {@link QuadKey} of the location at {@link ZoomLevel#Z19}
+     */
+    public void invalidate(long quadKey) {
+        invalidations.incrementAndGet();
+        for (ZoomLevel zoom : ZoomLevel.values()) {
+            generations.incrementAndGet(slot(key(QuadKey.ancestor(quadKey, getBlockZoom(zoom).zoom), zoom)));
+        }
+    }
+
+    /**
+     * Drops all the cached tiles.
+     */
+    public synchronized void clear() {
+        epoch++;
+        invalidations.incrementAndGet();
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return a snapshot of the cache statistics.
+     */
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.hits = hits;
+        stats.misses = misses;
+        stats.hitRate = hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        stats.evictions = evictions;
+        stats.invalidations = invalidations.get();
+        stats.entries = entries.size();
+        stats.bytes = bytes;
+        stats.maxBytes = maxBytes;
+        return stats;
+    }
+
+    private synchronized void put(Long key, List<Cluster> clusters, int slot, long loadGeneration, long loadEpoch) {
+        if (loadEpoch != epoch || loadGeneration != generations.get(slot)) {
+            return;
+        }
+        Entry entry = new Entry(clusters, estimateSize(clusters), loadGeneration);
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += entry.bytes;
+
+        Iterator<Map.Entry<Long, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static Long key(long blockKey, ZoomLevel zoom) {
+        return (blockKey << QuadKey.ZOOM_BITS) | zoom.zoom;
+    }
+
+    private static int slot(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32) & (GENERATION_SLOTS - 1);
+    }
+
+    /**
+     * A rough estimate of the heap used by a list of clusters: the cluster, its five {@link LatLng}s
+     * and, for single location clusters, the location and its name.
+     */
+    private static long estimateSize(List<Cluster> clusters) {
+        // map entry, cache entry and list
+        long size = 64 + 24 + 40;
+        for (Cluster cluster : clusters) {
+            // list slot, cluster, 5 LatLng
+            size += 8 + 48 + 5 * 32;
+            if (cluster.location != null) {
+                size += 96 + (cluster.location.name != null ? 40 + 2 * cluster.location.name.length() : 0);
+            }
+        }
+        return size;
+    }
+}
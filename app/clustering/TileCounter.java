@@ -0,0 +1,360 @@
+package clustering;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static clustering.ZoomLevel.MAX_ZOOM;
+import static clustering.ZoomLevel.MIN_ZOOM;
+
+/**
+ * Counts locations in the tiles of every zoom level, for locations moving all the time, without ever
+ * blocking the readers.
+ * <p>
+ * <br/>
+ * The counters live in an open addressing table of primitive atomics keyed by the {@link QuadKey} of the tile.
+ * Every tile has a slot holding its key, the number of locations inside it, the sums of their latitudes and
+ * longitudes in fixed point ({@link #SCALE} units per degree) and the sum of their ids. A single location
+ * tile thus knows its location's id without keeping any list. Updates are atomic adds: adding a location
+ * adds to the 20 tiles on the path of its quad key, and {@link #move(long, LatLng, LatLng)} only changes the
+ * counts below the zoom level where the old and the new positions part, adjusting the sums above it.
+ * <p>
+ * <br/>
+ * Readers take no lock and see every counter as it is. A reader racing with a writer can see an update
+ * applied on some zoom levels and not yet on the others, or the count of a tile updated before its sums,
+ * for the few atomic adds the update takes. Writers share a lock which is only taken exclusively when the
+ * table is rebuilt, so they never wait on each other otherwise. An empty tile keeps its slot with a count of 0
+ * until the table fills up: it is then rebuilt with the non empty tiles only, doubling only if they still
+ * fill a quarter of it, so locations moving around forever do not make the table grow without bounds.
+ */
+public class TileCounter {
+
+    /**
+     * Fixed point units per degree of the sums, about a centimeter.
+     */
+    public static final double SCALE = 1e7;
+
+    private static final int COUNT = 0;
+    private static final int SUM_LATITUDE = 1;
+    private static final int SUM_LONGITUDE = 2;
+    private static final int SUM_IDS = 3;
+    private static final int FIELDS = 4;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    /**
+     * Receives the tiles of a visit.
+     */
+    public interface Visitor {
+        /**
+         * @param quadKey   the {@link QuadKey} of the tile
+         * @param count     how many locations are inside the tile
+         * @param latitude  the latitude of the centroid of the locations
+         * @param longitude the longitude of the centroid of the locations
+         * @param id        the id of the only location of the tile, or -1 if it has more than one
+         */
+        void visit(long quadKey, int count, double latitude, double longitude, long id);
+    }
+
+    private static final class Table {
+        /**
+         * The keys plus one, so 0 marks a free slot even for the zoom 0 tile whose key is 0.
+         */
+        final AtomicLongArray keys;
+        final AtomicLongArray values;
+        final AtomicInteger size = new AtomicInteger();
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicLongArray(capacity * FIELDS);
+            mask = capacity - 1;
+        }
+
+        /**
+         * @return the slot of a tile, or -1 if the tile has no slot.
+         */
+        int find(long quadKey) {
+            long stored = quadKey + 1;
+            for (int i = hash(quadKey) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long key = keys.get(i);
+                if (key == stored) {
+                    return i;
+                }
+                if (key == 0) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the slot of a tile, claimed if the tile has none yet.
+         */
+        int claim(long quadKey) {
+            long stored = quadKey + 1;
+            for (int i = hash(quadKey) & mask, probes = 0; probes <= mask; ) {
+                long key = keys.get(i);
+                if (key == stored) {
+                    return i;
+                }
+                if (key == 0) {
+                    if (keys.compareAndSet(i, 0, stored)) {
+                        size.incrementAndGet();
+                        return i;
+                    }
+                    // Another writer took the slot, maybe for the same tile: look at it again
+                    continue;
+                }
+                i = (i + 1) & mask;
+                probes++;
+            }
+            throw new IllegalStateException("The tile counter is full");
+        }
+
+        void add(long quadKey, long count, long latitude, long longitude, long id) {
+            int slot = claim(quadKey) * FIELDS;
+            values.getAndAdd(slot + COUNT, count);
+            values.getAndAdd(slot + SUM_LATITUDE, latitude);
+            values.getAndAdd(slot + SUM_LONGITUDE, longitude);
+            values.getAndAdd(slot + SUM_IDS, id);
+        }
+
+        long get(int slot, int field) {
+            return values.get(slot * FIELDS + field);
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Table table;
+
+    /**
+     * @param expectedTiles how many tiles the counter should hold before it first grows
+     */
+    public TileCounter(int expectedTiles) {
+        int capacity = 64;
+        while (capacity < 2L * expectedTiles && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        table = new Table(capacity);
+    }
+
+    /**
+     * Counts a location in all the tiles containing its position.
+     *
+     * @param id
+     * @param latLng
+     */
+    public void add(long id, LatLng latLng) {
+        long quadKey = LocationUtils.getQuadKey(latLng.latitude, latLng.longitude, ZoomLevel.Z19);
+        update(quadKey, MIN_ZOOM, 1, fixed(latLng.latitude), fixed(latLng.longitude), id);
+    }
+
+    /**
+     * Removes a location from all the tiles containing its position.
+     *
+     * @param id
+     * @param latLng the position the location was added or last moved at
+     */
+    public void remove(long id, LatLng latLng) {
+        long quadKey = LocationUtils.getQuadKey(latLng.latitude, latLng.longitude, ZoomLevel.Z19);
+        update(quadKey, MIN_ZOOM, -1, -fixed(latLng.latitude), -fixed(latLng.longitude), -id);
+    }
+
+    /**
+     * Moves a location. The tiles containing both positions keep their count and only have their sums adjusted,
+     * the location is counted in its new tiles before it is removed from its old ones.
+     *
+     * @param id
+     * @param from the position the location was added or last moved at
+     * @param to   the new position
+     */
+    public void move(long id, LatLng from, LatLng to) {
+        long oldQuadKey = LocationUtils.getQuadKey(from.latitude, from.longitude, ZoomLevel.Z19);
+        long newQuadKey = LocationUtils.getQuadKey(to.latitude, to.longitude, ZoomLevel.Z19);
+        long oldLatitude = fixed(from.latitude);
+        long oldLongitude = fixed(from.longitude);
+        long newLatitude = fixed(to.latitude);
+        long newLongitude = fixed(to.longitude);
+
+        // The first zoom level at which the two positions are in different tiles
+        int split = MIN_ZOOM;
+        while (split <= MAX_ZOOM && QuadKey.ancestor(oldQuadKey, split) == QuadKey.ancestor(newQuadKey, split)) {
+            split++;
+        }
+
+        lock.readLock().lock();
+        try {
+            Table current = table;
+            for (int zoom = MIN_ZOOM; zoom < split; zoom++) {
+                current.add(QuadKey.ancestor(newQuadKey, zoom), 0,
+                        newLatitude - oldLatitude, newLongitude - oldLongitude, 0);
+            }
+            for (int zoom = split; zoom <= MAX_ZOOM; zoom++) {
+                current.add(QuadKey.ancestor(newQuadKey, zoom), 1, newLatitude, newLongitude, id);
+            }
+            for (int zoom = split; zoom <= MAX_ZOOM; zoom++) {
+                current.add(QuadKey.ancestor(oldQuadKey, zoom), -1, -oldLatitude, -oldLongitude, -id);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        growIfNeeded();
+    }
+
+    /**
+     * @return how many locations are counted.
+     */
+    public int size() {
+        return getCount(QuadKey.of(0, 0, 0));
+    }
+
+    /**
+     * @param quadKey the {@link QuadKey} of a tile
+     * @return how many locations are inside the tile.
+     */
+    public int getCount(long quadKey) {
+        Table current = table;
+        int slot = current.find(quadKey);
+        return slot < 0 ? 0 : (int) current.get(slot, COUNT);
+    }
+
+    /**
+     * @return how many tiles have a slot, empty or not yet reclaimed.
+     */
+    public int getTiles() {
+        return table.size.get();
+    }
+
+    /**
+     * Visits the non empty tiles at the given zoom level which intersect the given bounds, in quad key order.
+     *
+     * @param sw      south west bound {@link LatLng}
+     * @param ne      north east bound {@link LatLng}
+     * @param zoom    the zoom level of the tiles
+     * @param visitor receives the tiles
+     */
+    public void visitTiles(LatLng sw, LatLng ne, ZoomLevel zoom, Visitor visitor) {
+        visit(table, 0, 0, 0, zoom.zoom, QuadTile.getMinTileXY(sw, ne, zoom), QuadTile.getMaxTileXY(sw, ne, zoom), visitor);
+    }
+
+    /**
+     * Visits the non empty tiles at the given zoom level inside a tile of a lower (or the same) zoom level.
+     *
+     * @param quadKey the {@link QuadKey} of the tile
+     * @param zoom    the zoom level of the tiles
+     * @param visitor receives the tiles
+     */
+    public void visitTiles(long quadKey, ZoomLevel zoom, Visitor visitor) {
+        visit(table, 0, 0, 0, zoom.zoom,
+                QuadTile.getMinTileXY(quadKey, zoom), QuadTile.getMaxTileXY(quadKey, zoom), visitor);
+    }
+
+    /**
+     * Walks down the non empty tiles intersecting the range of tiles, as a quad tree does with its nodes.
+     */
+    private static void visit(Table current, int x, int y, int depth, int zoom, Point min, Point max, Visitor visitor) {
+        // The range of tiles at the requested zoom covered by this tile
+        int shift = zoom - depth;
+        int fromX = x << shift;
+        int toX = ((x + 1) << shift) - 1;
+        int fromY = y << shift;
+        int toY = ((y + 1) << shift) - 1;
+        if (toX < min.x || fromX > max.x || toY < min.y || fromY > max.y) {
+            return;
+        }
+        long quadKey = QuadKey.of(x, y, depth);
+        int slot = current.find(quadKey);
+        if (slot < 0) {
+            return;
+        }
+        long count = current.get(slot, COUNT);
+        if (count <= 0) {
+            return;
+        }
+
+        if (depth == zoom) {
+            double latitude = current.get(slot, SUM_LATITUDE) / SCALE / count;
+            double longitude = current.get(slot, SUM_LONGITUDE) / SCALE / count;
+            visitor.visit(quadKey, (int) count, latitude, longitude, count == 1 ? current.get(slot, SUM_IDS) : -1);
+            return;
+        }
+        for (int digit = 0; digit < 4; digit++) {
+            visit(current, (x << 1) | (digit & 1), (y << 1) | (digit >> 1), depth + 1, zoom, min, max, visitor);
+        }
+    }
+
+    private void update(long quadKey, int fromZoom, long count, long latitude, long longitude, long id) {
+        lock.readLock().lock();
+        try {
+            Table current = table;
+            for (int zoom = fromZoom; zoom <= MAX_ZOOM; zoom++) {
+                current.add(QuadKey.ancestor(quadKey, zoom), count, latitude, longitude, id);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        growIfNeeded();
+    }
+
+    /**
+     * Rebuilds the table once it is half full, while the writers wait, dropping the slots of the empty tiles.
+     * The readers keep reading the old table, which does not change while it is copied, until the new one
+     * replaces it.
+     */
+    private void growIfNeeded() {
+        if (table.size.get() <= (table.mask + 1) / 2) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Table current = table;
+            int capacity = current.mask + 1;
+            if (current.size.get() <= capacity / 2) {
+                return;
+            }
+            int tiles = 0;
+            for (int i = 0; i < capacity; i++) {
+                if (current.keys.get(i) != 0 && !isEmpty(current, i)) {
+                    tiles++;
+                }
+            }
+            if (tiles > capacity / 4) {
+                if (capacity == MAX_CAPACITY) {
+                    throw new IllegalStateException("The tile counter is full");
+                }
+                capacity *= 2;
+            }
+            Table rebuilt = new Table(capacity);
+            for (int i = 0; i <= current.mask; i++) {
+                long key = current.keys.get(i);
+                if (key != 0 && !isEmpty(current, i)) {
+                    rebuilt.add(key - 1, current.get(i, COUNT), current.get(i, SUM_LATITUDE),
+                            current.get(i, SUM_LONGITUDE), current.get(i, SUM_IDS));
+                }
+            }
+            table = rebuilt;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if the tile of the slot holds no location. Its sums are then back to 0 as well,
+     * every location removed or moved out having taken back what it added.
+     */
+    private static boolean isEmpty(Table current, int slot) {
+        return current.get(slot, COUNT) == 0 && current.get(slot, SUM_LATITUDE) == 0
+                && current.get(slot, SUM_LONGITUDE) == 0 && current.get(slot, SUM_IDS) == 0;
+    }
+
+    private static long fixed(double degrees) {
+        return Math.round(degrees * SCALE);
+    }
+
+    private static int hash(long quadKey) {
+        long h = quadKey * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,199 @@
+package clustering;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Warms the {@link TileCache} with the tiles a client is likely to ask for next.
+ * <p>
+ * <br/>
+ * For every served viewport the cached tiles around it (the ring of {@link QuadTile} neighbours) and the tiles of
+ * the same bounds one zoom level in and out are loaded in the background, so the next pan or zoom step finds
+ * them in the cache.
+ * <p>
+ * <br/>
+ * Prefetching must never compete with the requests: it runs on a small pool of low priority threads with a
+ * bounded queue, drops the work it has no room or no rate budget for instead of waiting, and a new viewport
+ * from the same client cancels whatever is still pending for its previous one.
+ */
+public class TilePrefetcher {
+
+    private static Logger log = LoggerFactory.getLogger(TilePrefetcher.class);
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * How many clients can have a pending prefetch, clients hashing to the same slot cancel each other.
+     */
+    private static final int CLIENT_SLOTS = 1024;
+
+    /**
+     * The pending prefetches per client, cancelled when the client moves on.
+     */
+    private final AtomicReferenceArray<AtomicBoolean> pending = new AtomicReferenceArray<AtomicBoolean>(CLIENT_SLOTS);
+
+    private final long nanosPerTile;
+    private final AtomicLong nextSlot = new AtomicLong();
+
+    private final AtomicLong warmed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param threads     how many background threads load the tiles
+     * @param queueSize   how many tiles can wait to be loaded
+     * @param tilesPerSec the maximum number of tiles loaded per second
+     */
+    public TilePrefetcher(int threads, int queueSize, int tilesPerSec) {
+        this.nanosPerTile = TimeUnit.SECONDS.toNanos(1) / Math.max(tilesPerSec, 1);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tile-prefetcher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Schedules the tiles around a served viewport to be loaded in the background.
+     *
+     * @param sw     south west bound {@link LatLng}
+     * @param ne     north east bound {@link LatLng}
+     * @param zoom   the zoom level of the served clusters
+     * @param client identifies the client, its previous prefetch is cancelled
+     */
+    public void prefetch(LatLng sw, LatLng ne, ZoomLevel zoom, String client) {
+        if (!ClusterIndex.cache().isEnabled()) {
+            return;
+        }
+        AtomicBoolean cancelled = new AtomicBoolean();
+        AtomicBoolean previous = pending.getAndSet((client.hashCode() & 0x7fffffff) % CLIENT_SLOTS, cancelled);
+        if (previous != null) {
+            previous.set(true);
+        }
+
+        submit(getNeighbourBlocks(sw, ne, zoom), zoom, cancelled);
+        if (zoom.zoom < ZoomLevel.MAX_ZOOM) {
+            ZoomLevel in = ZoomLevel.get(zoom.zoom + 1);
+            submit(QuadTile.getQuadKeys(sw, ne, TileCache.getBlockZoom(in)), in, cancelled);
+        }
+        if (zoom.zoom > ZoomLevel.MIN_ZOOM) {
+            ZoomLevel out = ZoomLevel.get(zoom.zoom - 1);
+            submit(QuadTile.getQuadKeys(sw, ne, TileCache.getBlockZoom(out)), out, cancelled);
+        }
+    }
+
+    /**
+     * @return how many tiles have been loaded in the background.
+     */
+    public long getWarmed() {
+        return warmed.get();
+    }
+
+    /**
+     * @return how many tiles were not loaded for lack of room in the queue or of rate budget.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Cancels all the pending work and stops the background threads.
+     */
+    public void shutdown() {
+        for (int i = 0; i < CLIENT_SLOTS; i++) {
+            AtomicBoolean cancelled = pending.getAndSet(i, null);
+            if (cancelled != null) {
+                cancelled.set(true);
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * The cached tiles neighbouring the ones covering the bounds, which are the first ones a pan will need.
+     */
+    private static Set<Long> getNeighbourBlocks(LatLng sw, LatLng ne, ZoomLevel zoom) {
+        List<Long> visible = QuadTile.getQuadKeys(sw, ne, TileCache.getBlockZoom(zoom));
+        Set<Long> neighbours = new LinkedHashSet<Long>();
+        for (long blockKey : visible) {
+            QuadTile block = QuadTile.getTileFromQuadKey(blockKey);
+            block.initNeighbourTiles();
+            for (QuadTile neighbour : new QuadTile[]{
+                    block.topLeftNeighbour, block.topNeighbour, block.topRightNeighbour,
+                    block.leftNeighbour, block.rightNeighbour,
+                    block.bottomLeftNeighbour, block.bottomNeighbour, block.bottomRightNeighbour}) {
+                neighbours.add(neighbour.quadKey);
+            }
+        }
+        neighbours.removeAll(visible);
+        return neighbours;
+    }
+
+    private void submit(Iterable<Long> blockKeys, final ZoomLevel zoom, final AtomicBoolean cancelled) {
+        final TileCache cache = ClusterIndex.cache();
+        for (final long blockKey : blockKeys) {
+            if (cache.contains(blockKey, zoom)) {
+                continue;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (cancelled.get() || cache.contains(blockKey, zoom)) {
+                            return;
+                        }
+                        if (!tryAcquire()) {
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                        try {
+                            cache.get(blockKey, zoom, ClusterIndex.LOADER);
+                            warmed.incrementAndGet();
+                        } catch (SQLException e) {
+                            log.warn("Could not prefetch tile {} at zoom {}: {}", blockKey, zoom, e.getMessage());
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Takes the next slot of the rate budget, if it is already due.
+     */
+    private boolean tryAcquire() {
+        while (true) {
+            long now = System.nanoTime();
+            long slot = nextSlot.get();
+            if (slot > now) {
+                return false;
+            }
+            // Do not let an idle period build up a burst
+            if (nextSlot.compareAndSet(slot, Math.max(slot, now - nanosPerTile) + nanosPerTile)) {
+                return true;
+            }
+        }
+    }
+}
@@ -32,8 +32,13 @@ public enum ZoomLevel {
     public static final int MIN_ZOOM = 0;
     public static final int MAX_ZOOM = 19;
 
+    /**
+     * A single copy of {@link #values()}, which clones the array on every call.
+     */
+    private static final ZoomLevel[] LEVELS = values();
+
     public static ZoomLevel get(int zoom) {
-        return ZoomLevel.values()[clip(zoom, MIN_ZOOM, MAX_ZOOM)];
+        return LEVELS[clip(zoom, MIN_ZOOM, MAX_ZOOM)];
     }
 
     public final int zoom;
@@ -43,7 +48,7 @@ public enum ZoomLevel {
     ZoomLevel(int zoom, int mapSize) {
         this.zoom = zoom;
         this.mapSize = mapSize;
-        maxTiles = latLngToWorldPoint(new LatLng(MAX_LATITUDE, MAX_LONGITUDE), this);
+        maxTiles = worldPointToTileXY(latLngToWorldPoint(new LatLng(MIN_LATITUDE, MAX_LONGITUDE), this));
     }
 }
 
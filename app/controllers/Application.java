@@ -1,31 +1,70 @@
 package controllers;
 
 import clustering.*;
-import com.avaje.ebean.Ebean;
-import com.avaje.ebean.Page;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jobs.GenerateLocationsJob;
+import jobs.ImportLocationsJob;
+import jobs.Job;
+import jobs.RelocateLocationsJob;
 import models.Location;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import play.Configuration;
+import play.libs.F;
 import play.libs.Json;
+import play.mvc.BodyParser;
 import play.mvc.Controller;
 import play.mvc.Result;
 import views.html.list;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-
-import static clustering.QuadTile.getTileFromQuadKey;
-import static clustering.ZoomLevel.Z19;
+import java.util.concurrent.RejectedExecutionException;
 
 
 public class Application extends Controller {
 
     private static Logger log = LoggerFactory.getLogger(Application.class);
 
+    /**
+     * How long a shed request is asked to wait before trying again.
+     */
+    private static final int RETRY_AFTER_SECONDS = 1;
+
+    /**
+     * The largest clusters response sent whole, and shared by the identical requests; larger ones are streamed.
+     */
+    private static final int COALESCED_SIZE = 64 * 1024;
+
+    /**
+     * How long a streamed clusters response waits for Play to start sending it.
+     */
+    private static final long STREAM_WAIT_MILLIS = 10 * 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String TOO_MANY_REQUESTS = "Too many requests, retry later.";
+
+    /**
+     * The largest body of a batch of positions, about 150k positions.
+     */
+    private static final int MAX_POSITIONS_LENGTH = 10 * 1024 * 1024;
+
+    /**
+     * The cluster responses being computed, shared by the identical requests arriving meanwhile.
+     */
+    private static final SingleFlight<String, ClusterStream.Body> flights =
+            new SingleFlight<String, ClusterStream.Body>();
+
     /**
      * This result directly redirect to application home.
      */
@@ -58,26 +97,221 @@ public class Application extends Controller {
     }
 
     /**
-     * Update db locations with random coordinates and computed quad key at the max zoom level.
+     * Start moving the db locations to random coordinates within bounds and recomputing their quad key
+     * at the max zoom level, in the background. The progress is available from {@link #jobStatus()}.
      */
     public static Result update(LatLng sw, LatLng ne) {
-        int page = 0;
-        int totalSize = 0;
-        Page<Location> result;
-        do {
-            result = Location.list(page, 1000);
-            for (Location location : result.getList()) {
-                LatLng latLng = RandomLocationsGenerator.generate(sw, ne);
-                location.latitude = latLng.latitude;
-                location.longitude = latLng.longitude;
-                location.quadKey = LocationUtils.getQuadKey(latLng, Z19);
+        return start(new RelocateLocationsJob(sw, ne));
+    }
+
+    /**
+     * Start importing the locations of a CSV file from the import directory, in the background.
+     * The progress is available from {@link #jobStatus()}.
+     *
+     * @param file the name of the file in the import directory
+     * @param sw   south west bound of the random positions given to rows without a position, may be empty
+     * @param ne   north east bound of the random positions given to rows without a position, may be empty
+     */
+    public static Result importLocations(String file, String sw, String ne) {
+        Configuration conf = Configuration.root();
+        File csv;
+        try {
+            File dir = new File(conf.getString("clustering.import.dir", ".")).getCanonicalFile();
+            csv = new File(dir, file).getCanonicalFile();
+            if (!csv.getPath().startsWith(dir.getPath() + File.separator) || !csv.isFile()) {
+                return notFound("No file " + file + " in the import directory.");
+            }
+        } catch (IOException e) {
+            return badRequest(e.getMessage());
+        }
+        Integer writers = conf.getInt("clustering.import.writers");
+        return start(new ImportLocationsJob(csv, LatLng.parse(sw), LatLng.parse(ne), writers != null ? writers : 2));
+    }
+
+    /**
+     * Start inserting a reproducible synthetic dataset of locations within bounds, in the background.
+     * The progress is available from {@link #jobStatus()}.
+     *
+     * @param count        how many locations to insert
+     * @param distribution the name of a {@link RandomLocationsGenerator.Distribution}
+     * @param seed         the seed of the dataset
+     * @param sw           south west bound of the locations
+     * @param ne           north east bound of the locations
+     */
+    public static Result generateLocations(Long count, String distribution, Long seed, LatLng sw, LatLng ne) {
+        RandomLocationsGenerator.Distribution parsed;
+        try {
+            parsed = RandomLocationsGenerator.Distribution.valueOf(distribution.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return badRequest("Unknown distribution " + distribution + ", expected one of "
+                    + Arrays.toString(RandomLocationsGenerator.Distribution.values()));
+        }
+        if (count <= 0) {
+            return badRequest("The count must be positive.");
+        }
+        if (!(sw.latitude < ne.latitude && sw.longitude < ne.longitude)) {
+            return badRequest("The south west bound must be south west of the north east bound.");
+        }
+        RandomLocationsGenerator generator = new RandomLocationsGenerator.Builder()
+                .bounds(sw, ne)
+                .distribution(parsed)
+                .seed(seed)
+                .build();
+        Integer writers = Configuration.root().getInt("clustering.import.writers");
+        return start(new GenerateLocationsJob(generator, count, writers != null ? writers : 2));
+    }
+
+    /**
+     * Return the JSON representation of the progress of the running or last locations update or import.
+     */
+    public static Result jobStatus() {
+        Job job = Job.current();
+        if (job == null) {
+            return notFound("No job has been started.");
+        }
+        return ok(Json.toJson(job.getStatus()));
+    }
+
+    private static Result start(Job job) {
+        if (!Job.start(job)) {
+            return status(CONFLICT, Json.toJson(Job.current().getStatus()));
+        }
+        return accepted(Json.toJson(job.getStatus()));
+    }
+
+    /**
+     * Insert a location from a JSON object with its name, latitude and longitude, and count it in the clusters.
+     * Return the JSON representation of the new location, with its id and quad key.
+     */
+    public static Result createLocation() {
+        JsonNode body = request().body().asJson();
+        if (body == null || !body.isObject()) {
+            return badRequest("Expected a JSON object with the name, latitude and longitude of the location");
+        }
+        String error = checkPosition(body);
+        if (error != null) {
+            return badRequest(error);
+        }
+        Location location = new Location();
+        location.name = body.path("name").asText();
+        location.latitude = body.get("latitude").asDouble();
+        location.longitude = body.get("longitude").asDouble();
+        location.quadKey = LocationUtils.getQuadKey(location.latitude, location.longitude, ZoomLevel.Z19);
+        location.save();
+
+        ObjectNode created = Json.newObject();
+        created.put("id", location.id);
+        created.put("name", location.name);
+        created.put("latitude", location.latitude);
+        created.put("longitude", location.longitude);
+        created.put("quadKey", location.quadKey);
+        response().setHeader(LOCATION, "/locations/" + location.id);
+        return created(created);
+    }
+
+    /**
+     * Move a location to the position of a JSON object with its latitude and longitude. The clusters have the
+     * location at its new position right away, the database gets it a little later, see {@link LocationWriter}.
+     * When too many locations wait to be written, the request is answered with a 503 and a Retry-After header.
+     *
+     * @param id the id of the location
+     */
+    public static Result movePosition(Long id) {
+        JsonNode body = request().body().asJson();
+        if (body == null || !body.isObject()) {
+            return badRequest("Expected a JSON object with the latitude and longitude of the location");
+        }
+        String error = checkPosition(body);
+        if (error != null) {
+            return badRequest(error);
+        }
+        List<LocationWriter.Position> positions = new ArrayList<LocationWriter.Position>(1);
+        positions.add(new LocationWriter.Position(id, body.get("latitude").asDouble(), body.get("longitude").asDouble()));
+
+        LocationWriter.Outcome outcome;
+        try {
+            outcome = write(positions);
+        } catch (SQLException e) {
+            return internalServerError(e.getMessage());
+        }
+        if (outcome == null) {
+            return status(SERVICE_UNAVAILABLE, "The positions are not accepted.");
+        }
+        if (!outcome.unknown.isEmpty()) {
+            return notFound("No location " + id);
+        }
+        if (!outcome.rejected.isEmpty()) {
+            return shed();
+        }
+        return accepted();
+    }
+
+    /**
+     * Move many locations at once, from a JSON array of objects with the id, latitude and longitude of every
+     * location, as {@link #movePosition(Long)} does. Return the JSON representation of the number of accepted
+     * positions and of the ids of the unknown locations and of the rejected ones, with a 503 and a Retry-After
+     * header if any was rejected.
+     */
+    @BodyParser.Of(value = BodyParser.Json.class, maxLength = MAX_POSITIONS_LENGTH)
+    public static Result movePositions() {
+        JsonNode body = request().body().asJson();
+        if (body == null || !body.isArray()) {
+            return badRequest("Expected a JSON array of objects with the id, latitude and longitude of the locations");
+        }
+        List<LocationWriter.Position> positions = new ArrayList<LocationWriter.Position>(body.size());
+        for (JsonNode node : body) {
+            JsonNode id = node.get("id");
+            if (id == null || !id.canConvertToLong()) {
+                return badRequest("Expected the id of every location");
+            }
+            String error = checkPosition(node);
+            if (error != null) {
+                return badRequest(error + " for location " + id.asLong());
             }
-            Ebean.save(result.getList());
-            page++;
-            totalSize += result.getList().size();
-        } while (result.getList().size() > 0);
+            positions.add(new LocationWriter.Position(id.asLong(), node.get("latitude").asDouble(), node.get("longitude").asDouble()));
+        }
 
-        return ok("Updated the quad keys for " + totalSize + " locations.");
+        LocationWriter.Outcome outcome;
+        try {
+            outcome = write(positions);
+        } catch (SQLException e) {
+            return internalServerError(e.getMessage());
+        }
+        if (outcome == null) {
+            return status(SERVICE_UNAVAILABLE, "The positions are not accepted.");
+        }
+        ObjectNode result = Json.newObject();
+        result.put("accepted", outcome.accepted);
+        result.put("unknown", Json.toJson(outcome.unknown));
+        result.put("rejected", Json.toJson(outcome.rejected));
+        if (!outcome.rejected.isEmpty()) {
+            response().setHeader(RETRY_AFTER, Integer.toString(RETRY_AFTER_SECONDS));
+            return status(SERVICE_UNAVAILABLE, result);
+        }
+        return accepted(result);
+    }
+
+    /**
+     * Hands the positions to the {@link LocationWriter}, returns null if there is none.
+     */
+    private static LocationWriter.Outcome write(List<LocationWriter.Position> positions) throws SQLException {
+        LocationWriter writer = ClusterIndex.writer();
+        return writer != null ? writer.write(positions) : null;
+    }
+
+    /**
+     * @return the reason why the object does not hold a valid latitude and longitude, or null if it does.
+     */
+    private static String checkPosition(JsonNode node) {
+        JsonNode latitude = node.get("latitude");
+        JsonNode longitude = node.get("longitude");
+        if (latitude == null || !latitude.isNumber() || longitude == null || !longitude.isNumber()) {
+            return "Expected a numeric latitude and longitude";
+        }
+        if (Math.abs(latitude.asDouble()) > 90 || Math.abs(longitude.asDouble()) > 180) {
+            return "Invalid position " + latitude.asDouble() + "," + longitude.asDouble();
+        }
+        return null;
     }
 
     /**
@@ -90,79 +324,343 @@ public class Application extends Controller {
 
     /**
      * Return the JSON representation for all clusters found within the given bounds
-     * at the specified zoom level.
+     * at the specified zoom level. The clusters are read through the cache of the {@link ClusterIndex},
+     * which holds whole tiles, so clusters slightly outside of the bounds can be returned as well.
+     * <p>
+     * <br/>
+     * Clients listing {@link ClusterBinaryWriter#MIME_TYPE} in their Accept header get the clusters
+     * in its compact binary layout instead.
+     * <p>
+     * <br/>
+     * The clusters are read and written on a thread of the {@link QueryExecutor}, never blocking the threads
+     * serving the requests. When too many requests are waiting for their clusters, the request is answered
+     * at once with a 503 and a Retry-After header, and with a 503 once it waited longer than the timeout.
+     * <p>
+     * <br/>
+     * The clusters are sent as they are read, in chunks, once the response outgrows {@link #COALESCED_SIZE}.
+     * Requests for bounds covering the same tiles as a request still being answered share its response,
+     * see {@link SingleFlight}, instead of running the same query again, unless it is streamed.
      *
      * @param sw   south west bound {@link LatLng}
      * @param ne   north east bound {@link LatLng}
      * @param zoom the zoom level of the map.
      * @return
      */
-    public static Result jsonList(LatLng sw, LatLng ne, int zoom) {
+    public static F.Promise<Result> jsonList(final LatLng sw, final LatLng ne, int zoom) {
+        //log.info("Getting clusters in bounds {} - {} at zoom {}", sw, ne, zoom);
+        final ZoomLevel zoomLevel = ZoomLevel.get(zoom);
+        prefetch(sw, ne, zoomLevel);
+
+        // Browsers accept */*, so only send the binary layout to the clients asking for it by name
+        String accept = request().getHeader(ACCEPT);
+        final boolean binary = accept != null && accept.contains(ClusterBinaryWriter.MIME_TYPE);
+
+        response().setHeader(VARY, ACCEPT);
+        final String contentType = binary ? ClusterBinaryWriter.MIME_TYPE : "application/json; charset=utf-8";
+
+        String key = tilesKey(sw, ne, zoomLevel) + (binary ? "/binary" : "/json");
+
+        F.Promise<ClusterStream.Body> body;
         try {
-            //log.info("Getting clusters in bounds {} - {} at zoom {}", sw, ne, zoom);
-            Map<String, Cluster> clusters = getClustersCount(sw, ne, zoom);
-            //log.debug("Got back clusters map {}", clusters.toString());
-            return ok(Json.toJson(clusters));
+            body = flights.run(key, new F.Function0<F.Promise<ClusterStream.Body>>() {
+                @Override
+                public F.Promise<ClusterStream.Body> apply() {
+                    return stream(sw, ne, zoomLevel, binary);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return F.Promise.pure(shed());
+        }
 
-        } catch (SQLException e) {
-            return internalServerError(e.getMessage());
+        return body.flatMap(new F.Function<ClusterStream.Body, F.Promise<Result>>() {
+            @Override
+            public F.Promise<Result> apply(ClusterStream.Body shared) {
+                if (shared == null) {
+                    return F.Promise.<Result>pure(timedOut());
+                }
+                if (shared.bytes != null) {
+                    return F.Promise.<Result>pure(ok(shared.bytes).as(contentType));
+                }
+                if (shared.claim()) {
+                    return F.Promise.<Result>pure(ok(shared.chunks).as(contentType));
+                }
+                // Another request is already streaming the shared response, stream a copy of it
+                return stream(sw, ne, zoomLevel, binary).map(new F.Function<ClusterStream.Body, Result>() {
+                    @Override
+                    public Result apply(ClusterStream.Body body) {
+                        if (body == null) {
+                            return timedOut();
+                        }
+                        return (body.bytes != null ? ok(body.bytes) : ok(body.chunks)).as(contentType);
+                    }
+                });
+            }
+        }).recover(JOINED_REJECTED);
+    }
+
+    /**
+     * Answers the requests which joined a query that could not be queued.
+     */
+    private static final F.Function<Throwable, Result> JOINED_REJECTED = new F.Function<Throwable, Result>() {
+        @Override
+        public Result apply(Throwable t) throws Throwable {
+            if (t instanceof RejectedExecutionException) {
+                return status(SERVICE_UNAVAILABLE, TOO_MANY_REQUESTS);
+            }
+            throw t;
         }
+    };
+
+    /**
+     * @return a key shared by all the bounds covering the same tiles, which get the same clusters.
+     */
+    private static String tilesKey(LatLng sw, LatLng ne, ZoomLevel zoom) {
+        Point min = QuadTile.getMinTileXY(sw, ne, zoom);
+        Point max = QuadTile.getMaxTileXY(sw, ne, zoom);
+        return zoom.zoom + "/" + min.x + "/" + min.y + "/" + max.x + "/" + max.y;
     }
 
-    private static Map<String, Cluster> getClustersCount(LatLng sw, LatLng ne, int zoom) throws SQLException {
-        // cqk = cluster quad key, cnt = how many locations in the cluster
-        String sql = "SELECT SUBSTRING(quad_key, 1, ?) AS cqk, COUNT(*) AS cnt, name, latitude, longitude " +
-                "FROM location " +
-                "WHERE latitude > ? AND latitude < ? " +
-                "AND longitude > ? AND longitude < ? " +
-                "GROUP BY cqk";
+    /**
+     * Writes the clusters within the given bounds on a thread of the {@link QueryExecutor}, see {@link ClusterStream}.
+     *
+     * @param sw     south west bound {@link LatLng}
+     * @param ne     north east bound {@link LatLng}
+     * @param zoom   the zoom level of the clusters
+     * @param binary true for {@link ClusterBinaryWriter}, false for {@link ClusterJsonWriter}
+     * @return the promise of the body, redeemed once it is complete or once it starts streaming, or with null
+     * if the query timed out before
+     * @throws RejectedExecutionException if the queue of the executor is full
+     */
+    private static F.Promise<ClusterStream.Body> stream(final LatLng sw, final LatLng ne, final ZoomLevel zoom,
+                                                        final boolean binary) {
+        final scala.concurrent.Promise<ClusterStream.Body> body = scala.concurrent.Promise$.MODULE$.apply();
+        // Without an executor the query runs right here, before the chunks could be sent
+        final int limit = ClusterIndex.executor() != null ? COALESCED_SIZE : Integer.MAX_VALUE;
+        F.Promise<Boolean> done = submit(new F.Function0<Boolean>() {
+            @Override
+            public Boolean apply() throws SQLException, IOException {
+                ClusterStream out = new ClusterStream(limit, STREAM_WAIT_MILLIS, body);
+                try {
+                    if (binary) {
+                        ClusterBinaryWriter writer = new ClusterBinaryWriter(out);
+                        ClusterIndex.visitClusters(sw, ne, zoom, writer);
+                        writer.close();
+                    } else {
+                        ClusterJsonWriter writer = new ClusterJsonWriter(out);
+                        ClusterIndex.visitClusters(sw, ne, zoom, writer);
+                        writer.close();
+                    }
+                    return Boolean.TRUE;
 
-        Connection conn = play.db.DB.getConnection();
-        PreparedStatement stmt = null;
-        try {
-            stmt = conn.prepareStatement(sql);
-            stmt.setInt(1, zoom);
-            stmt.setDouble(2, sw.latitude);
-            stmt.setDouble(3, ne.latitude);
-            stmt.setDouble(4, sw.longitude);
-            stmt.setDouble(5, ne.longitude);
-
-            log.debug("Executing SQL {}", stmt.toString());
-
-            ResultSet result = stmt.executeQuery();
-
-            Map<String, Cluster> results = new HashMap<String, Cluster>();
-            while (result.next()) {
-                int count = result.getInt("cnt");
-                String quadKey = result.getString("cqk");
-                QuadTile tile = getTileFromQuadKey(quadKey);
-                Cluster.Builder cluster = new Cluster.Builder()
-                        .center(tile.center)
-                        .topLeft(tile.topLeft)
-                        .topRight(tile.topRight)
-                        .bottomLeft(tile.bottomLeft)
-                        .bottomRight(tile.bottomRight)
-                        .count(count);
-
-                if (count == 1) {
-                    Location location = new Location();
-                    location.name = result.getString("name");
-                    location.latitude = result.getDouble("latitude");
-                    location.longitude = result.getDouble("longitude");
-                    cluster.location(location);
+                } catch (SQLException e) {
+                    if (out.abort()) {
+                        log.error("Clusters response cut short", e);
+                    }
+                    throw e;
+                } catch (IOException e) {
+                    if (out.abort()) {
+                        log.warn("Clusters response cut short: {}", e.getMessage());
+                    }
+                    throw e;
                 }
-                results.put(quadKey, cluster.build());
             }
-            return results;
-        } finally {
+        }, null);
+
+        // The body is redeemed by the query itself, unless it timed out or failed before
+        done.map(new F.Function<Boolean, Void>() {
+            @Override
+            public Void apply(Boolean written) {
+                if (written == null) {
+                    body.trySuccess(null);
+                }
+                return null;
+            }
+        }).recover(new F.Function<Throwable, Void>() {
+            @Override
+            public Void apply(Throwable t) {
+                body.tryFailure(t);
+                return null;
+            }
+        });
+        return F.Promise.wrap(body.future());
+    }
+
+    /**
+     * Return the JSON representation of the changes between the clusters the client already holds and
+     * the clusters found within the given bounds at the specified zoom level: the added and changed clusters
+     * by quad key, and the quad keys of the removed ones.
+     * <p>
+     * <br/>
+     * The request body is a JSON object with the {@link Cluster#stamp} of every held cluster by quad key,
+     * an empty object returns all the clusters as added, in a response shared by the identical requests.
+     *
+     * @param sw   south west bound {@link LatLng}
+     * @param ne   north east bound {@link LatLng}
+     * @param zoom the zoom level of the map.
+     * @return
+     */
+    public static F.Promise<Result> jsonDiff(final LatLng sw, final LatLng ne, int zoom) {
+        JsonNode body = request().body().asJson();
+        if (body == null || !body.isObject()) {
+            return F.Promise.<Result>pure(badRequest("Expected a JSON object of the held cluster stamps by quad key"));
+        }
+        final Map<Long, Integer> held = new HashMap<Long, Integer>();
+        for (Iterator<Map.Entry<String, JsonNode>> it = body.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = it.next();
             try {
-                if (stmt != null) {
-                    stmt.close();
+                held.put(Long.parseLong(field.getKey()), field.getValue().asInt());
+            } catch (NumberFormatException e) {
+                return F.Promise.<Result>pure(badRequest("Invalid quad key " + field.getKey()));
+            }
+        }
+
+        final ZoomLevel zoomLevel = ZoomLevel.get(zoom);
+        prefetch(sw, ne, zoomLevel);
+        if (held.isEmpty()) {
+            return initialDiff(sw, ne, zoomLevel);
+        }
+        return query(new F.Function0<Result>() {
+            @Override
+            public Result apply() {
+                try {
+                    ClusterDiff diff = ClusterDiff.diff(ClusterIndex.getClusters(sw, ne, zoomLevel), held);
+                    return ok(Json.toJson(diff));
+
+                } catch (SQLException e) {
+                    return internalServerError(e.getMessage());
                 }
-                conn.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
             }
+        });
+    }
+
+    /**
+     * Returns all the clusters as added to a client holding none yet, the first request of every map.
+     * The identical requests arriving meanwhile share the response, see {@link SingleFlight}.
+     */
+    private static F.Promise<Result> initialDiff(final LatLng sw, final LatLng ne, final ZoomLevel zoom) {
+        F.Promise<ClusterStream.Body> body;
+        try {
+            body = flights.run(tilesKey(sw, ne, zoom) + "/diff", new F.Function0<F.Promise<ClusterStream.Body>>() {
+                @Override
+                public F.Promise<ClusterStream.Body> apply() {
+                    return submit(new F.Function0<ClusterStream.Body>() {
+                        @Override
+                        public ClusterStream.Body apply() throws SQLException {
+                            Map<Long, Integer> none = new HashMap<Long, Integer>();
+                            ClusterDiff diff = ClusterDiff.diff(ClusterIndex.getClusters(sw, ne, zoom), none);
+                            return new ClusterStream.Body(Json.toJson(diff).toString().getBytes(UTF_8), null);
+                        }
+                    }, null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return F.Promise.pure(shed());
+        }
+
+        return body.map(new F.Function<ClusterStream.Body, Result>() {
+            @Override
+            public Result apply(ClusterStream.Body shared) {
+                return shared != null ? ok(shared.bytes).as("application/json; charset=utf-8") : timedOut();
+            }
+        }).recover(JOINED_REJECTED);
+    }
+
+    /**
+     * Runs a cluster query on the {@link QueryExecutor}, shedding the request if its queue is full.
+     */
+    private static F.Promise<Result> query(F.Function0<Result> query) {
+        try {
+            return submit(query, timedOut());
+        } catch (RejectedExecutionException e) {
+            return F.Promise.pure(shed());
+        }
+    }
+
+    /**
+     * Runs a cluster query on the {@link QueryExecutor}, or right away if there is none.
+     *
+     * @throws RejectedExecutionException if the queue of the executor is full
+     */
+    private static <T> F.Promise<T> submit(F.Function0<T> query, T onTimeout) {
+        QueryExecutor executor = ClusterIndex.executor();
+        if (executor == null) {
+            try {
+                return F.Promise.pure(query.apply());
+            } catch (Throwable t) {
+                return F.Promise.throwing(t);
+            }
+        }
+        return executor.submit(query, onTimeout);
+    }
+
+    private static Result shed() {
+        response().setHeader(RETRY_AFTER, Integer.toString(RETRY_AFTER_SECONDS));
+        return status(SERVICE_UNAVAILABLE, TOO_MANY_REQUESTS);
+    }
+
+    private static Result timedOut() {
+        return status(SERVICE_UNAVAILABLE, "Timed out waiting for the clusters.");
+    }
+
+    private static void prefetch(LatLng sw, LatLng ne, ZoomLevel zoom) {
+        TilePrefetcher prefetcher = ClusterIndex.prefetcher();
+        if (prefetcher != null) {
+            prefetcher.prefetch(sw, ne, zoom, request().remoteAddress());
+        }
+    }
+
+    /**
+     * Return the JSON representation of the cluster cache statistics: hits, misses, evictions and memory use,
+     * of the tiles loaded or dropped by the prefetcher, of the cluster queries running, waiting or shed,
+     * and of the identical requests sharing a response.
+     */
+    public static Result cacheStats() {
+        ObjectNode stats = Json.newObject();
+        stats.put("cache", Json.toJson(ClusterIndex.cache().getStats()));
+        TilePrefetcher prefetcher = ClusterIndex.prefetcher();
+        if (prefetcher != null) {
+            ObjectNode prefetch = stats.putObject("prefetch");
+            prefetch.put("warmed", prefetcher.getWarmed());
+            prefetch.put("dropped", prefetcher.getDropped());
+        }
+        QueryExecutor executor = ClusterIndex.executor();
+        if (executor != null) {
+            ObjectNode queries = stats.putObject("queries");
+            queries.put("active", executor.getActive());
+            queries.put("queued", executor.getQueued());
+            queries.put("rejected", executor.getRejected());
+            queries.put("timedOut", executor.getTimedOut());
+        }
+        ObjectNode coalesced = stats.putObject("coalesced");
+        coalesced.put("started", flights.getStarted());
+        coalesced.put("joined", flights.getJoined());
+        coalesced.put("inFlight", flights.getInFlight());
+        return ok(stats);
+    }
+
+    /**
+     * Return the JSON representation of the position writes statistics: the locations waiting to be written
+     * and how long the oldest one has been waiting, the positions accepted, coalesced, rejected and written,
+     * and the last flush.
+     */
+    public static Result writeStats() {
+        LocationWriter writer = ClusterIndex.writer();
+        if (writer == null) {
+            return notFound("The positions are not accepted.");
         }
+        ObjectNode stats = Json.newObject();
+        stats.put("pending", writer.getPending());
+        stats.put("capacity", writer.getCapacity());
+        stats.put("lagMillis", writer.getLag());
+        stats.put("accepted", writer.getAccepted());
+        stats.put("coalesced", writer.getCoalesced());
+        stats.put("rejected", writer.getRejected());
+        stats.put("flushed", writer.getFlushed());
+        stats.put("missing", writer.getMissing());
+        stats.put("failures", writer.getFailures());
+        stats.put("dropped", writer.getDropped());
+        stats.put("lastFlush", writer.getLastFlush());
+        stats.put("lastFlushMillis", writer.getLastFlushTime());
+        return ok(stats);
     }
 }
@@ -0,0 +1,183 @@
+package controllers;
+
+import play.libs.F;
+import play.mvc.Results;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The body of a clusters response, written on a thread of the {@link clustering.QueryExecutor}.
+ * <p>
+ * <br/>
+ * The first bytes are buffered: a response which fits in the limit is sent whole, and can be shared by the
+ * identical requests arriving meanwhile. Once the limit is reached, the body is handed to Play as a chunked
+ * response and the writing thread goes on sending the clusters to it in chunks of {@link #CHUNK_SIZE} as they are
+ * read, so the memory used by a large viewport does not grow with the number of its clusters. A failure after the
+ * first chunk can only cut the response short.
+ */
+final class ClusterStream extends OutputStream {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * The body of a response: the bytes of a small one or the chunks of a large one, which only one request can send.
+     */
+    static final class Body {
+        final byte[] bytes;
+        final Results.Chunks<byte[]> chunks;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        Body(byte[] bytes, Results.Chunks<byte[]> chunks) {
+            this.bytes = bytes;
+            this.chunks = chunks;
+        }
+
+        /**
+         * @return true if the chunks were not claimed by another request yet.
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    private final int limit;
+    private final long waitMillis;
+    private final scala.concurrent.Promise<Body> promise;
+
+    private byte[] buffer = new byte[1024];
+    private int length;
+    private boolean streaming;
+    private boolean closed;
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile Results.Chunks.Out<byte[]> out;
+    private volatile boolean disconnected;
+
+    /**
+     * @param limit      how many bytes are buffered before the body is streamed
+     * @param waitMillis how long to wait for Play to start sending the chunked response
+     * @param promise    redeemed with the body once it is complete or, for a large body, once it starts streaming
+     */
+    ClusterStream(int limit, long waitMillis, scala.concurrent.Promise<Body> promise) {
+        this.limit = limit;
+        this.waitMillis = waitMillis;
+        this.promise = promise;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        if (!streaming && length + count > limit) {
+            stream();
+        }
+        while (count > 0) {
+            if (length == buffer.length) {
+                if (streaming) {
+                    flush();
+                } else {
+                    buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, Math.max(limit, 1)));
+                }
+            }
+            int copied = Math.min(count, buffer.length - length);
+            System.arraycopy(bytes, offset, buffer, length, copied);
+            length += copied;
+            offset += copied;
+            count -= copied;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (!streaming || length == 0) {
+            return;
+        }
+        if (disconnected) {
+            throw new IOException("The client disconnected");
+        }
+        out.write(Arrays.copyOf(buffer, length));
+        length = 0;
+    }
+
+    /**
+     * Completes the body: redeems the promise with the bytes of a small body, or ends the chunked response.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!streaming) {
+            promise.trySuccess(new Body(Arrays.copyOf(buffer, length), null));
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Ends the chunked response after a failure, if it was streaming. A small body is left to the caller.
+     *
+     * @return true if the response was cut short
+     */
+    boolean abort() {
+        if (!streaming || closed) {
+            return false;
+        }
+        closed = true;
+        out.close();
+        return true;
+    }
+
+    /**
+     * Hands the body to Play as a chunked response and waits until it can be written, then goes on with chunks.
+     */
+    private void stream() throws IOException {
+        boolean handed = promise.trySuccess(new Body(null, new Results.ByteChunks() {
+            @Override
+            public void onReady(Results.Chunks.Out<byte[]> chunks) {
+                chunks.onDisconnected(new F.Callback0() {
+                    @Override
+                    public void invoke() {
+                        disconnected = true;
+                    }
+                });
+                out = chunks;
+                ready.countDown();
+            }
+        }));
+        if (!handed) {
+            // Timed out before the first chunk, the request was already answered
+            throw new IOException("The clusters request was already answered");
+        }
+        try {
+            if (!ready.await(waitMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("The clusters response was not sent within " + waitMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to send the clusters", e);
+        }
+        streaming = true;
+        // Send what was buffered in full chunks from now on
+        if (buffer.length < CHUNK_SIZE) {
+            buffer = Arrays.copyOf(buffer, CHUNK_SIZE);
+        }
+        flush();
+        if (buffer.length > CHUNK_SIZE) {
+            buffer = new byte[CHUNK_SIZE];
+        }
+    }
+}
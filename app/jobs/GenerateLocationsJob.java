@@ -0,0 +1,133 @@
+package jobs;
+
+import clustering.LocationUtils;
+import clustering.RandomLocationsGenerator;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static clustering.ZoomLevel.Z19;
+
+/**
+ * Inserts a synthetic dataset of locations produced by a {@link RandomLocationsGenerator}.
+ * <p>
+ * <br/>
+ * Every writer inserts its share of the locations on its own connection, from its own stream of the generator,
+ * with JDBC batches of {@link #BATCH_SIZE} committed per batch. Since a stream always produces the same
+ * locations, the same seed and the same number of writers give the same dataset. The locations are named
+ * after their index in the dataset.
+ */
+public class GenerateLocationsJob extends Job {
+
+    /**
+     * How many locations are generated and inserted together.
+     */
+    public static final int BATCH_SIZE = 5000;
+
+    private final RandomLocationsGenerator generator;
+    private final int writers;
+
+    /**
+     * @param generator the distribution of the locations
+     * @param count     how many locations to insert
+     * @param writers   how many connections insert the locations
+     */
+    public GenerateLocationsJob(RandomLocationsGenerator generator, long count, int writers) {
+        this.generator = generator;
+        this.total = count;
+        this.writers = Math.max(writers, 1);
+    }
+
+    @Override
+    public String getName() {
+        return "generate-locations";
+    }
+
+    @Override
+    protected void execute(Connection conn) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        try {
+            long share = (total + writers - 1) / writers;
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(writers);
+            for (int i = 0; i < writers; i++) {
+                long from = i * share;
+                long to = Math.min(from + share, total);
+                if (from < to) {
+                    futures.add(pool.submit(new Writer(i, from, to)));
+                }
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Generates and inserts the locations of a stream on its own connection.
+     */
+    private final class Writer implements Callable<Void> {
+        private final int stream;
+        private final long from;
+        private final long to;
+
+        Writer(int stream, long from, long to) {
+            this.stream = stream;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Void call() throws SQLException {
+            Random random = generator.random(stream);
+            double[] latitudes = new double[BATCH_SIZE];
+            double[] longitudes = new double[BATCH_SIZE];
+            long[] quadKeys = new long[BATCH_SIZE];
+
+            Connection conn = play.db.DB.getConnection(false);
+            try {
+                PreparedStatement insert = conn.prepareStatement(
+                        "INSERT INTO location (name, latitude, longitude, quad_key) VALUES (?, ?, ?, ?)");
+                try {
+                    for (long index = from; index < to && !Thread.currentThread().isInterrupted(); index += BATCH_SIZE) {
+                        int size = (int) Math.min(BATCH_SIZE, to - index);
+                        generator.generate(random, latitudes, longitudes, 0, size);
+                        LocationUtils.getQuadKeys(latitudes, longitudes, 0, size, Z19, quadKeys);
+                        for (int i = 0; i < size; i++) {
+                            insert.setString(1, "Location " + (index + i));
+                            insert.setDouble(2, latitudes[i]);
+                            insert.setDouble(3, longitudes[i]);
+                            insert.setLong(4, quadKeys[i]);
+                            insert.addBatch();
+                        }
+                        insert.executeBatch();
+                        conn.commit();
+                        processed.addAndGet(size);
+                    }
+                } finally {
+                    insert.close();
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.close();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package jobs;
+
+import clustering.LatLng;
+import clustering.LocationUtils;
+import clustering.RandomLocationsGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static clustering.ZoomLevel.Z19;
+
+/**
+ * Inserts the locations of a CSV file, see {@link LocationCsvParser} for the columns it understands.
+ * <p>
+ * <br/>
+ * The import is a pipeline of three stages connected by bounded queues, so a slow stage holds back
+ * the ones before it instead of piling up rows in memory:
+ * <p>the job thread maps the file in windows of {@link #WINDOW_SIZE} and cuts them into chunks of whole lines,</p>
+ * <p>a worker per core parses the chunks and computes the quad keys at {@link clustering.ZoomLevel#Z19},</p>
+ * <p>a few writers insert the rows with JDBC batches of {@link #BATCH_SIZE}, committed per batch.</p>
+ * <p>
+ * <br/>
+ * Files without latitude and longitude columns, like the names.csv shipped with the application, are placed
+ * at random positions within the given bounds. Rows with an invalid position are skipped.
+ */
+public class ImportLocationsJob extends Job {
+
+    /**
+     * How many rows are inserted together.
+     */
+    public static final int BATCH_SIZE = 5000;
+
+    /**
+     * How much of the file is mapped at a time.
+     */
+    static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * How many bytes of whole lines a worker parses at a time.
+     */
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * The longest name the location table holds.
+     */
+    private static final int MAX_NAME_LENGTH = 255;
+
+    /**
+     * Marks the end of the chunks and of the batches in the queues.
+     */
+    private static final ByteBuffer LAST_CHUNK = ByteBuffer.allocate(0);
+    private static final Rows LAST_ROWS = new Rows(0);
+
+    private final File file;
+    private final LatLng sw;
+    private final LatLng ne;
+    private final int workers = Runtime.getRuntime().availableProcessors();
+    private final int writers;
+
+    private final BlockingQueue<ByteBuffer> chunks;
+    private final BlockingQueue<Rows> batches;
+
+    private volatile boolean failed;
+
+    /**
+     * @param file    the CSV file
+     * @param sw      south west bound {@link LatLng} of the random positions, or null if the file has positions
+     * @param ne      north east bound {@link LatLng} of the random positions, or null if the file has positions
+     * @param writers how many connections insert the rows
+     */
+    public ImportLocationsJob(File file, LatLng sw, LatLng ne, int writers) {
+        this.file = file;
+        this.sw = sw;
+        this.ne = ne;
+        this.writers = Math.max(writers, 1);
+        this.chunks = new ArrayBlockingQueue<ByteBuffer>(2 * workers);
+        this.batches = new ArrayBlockingQueue<Rows>(2 * this.writers);
+    }
+
+    @Override
+    public String getName() {
+        return "import-locations";
+    }
+
+    @Override
+    protected void execute(Connection conn) throws Exception {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            if (size == 0) {
+                return;
+            }
+
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW_SIZE, size));
+            LocationCsvParser header = LocationCsvParser.forHeader(window);
+            if (!header.hasPositions() && (sw == null || ne == null)) {
+                throw new IllegalArgumentException(file.getName() + " has no latitude and longitude columns, " +
+                        "bounds are needed to place its locations");
+            }
+
+            ExecutorService parsers = Executors.newFixedThreadPool(workers);
+            ExecutorService inserters = Executors.newFixedThreadPool(writers);
+            try {
+                List<Future<Void>> parsed = new ArrayList<Future<Void>>();
+                for (int i = 0; i < workers; i++) {
+                    parsed.add(parsers.submit(new Parser(header)));
+                }
+                List<Future<Void>> inserted = new ArrayList<Future<Void>>();
+                for (int i = 0; i < writers; i++) {
+                    inserted.add(inserters.submit(new Writer()));
+                }
+
+                try {
+                    read(channel, size, window);
+                } finally {
+                    for (int i = 0; i < workers; i++) {
+                        put(chunks, LAST_CHUNK);
+                    }
+                }
+                await(parsed);
+                for (int i = 0; i < writers; i++) {
+                    put(batches, LAST_ROWS);
+                }
+                await(inserted);
+            } catch (Exception e) {
+                failed = true;
+                throw e;
+            } finally {
+                parsers.shutdownNow();
+                inserters.shutdownNow();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Cuts the file into chunks of whole lines, mapping the next window from the start of the line
+     * the previous one cut in half.
+     */
+    private void read(FileChannel channel, long size, MappedByteBuffer window) throws IOException, InterruptedException {
+        long position = 0;
+        while (true) {
+            int end = window.limit();
+            if (position + end < size) {
+                while (end > window.position() && window.get(end - 1) != '\n') {
+                    end--;
+                }
+                if (end == window.position()) {
+                    throw new IOException("Line longer than " + WINDOW_SIZE + " bytes at offset " + position);
+                }
+            }
+
+            int from = window.position();
+            while (from < end) {
+                int to = Math.min(from + CHUNK_SIZE, end);
+                while (to < end && window.get(to - 1) != '\n') {
+                    to++;
+                }
+                ByteBuffer chunk = window.duplicate();
+                chunk.limit(to);
+                chunk.position(from);
+                put(chunks, chunk.slice());
+                from = to;
+            }
+
+            position += end;
+            if (position >= size) {
+                return;
+            }
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+        }
+    }
+
+    /**
+     * A batch of parsed rows.
+     */
+    private static final class Rows {
+        final String[] names;
+        final double[] latitudes;
+        final double[] longitudes;
+        final long[] quadKeys;
+        int size;
+
+        Rows(int capacity) {
+            names = new String[capacity];
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            quadKeys = new long[capacity];
+        }
+
+        boolean isFull() {
+            return size == names.length;
+        }
+    }
+
+    /**
+     * Parses the chunks into batches of rows.
+     */
+    private final class Parser implements Callable<Void>, LocationCsvParser.RowHandler {
+        private final LocationCsvParser parser;
+        private final boolean hasPositions;
+        private Rows rows = new Rows(BATCH_SIZE);
+
+        Parser(LocationCsvParser header) {
+            parser = new LocationCsvParser(header.nameColumn, header.latitudeColumn, header.longitudeColumn);
+            hasPositions = header.hasPositions();
+        }
+
+        @Override
+        public Void call() throws Exception {
+            try {
+                ByteBuffer chunk;
+                while ((chunk = take(chunks)) != LAST_CHUNK) {
+                    parser.parse(chunk, this);
+                }
+                if (rows.size > 0) {
+                    put(batches, rows);
+                }
+                return null;
+            } catch (Exception e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void row(String name, double latitude, double longitude) {
+            if (!hasPositions) {
+                LatLng latLng = RandomLocationsGenerator.generate(sw, ne, ThreadLocalRandom.current());
+                latitude = latLng.latitude;
+                longitude = latLng.longitude;
+            } else if (!(latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180)) {
+                // Also catches NaN
+                skipped.incrementAndGet();
+                return;
+            }
+
+            int i = rows.size++;
+            rows.names[i] = name.length() > MAX_NAME_LENGTH ? name.substring(0, MAX_NAME_LENGTH) : name;
+            rows.latitudes[i] = latitude;
+            rows.longitudes[i] = longitude;
+            rows.quadKeys[i] = LocationUtils.getQuadKey(latitude, longitude, Z19);
+            if (rows.isFull()) {
+                try {
+                    put(batches, rows);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+                rows = new Rows(BATCH_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Inserts the batches of rows on its own connection.
+     */
+    private final class Writer implements Callable<Void> {
+        @Override
+        public Void call() throws Exception {
+            try {
+                Connection conn = play.db.DB.getConnection(false);
+                try {
+                    PreparedStatement insert = conn.prepareStatement(
+                            "INSERT INTO location (name, latitude, longitude, quad_key) VALUES (?, ?, ?, ?)");
+                    try {
+                        Rows rows;
+                        while ((rows = take(batches)) != LAST_ROWS) {
+                            for (int i = 0; i < rows.size; i++) {
+                                insert.setString(1, rows.names[i]);
+                                insert.setDouble(2, rows.latitudes[i]);
+                                insert.setDouble(3, rows.longitudes[i]);
+                                insert.setLong(4, rows.quadKeys[i]);
+                                insert.addBatch();
+                            }
+                            insert.executeBatch();
+                            conn.commit();
+                            processed.addAndGet(rows.size);
+                        }
+                    } finally {
+                        insert.close();
+                    }
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.close();
+                }
+                return null;
+            } catch (Exception e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Waits for room in a queue, giving up if another stage failed and will never take from it.
+     */
+    private <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException {
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            if (failed) {
+                throw new IllegalStateException("The import failed");
+            }
+        }
+    }
+
+    /**
+     * Waits for an item of a queue, giving up if another stage failed and will never put into it.
+     */
+    private <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+        T item;
+        while ((item = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+            if (failed) {
+                throw new IllegalStateException("The import failed");
+            }
+        }
+        return item;
+    }
+
+    private static void await(List<Future<Void>> futures) throws Exception {
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package jobs;
+
+import clustering.ClusterIndex;
+import models.TileCount;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A bulk change of the location table running in the background.
+ * <p>
+ * <br/>
+ * The jobs write the locations with plain JDBC, bypassing the per row updates of the {@link TileCount}s
+ * and of the {@link ClusterIndex}, and rebuild both once they are done. Only one job runs at a time, so two
+ * jobs never rebuild the counts under each other.
+ * <p>
+ * <br/>
+ * The jobs commit their locations batch by batch, so a failed job leaves the batches it wrote in the table:
+ * the counts and the index are rebuilt after a failure as well, and the job is then marked as failed.
+ */
+public abstract class Job implements Runnable {
+
+    private static Logger log = LoggerFactory.getLogger(Job.class);
+
+    public enum State {
+        RUNNING, REBUILDING, DONE, FAILED
+    }
+
+    /**
+     * A snapshot of the progress of a job.
+     */
+    public static class Status {
+        public String name;
+        public State state;
+        /**
+         * How many locations the job will process, 0 if it is not known in advance.
+         */
+        public long total;
+        public long processed;
+        public long skipped;
+        public long startedAt;
+        public long finishedAt;
+        public String error;
+    }
+
+    /**
+     * The tables the jobs write to.
+     */
+    public interface Tables {
+        /**
+         * @return a connection without auto commit
+         * @throws SQLException
+         */
+        Connection getConnection() throws SQLException;
+
+        /**
+         * Counts all the locations again in the {@link TileCount}s and loads the {@link ClusterIndex} again.
+         *
+         * @throws SQLException
+         */
+        void rebuild() throws SQLException;
+    }
+
+    /**
+     * The location table of the default database.
+     */
+    public static final Tables DATABASE = new Tables() {
+        @Override
+        public Connection getConnection() {
+            return play.db.DB.getConnection(false);
+        }
+
+        @Override
+        public void rebuild() throws SQLException {
+            Connection conn = getConnection();
+            try {
+                TileCount.rebuild(conn);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.close();
+            }
+            ClusterIndex.load();
+        }
+    };
+
+    private static final AtomicReference<Job> current = new AtomicReference<Job>();
+
+    private final Tables tables;
+
+    protected volatile State state = State.RUNNING;
+    protected volatile long total;
+    protected final AtomicLong processed = new AtomicLong();
+    protected final AtomicLong skipped = new AtomicLong();
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+
+    protected Job() {
+        this(DATABASE);
+    }
+
+    /**
+     * @param tables the tables the job writes to
+     */
+    protected Job(Tables tables) {
+        this.tables = tables;
+    }
+
+    /**
+     * Starts a job on a background thread.
+     *
+     * @param job
+     * @return false if another job is still running
+     */
+    public static boolean start(Job job) {
+        Job previous = current.get();
+        if (previous != null && previous.isRunning()) {
+            return false;
+        }
+        if (!current.compareAndSet(previous, job)) {
+            return false;
+        }
+        job.startedAt = System.currentTimeMillis();
+        Thread thread = new Thread(job, job.getName());
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * @return the running or last finished job, or null if none has been started.
+     */
+    public static Job current() {
+        return current.get();
+    }
+
+    public boolean isRunning() {
+        return state == State.RUNNING || state == State.REBUILDING;
+    }
+
+    /**
+     * @return a snapshot of the progress of the job.
+     */
+    public Status getStatus() {
+        Status status = new Status();
+        status.name = getName();
+        status.state = state;
+        status.total = total;
+        status.processed = processed.get();
+        status.skipped = skipped.get();
+        status.startedAt = startedAt;
+        status.finishedAt = finishedAt;
+        status.error = error;
+        return status;
+    }
+
+    /**
+     * @return the name of the job, also used for its thread.
+     */
+    public abstract String getName();
+
+    /**
+     * Does the work of the job, the {@link TileCount}s are rebuilt and the {@link ClusterIndex} is reloaded after.
+     *
+     * @param conn a connection without auto commit
+     * @throws Exception
+     */
+    protected abstract void execute(Connection conn) throws Exception;
+
+    @Override
+    public final void run() {
+        Exception failure = null;
+        try {
+            // The job bypasses the location log, so a snapshot taken before it cannot be caught up with
+            ClusterIndex.deleteSnapshot();
+            Connection conn = tables.getConnection();
+            try {
+                execute(conn);
+                conn.commit();
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.close();
+            }
+        } catch (Exception e) {
+            log.error(getName() + " failed, counting the locations it wrote", e);
+            failure = e;
+        }
+
+        try {
+            // The locations were written in bulk, so count them all again, even those of a failed job
+            state = State.REBUILDING;
+            tables.rebuild();
+        } catch (Exception e) {
+            log.error(getName() + " could not rebuild the counts and the index", e);
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        finishedAt = System.currentTimeMillis();
+        if (failure != null) {
+            error = failure.getMessage();
+            state = State.FAILED;
+            return;
+        }
+        state = State.DONE;
+        log.info("{} processed {} locations in {} ms", getName(), processed.get(), finishedAt - startedAt);
+    }
+}
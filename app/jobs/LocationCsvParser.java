@@ -0,0 +1,307 @@
+package jobs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Parses the rows of a CSV file of locations straight from its bytes.
+ * <p>
+ * <br/>
+ * The columns are found by name in the header: name, latitude (or lat) and longitude (or lng, lon), in any
+ * order and among any other columns, which are skipped. The coordinates are parsed from the bytes without
+ * creating a String per field, only the name of every row becomes a String. Fields can be quoted with ",
+ * doubling the quotes inside them, but cannot span several lines.
+ * <p>
+ * <br/>
+ * A parser keeps a buffer for decoding the names, so every thread needs its own.
+ */
+public class LocationCsvParser {
+
+    /**
+     * The index of a column missing from the header.
+     */
+    public static final int NONE = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    /**
+     * Receives the parsed rows.
+     */
+    public interface RowHandler {
+        /**
+         * @param name      the name, an empty String if there is no name column
+         * @param latitude  the latitude, NaN if there is no latitude column or it is not a number
+         * @param longitude the longitude, NaN if there is no longitude column or it is not a number
+         */
+        void row(String name, double latitude, double longitude);
+    }
+
+    public final int nameColumn;
+    public final int latitudeColumn;
+    public final int longitudeColumn;
+
+    private byte[] scratch = new byte[256];
+
+    public LocationCsvParser(int nameColumn, int latitudeColumn, int longitudeColumn) {
+        this.nameColumn = nameColumn;
+        this.latitudeColumn = latitudeColumn;
+        this.longitudeColumn = longitudeColumn;
+    }
+
+    /**
+     * Reads the header line at the position of the buffer, skipping a UTF-8 byte order mark,
+     * and leaves the buffer positioned at the first row.
+     *
+     * @param buffer
+     * @return a parser for the columns of the header
+     */
+    public static LocationCsvParser forHeader(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() >= 3 && (buffer.get(start) & 0xff) == 0xef
+                && (buffer.get(start + 1) & 0xff) == 0xbb && (buffer.get(start + 2) & 0xff) == 0xbf) {
+            start += 3;
+        }
+        int end = start;
+        while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+        }
+        buffer.position(Math.min(end + 1, buffer.limit()));
+
+        final int[] columns = {NONE, NONE, NONE};
+        new LocationCsvParser(NONE, NONE, NONE).parseLine(buffer, start, trimCr(buffer, start, end), new FieldHandler() {
+            @Override
+            public void field(int column, String value) {
+                String name = value.trim().toLowerCase();
+                if (name.equals("name")) {
+                    columns[0] = column;
+                } else if (name.equals("latitude") || name.equals("lat")) {
+                    columns[1] = column;
+                } else if (name.equals("longitude") || name.equals("lng") || name.equals("lon")) {
+                    columns[2] = column;
+                }
+            }
+        });
+        return new LocationCsvParser(columns[0], columns[1], columns[2]);
+    }
+
+    /**
+     * @return true if the rows have their own latitude and longitude.
+     */
+    public boolean hasPositions() {
+        return latitudeColumn != NONE && longitudeColumn != NONE;
+    }
+
+    /**
+     * Parses all the lines between the position and the limit of a buffer, skipping the empty ones.
+     *
+     * @param buffer  the rows, ending with a new line or at the limit
+     * @param handler receives the rows
+     */
+    public void parse(ByteBuffer buffer, RowHandler handler) {
+        int limit = buffer.limit();
+        int start = buffer.position();
+        while (start < limit) {
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+            int lineEnd = trimCr(buffer, start, end);
+            if (lineEnd > start) {
+                parseRow(buffer, start, lineEnd, handler);
+            }
+            start = end + 1;
+        }
+        buffer.position(limit);
+    }
+
+    private interface FieldHandler {
+        void field(int column, String value);
+    }
+
+    private void parseRow(ByteBuffer buffer, int start, int end, RowHandler handler) {
+        String name = "";
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+
+        int column = 0;
+        int i = start;
+        while (true) {
+            int fieldStart;
+            int fieldEnd;
+            int next;
+            boolean escaped = false;
+            if (i < end && buffer.get(i) == '"') {
+                fieldStart = i + 1;
+                int j = fieldStart;
+                while (j < end) {
+                    if (buffer.get(j) == '"') {
+                        if (j + 1 < end && buffer.get(j + 1) == '"') {
+                            escaped = true;
+                            j += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    j++;
+                }
+                fieldEnd = j;
+                next = j;
+                while (next < end && buffer.get(next) != ',') {
+                    next++;
+                }
+            } else {
+                fieldStart = i;
+                next = i;
+                while (next < end && buffer.get(next) != ',') {
+                    next++;
+                }
+                fieldEnd = next;
+            }
+
+            if (column == nameColumn) {
+                name = decode(buffer, fieldStart, fieldEnd, escaped);
+            } else if (column == latitudeColumn) {
+                latitude = parseDouble(buffer, fieldStart, fieldEnd);
+            } else if (column == longitudeColumn) {
+                longitude = parseDouble(buffer, fieldStart, fieldEnd);
+            }
+
+            if (next >= end) {
+                break;
+            }
+            column++;
+            i = next + 1;
+        }
+        handler.row(name, latitude, longitude);
+    }
+
+    /**
+     * Splits a line into String fields, only used for the header.
+     */
+    private void parseLine(ByteBuffer buffer, int start, int end, FieldHandler handler) {
+        int column = 0;
+        int i = start;
+        while (true) {
+            int fieldStart = i;
+            int next = i;
+            boolean quoted = i < end && buffer.get(i) == '"';
+            if (quoted) {
+                fieldStart++;
+                next = fieldStart;
+                while (next < end && buffer.get(next) != '"') {
+                    next++;
+                }
+            }
+            int fieldEnd = next;
+            while (next < end && buffer.get(next) != ',') {
+                next++;
+            }
+            if (!quoted) {
+                fieldEnd = next;
+            }
+            handler.field(column++, decode(buffer, fieldStart, fieldEnd, false));
+            if (next >= end) {
+                break;
+            }
+            i = next + 1;
+        }
+    }
+
+    private String decode(ByteBuffer buffer, int from, int to, boolean escaped) {
+        int length = to - from;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            scratch[n++] = b;
+            if (escaped && b == '"') {
+                // Skip the second quote of a doubled quote
+                i++;
+            }
+        }
+        return new String(scratch, 0, n, UTF_8);
+    }
+
+    /**
+     * Parses a decimal number from bytes. Numbers with up to 18 significant digits and no exponent are computed
+     * directly, within one ulp of the exact value, the others fall back to {@link Double#parseDouble(String)}.
+     *
+     * @return the number, or NaN if the field is empty or not a number
+     */
+    static double parseDouble(ByteBuffer buffer, int from, int to) {
+        while (from < to && buffer.get(from) == ' ') {
+            from++;
+        }
+        while (to > from && buffer.get(to - 1) == ' ') {
+            to--;
+        }
+        if (from == to) {
+            return Double.NaN;
+        }
+
+        int i = from;
+        boolean negative = false;
+        byte first = buffer.get(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+        long mantissa = 0;
+        // The significant digits, leading zeros do not count
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        boolean number = false;
+        for (; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                if (digits == 18) {
+                    return parseSlow(buffer, from, to);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa > 0) {
+                    digits++;
+                }
+                if (dot) {
+                    scale++;
+                }
+                number = true;
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else {
+                return parseSlow(buffer, from, to);
+            }
+        }
+        if (!number) {
+            return Double.NaN;
+        }
+        if (scale >= POWERS_OF_TEN.length) {
+            return parseSlow(buffer, from, to);
+        }
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    private static double parseSlow(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = buffer.get(i);
+        }
+        try {
+            return Double.parseDouble(new String(bytes, UTF_8));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static int trimCr(ByteBuffer buffer, int start, int end) {
+        return end > start && buffer.get(end - 1) == '\r' ? end - 1 : end;
+    }
+}
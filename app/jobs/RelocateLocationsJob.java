@@ -0,0 +1,134 @@
+package jobs;
+
+import clustering.ClusterIndex;
+import clustering.LatLng;
+import clustering.LocationUtils;
+import clustering.RandomLocationsGenerator;
+import models.TileCount;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static clustering.ZoomLevel.Z19;
+
+/**
+ * Moves every location to a random position within bounds and recomputes its quad key, in the background.
+ * <p>
+ * <br/>
+ * The locations are read in batches of {@link #BATCH_SIZE} ids with keyset pagination, so every batch costs
+ * the same no matter how far the job got. The positions and quad keys of a batch are computed on the job thread,
+ * which takes microseconds next to writing them, and written with a single JDBC batch, committed per batch.
+ * Once all the locations moved, the {@link TileCount}s are rebuilt and the {@link ClusterIndex} reloaded.
+ */
+public class RelocateLocationsJob extends Job {
+
+    /**
+     * How many locations are read, computed and written together.
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    private final LatLng sw;
+    private final LatLng ne;
+
+    /**
+     * @param sw south west bound {@link LatLng}
+     * @param ne north east bound {@link LatLng}
+     */
+    public RelocateLocationsJob(LatLng sw, LatLng ne) {
+        this.sw = sw;
+        this.ne = ne;
+    }
+
+    @Override
+    public String getName() {
+        return "relocate-locations";
+    }
+
+    @Override
+    protected void execute(Connection conn) throws SQLException {
+        total = count(conn);
+
+        PreparedStatement select = conn.prepareStatement("SELECT id FROM location WHERE id > ? ORDER BY id LIMIT ?");
+        PreparedStatement update = conn.prepareStatement(
+                "UPDATE location SET latitude = ?, longitude = ?, quad_key = ? WHERE id = ?");
+        try {
+            long lastId = Long.MIN_VALUE;
+            long[] ids;
+            while ((ids = nextIds(select, lastId)).length > 0) {
+                Batch batch = compute(ids);
+                for (int i = 0; i < ids.length; i++) {
+                    update.setDouble(1, batch.latitudes[i]);
+                    update.setDouble(2, batch.longitudes[i]);
+                    update.setLong(3, batch.quadKeys[i]);
+                    update.setLong(4, ids[i]);
+                    update.addBatch();
+                }
+                update.executeBatch();
+                conn.commit();
+
+                lastId = ids[ids.length - 1];
+                processed.addAndGet(ids.length);
+            }
+        } finally {
+            select.close();
+            update.close();
+        }
+    }
+
+    private static long count(Connection conn) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM location");
+        try {
+            ResultSet result = stmt.executeQuery();
+            return result.next() ? result.getLong(1) : 0;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static long[] nextIds(PreparedStatement select, long lastId) throws SQLException {
+        select.setLong(1, lastId);
+        select.setInt(2, BATCH_SIZE);
+        ResultSet result = select.executeQuery();
+        long[] ids = new long[BATCH_SIZE];
+        int count = 0;
+        while (result.next()) {
+            ids[count++] = result.getLong(1);
+        }
+        result.close();
+        return count == BATCH_SIZE ? ids : Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * The new positions and quad keys of a batch of locations, in the order of their ids.
+     */
+    private static final class Batch {
+        final double[] latitudes;
+        final double[] longitudes;
+        final long[] quadKeys;
+
+        Batch(int size) {
+            latitudes = new double[size];
+            longitudes = new double[size];
+            quadKeys = new long[size];
+        }
+    }
+
+    /**
+     * Computes the new positions of a batch and their quad keys.
+     */
+    private Batch compute(long[] ids) {
+        Batch batch = new Batch(ids.length);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < ids.length; i++) {
+            LatLng latLng = RandomLocationsGenerator.generate(sw, ne, random);
+            batch.latitudes[i] = latLng.latitude;
+            batch.longitudes[i] = latLng.longitude;
+        }
+        LocationUtils.getQuadKeys(batch.latitudes, batch.longitudes, 0, ids.length, Z19, batch.quadKeys);
+        return batch;
+    }
+}
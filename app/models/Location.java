@@ -1,11 +1,19 @@
 package models;
 
+import clustering.ClusterIndex;
+import com.avaje.ebean.Ebean;
 import com.avaje.ebean.Page;
+import com.avaje.ebean.Transaction;
 import play.data.validation.Constraints;
 import play.db.ebean.Model;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.PersistenceException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 
 /**
  * Created by evelina on 10/04/2014.
@@ -22,7 +30,7 @@ public class Location extends Model {
     @Constraints.Required
     public Double longitude;
 
-    public String quadKey;
+    public Long quadKey;
 
     public String name;
 
@@ -63,4 +71,114 @@ public class Location extends Model {
                 .setFetchAhead(false)
                 .getPage(page);
     }
+
+    /**
+     * Inserts the location and counts it in the {@link TileCount}s and the {@link ClusterIndex}.
+     * Saving a location which already has an id updates it.
+     */
+    @Override
+    public void save() {
+        if (id != null) {
+            update();
+            return;
+        }
+        Transaction txn = Ebean.beginTransaction();
+        try {
+            super.save();
+            if (quadKey != null) {
+                TileCount.add(txn.getConnection(), id, latitude, longitude, quadKey);
+                LocationLog.append(txn.getConnection(), id, null, quadKey);
+            }
+            txn.commit();
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            txn.end();
+        }
+        ClusterIndex.add(this);
+    }
+
+    /**
+     * Updates the location and moves it between the {@link TileCount}s and in the {@link ClusterIndex}
+     * if its position changed, recording the move in the {@link LocationLog}.
+     */
+    @Override
+    public void update() {
+        Long oldQuadKey;
+        Transaction txn = Ebean.beginTransaction();
+        try {
+            Location old = findPosition(txn.getConnection(), id);
+            oldQuadKey = old != null ? old.quadKey : null;
+            super.update();
+            if (oldQuadKey != null && quadKey != null) {
+                TileCount.move(txn.getConnection(), id,
+                        old.latitude, old.longitude, oldQuadKey,
+                        latitude, longitude, quadKey);
+            } else if (oldQuadKey != null) {
+                TileCount.remove(txn.getConnection(), id, old.latitude, old.longitude, oldQuadKey);
+            } else if (quadKey != null) {
+                TileCount.add(txn.getConnection(), id, latitude, longitude, quadKey);
+            }
+            if (old != null && !(equal(oldQuadKey, quadKey) && equal(old.latitude, latitude) && equal(old.longitude, longitude))) {
+                LocationLog.append(txn.getConnection(), id, oldQuadKey, quadKey);
+            }
+            txn.commit();
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            txn.end();
+        }
+        ClusterIndex.move(oldQuadKey, this);
+    }
+
+    /**
+     * Deletes the location and removes it from the {@link TileCount}s and the {@link ClusterIndex}.
+     */
+    @Override
+    public void delete() {
+        Location old;
+        Transaction txn = Ebean.beginTransaction();
+        try {
+            old = findPosition(txn.getConnection(), id);
+            super.delete();
+            if (old != null && old.quadKey != null) {
+                TileCount.remove(txn.getConnection(), id, old.latitude, old.longitude, old.quadKey);
+                LocationLog.append(txn.getConnection(), id, old.quadKey, null);
+            }
+            txn.commit();
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            txn.end();
+        }
+        if (old != null) {
+            ClusterIndex.remove(old);
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Reads the stored position of a location, which may differ from the one of a modified bean.
+     */
+    private static Location findPosition(Connection conn, Long id) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT latitude, longitude, quad_key FROM location WHERE id = ?");
+        try {
+            stmt.setLong(1, id);
+            ResultSet result = stmt.executeQuery();
+            if (!result.next()) {
+                return null;
+            }
+            Location location = new Location();
+            location.id = id;
+            location.latitude = result.getDouble("latitude");
+            location.longitude = result.getDouble("longitude");
+            location.quadKey = (Long) result.getObject("quad_key");
+            return location;
+        } finally {
+            stmt.close();
+        }
+    }
 }
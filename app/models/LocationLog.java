@@ -0,0 +1,170 @@
+package models;
+
+import clustering.ClusterIndex;
+import clustering.PointSnapshot;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes of the locations since the last {@link PointSnapshot} of the {@link ClusterIndex}.
+ * <p>
+ * <br/>
+ * The location_log table gets a row whenever a {@link Location} is inserted, moved or deleted, in the same
+ * transaction, with the quad keys of the location before and after the change. Replaying a change removes the
+ * location from the index at both quad keys and adds it back from its current row, so replaying the same
+ * change twice, or a change the snapshot already includes, is harmless. That is why the rows are only deleted
+ * {@link #OVERLAP} changes behind the snapshot: a change committed while the snapshot was being read may
+ * have a smaller id than the last one the snapshot saw.
+ */
+public class LocationLog {
+
+    /**
+     * How many changes older than a snapshot are kept and replayed with it.
+     */
+    public static final long OVERLAP = 10000;
+
+    /**
+     * Records a change of a location.
+     *
+     * @param conn
+     * @param id         the id of the location
+     * @param oldQuadKey the quad key of the location before the change, or null if it had none
+     * @param newQuadKey the quad key of the location after the change, or null if it has none or was deleted
+     * @throws SQLException
+     */
+    public static void append(Connection conn, long id, Long oldQuadKey, Long newQuadKey) throws SQLException {
+        if (oldQuadKey == null && newQuadKey == null) {
+            return;
+        }
+        PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO location_log (location_id, old_quad_key, new_quad_key) VALUES (?, ?, ?)");
+        try {
+            stmt.setLong(1, id);
+            setQuadKey(stmt, 2, oldQuadKey);
+            setQuadKey(stmt, 3, newQuadKey);
+            stmt.executeUpdate();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Records the changes of a batch of locations in a single round trip, skipping the ones which had and still
+     * have no quad key.
+     *
+     * @param conn
+     * @param ids         the ids of the locations
+     * @param oldQuadKeys the quad keys of the locations before the change, null for the ones which had none
+     * @param newQuadKeys the quad keys of the locations after the change, null for the ones which have none
+     * @param count       how many changes to read from the arrays
+     * @throws SQLException
+     */
+    public static void append(Connection conn, long[] ids, Long[] oldQuadKeys, Long[] newQuadKeys, int count)
+            throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO location_log (location_id, old_quad_key, new_quad_key) VALUES (?, ?, ?)");
+        try {
+            boolean empty = true;
+            for (int i = 0; i < count; i++) {
+                if (oldQuadKeys[i] == null && newQuadKeys[i] == null) {
+                    continue;
+                }
+                stmt.setLong(1, ids[i]);
+                setQuadKey(stmt, 2, oldQuadKeys[i]);
+                setQuadKey(stmt, 3, newQuadKeys[i]);
+                stmt.addBatch();
+                empty = false;
+            }
+            if (!empty) {
+                stmt.executeBatch();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @param conn
+     * @return the id of the last change, 0 if there is none.
+     * @throws SQLException
+     */
+    public static long lastId(Connection conn) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT MAX(id) FROM location_log");
+        try {
+            ResultSet result = stmt.executeQuery();
+            return result.next() ? result.getLong(1) : 0;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Reads the quad keys every location had in the changes made after a snapshot, including the {@link #OVERLAP}
+     * changes before it.
+     *
+     * @param conn
+     * @param logId the id of the last change the snapshot includes
+     * @return the quad keys by location id, in the order of their first change
+     * @throws SQLException
+     */
+    public static Map<Long, Set<Long>> findChanges(Connection conn, long logId) throws SQLException {
+        Map<Long, Set<Long>> changes = new LinkedHashMap<Long, Set<Long>>();
+        PreparedStatement stmt = conn.prepareStatement(
+                "SELECT location_id, old_quad_key, new_quad_key FROM location_log WHERE id > ? ORDER BY id");
+        try {
+            stmt.setLong(1, logId - OVERLAP);
+            ResultSet result = stmt.executeQuery();
+            while (result.next()) {
+                long id = result.getLong(1);
+                Set<Long> quadKeys = changes.get(id);
+                if (quadKeys == null) {
+                    quadKeys = new HashSet<Long>(4);
+                    changes.put(id, quadKeys);
+                }
+                for (int column = 2; column <= 3; column++) {
+                    long quadKey = result.getLong(column);
+                    if (!result.wasNull()) {
+                        quadKeys.add(quadKey);
+                    }
+                }
+            }
+        } finally {
+            stmt.close();
+        }
+        return changes;
+    }
+
+    /**
+     * Deletes the changes a new snapshot made useless, keeping the {@link #OVERLAP} last ones it includes.
+     *
+     * @param conn
+     * @param logId the id of the last change the snapshot includes
+     * @return how many changes were deleted
+     * @throws SQLException
+     */
+    public static int truncate(Connection conn, long logId) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("DELETE FROM location_log WHERE id <= ?");
+        try {
+            stmt.setLong(1, logId - OVERLAP);
+            return stmt.executeUpdate();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static void setQuadKey(PreparedStatement stmt, int index, Long quadKey) throws SQLException {
+        if (quadKey != null) {
+            stmt.setLong(index, quadKey);
+        } else {
+            stmt.setNull(index, Types.BIGINT);
+        }
+    }
+}
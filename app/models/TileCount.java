@@ -0,0 +1,502 @@
+package models;
+
+import clustering.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static clustering.ZoomLevel.MAX_ZOOM;
+import static clustering.ZoomLevel.MIN_ZOOM;
+
+/**
+ * The pre-aggregated number of locations inside every tile, for every zoom level.
+ * <p>
+ * <br/>
+ * The tile_count table holds one row per non empty tile and zoom level with the number of locations inside it,
+ * the sum of their latitudes and longitudes and the id of one of them. The rows are kept up to date whenever a
+ * {@link Location} is inserted, moved or deleted, so the clusters for a zoom level are read with index range
+ * scans on (zoom, tile_key), one per range of {@link QuadTile#getCoveringRanges(LatLng, LatLng, ZoomLevel, int)},
+ * instead of grouping the whole location table.
+ */
+public class TileCount {
+
+    private static Logger log = LoggerFactory.getLogger(TileCount.class);
+
+    /**
+     * The maximum number of key ranges scanned by a single query.
+     */
+    private static final int MAX_RANGES = 32;
+
+    /**
+     * Counts a new location in all the tiles containing it.
+     *
+     * @param conn
+     * @param id
+     * @param latitude
+     * @param longitude
+     * @param quadKey  the {@link QuadKey} of the location at {@link ZoomLevel#Z19}
+     * @throws SQLException
+     */
+    public static void add(Connection conn, long id, double latitude, double longitude, long quadKey) throws SQLException {
+        add(conn, id, latitude, longitude, quadKey, MIN_ZOOM);
+    }
+
+    /**
+     * Removes a location from all the tiles containing it.
+     *
+     * @param conn
+     * @param id
+     * @param latitude
+     * @param longitude
+     * @param quadKey  the {@link QuadKey} of the location at {@link ZoomLevel#Z19}
+     * @throws SQLException
+     */
+    public static void remove(Connection conn, long id, double latitude, double longitude, long quadKey) throws SQLException {
+        remove(conn, id, latitude, longitude, quadKey, MIN_ZOOM);
+    }
+
+    /**
+     * Moves a location from one position to another. The tiles containing both positions keep their count
+     * and only have their sums adjusted, the others are decremented and incremented.
+     *
+     * @throws SQLException
+     */
+    public static void move(Connection conn, long id,
+                            double oldLatitude, double oldLongitude, long oldQuadKey,
+                            double newLatitude, double newLongitude, long newQuadKey) throws SQLException {
+        // The first zoom level at which the two positions are in different tiles
+        int split = MIN_ZOOM;
+        while (split <= MAX_ZOOM && QuadKey.ancestor(oldQuadKey, split) == QuadKey.ancestor(newQuadKey, split)) {
+            split++;
+        }
+
+        if (split > MIN_ZOOM) {
+            String sql = "UPDATE tile_count SET sum_lat = sum_lat + ?, sum_lng = sum_lng + ? WHERE zoom = ? AND tile_key = ?";
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            try {
+                for (int zoom = MIN_ZOOM; zoom < split; zoom++) {
+                    stmt.setDouble(1, newLatitude - oldLatitude);
+                    stmt.setDouble(2, newLongitude - oldLongitude);
+                    stmt.setInt(3, zoom);
+                    stmt.setLong(4, QuadKey.ancestor(newQuadKey, zoom));
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            } finally {
+                stmt.close();
+            }
+        }
+
+        if (split <= MAX_ZOOM) {
+            remove(conn, id, oldLatitude, oldLongitude, oldQuadKey, split);
+            add(conn, id, newLatitude, newLongitude, newQuadKey, split);
+        }
+    }
+
+    /**
+     * The changes of the tiles for a batch of moved locations, summed up per tile so every tile is written once
+     * however many of the locations went through it.
+     * <p>
+     * <br/>
+     * Locations moving a little share all their tiles down to the zoom level where their positions part, so a
+     * batch of thousands of moves writes far fewer rows than {@link #move(Connection, long, double, double, long,
+     * double, double, long)} would, one location at a time.
+     */
+    public static class Changes {
+
+        private static final class Change {
+            int count;
+            double sumLatitude;
+            double sumLongitude;
+            /**
+             * A location entering the tile, the sample of the tile if it is new.
+             */
+            long entered;
+            /**
+             * The locations leaving the tile, which cannot stay its sample.
+             */
+            List<Long> left;
+        }
+
+        /**
+         * The changes by tile key, whose zoom level is part of the key, in key order to write the rows in the same
+         * order as the other batches.
+         */
+        private final TreeMap<Long, Change> changes = new TreeMap<Long, Change>();
+
+        /**
+         * Moves a location from one position to another.
+         *
+         * @param id
+         * @param oldLatitude
+         * @param oldLongitude
+         * @param oldQuadKey   the {@link QuadKey} of the old position at {@link ZoomLevel#Z19}
+         * @param newLatitude
+         * @param newLongitude
+         * @param newQuadKey   the {@link QuadKey} of the new position at {@link ZoomLevel#Z19}
+         */
+        public void move(long id, double oldLatitude, double oldLongitude, long oldQuadKey,
+                         double newLatitude, double newLongitude, long newQuadKey) {
+            for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+                long oldTile = QuadKey.ancestor(oldQuadKey, zoom);
+                long newTile = QuadKey.ancestor(newQuadKey, zoom);
+                if (oldTile == newTile) {
+                    Change change = get(newTile);
+                    change.sumLatitude += newLatitude - oldLatitude;
+                    change.sumLongitude += newLongitude - oldLongitude;
+                } else {
+                    leave(id, oldLatitude, oldLongitude, oldTile);
+                    enter(id, newLatitude, newLongitude, newTile);
+                }
+            }
+        }
+
+        /**
+         * Counts a location which had no position.
+         *
+         * @param id
+         * @param latitude
+         * @param longitude
+         * @param quadKey   the {@link QuadKey} of the location at {@link ZoomLevel#Z19}
+         */
+        public void add(long id, double latitude, double longitude, long quadKey) {
+            for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+                enter(id, latitude, longitude, QuadKey.ancestor(quadKey, zoom));
+            }
+        }
+
+        /**
+         * @return how many tiles changed.
+         */
+        public int size() {
+            return changes.size();
+        }
+
+        /**
+         * Writes the changes, in the transaction of the connection, after the locations themselves were written.
+         *
+         * @param conn
+         * @throws SQLException
+         */
+        public void apply(Connection conn) throws SQLException {
+            PreparedStatement upsert = conn.prepareStatement(
+                    "INSERT INTO tile_count (zoom, tile_key, cnt, sum_lat, sum_lng, sample_location_id) " +
+                            "VALUES (?, ?, ?, ?, ?, ?) " +
+                            "ON DUPLICATE KEY UPDATE cnt = cnt + VALUES(cnt), " +
+                            "sum_lat = sum_lat + VALUES(sum_lat), sum_lng = sum_lng + VALUES(sum_lng)");
+            PreparedStatement delete = conn.prepareStatement(
+                    "DELETE FROM tile_count WHERE zoom = ? AND tile_key = ? AND cnt <= 0");
+            // The locations were already written, so the left locations are not in the tile anymore
+            PreparedStatement resample = conn.prepareStatement(
+                    "UPDATE tile_count SET sample_location_id = " +
+                            "(SELECT id FROM location WHERE quad_key BETWEEN ? AND ? LIMIT 1) " +
+                            "WHERE zoom = ? AND tile_key = ? AND sample_location_id = ?");
+            try {
+                for (Map.Entry<Long, Change> entry : changes.entrySet()) {
+                    long tileKey = entry.getKey();
+                    int zoom = QuadKey.zoom(tileKey);
+                    Change change = entry.getValue();
+
+                    upsert.setInt(1, zoom);
+                    upsert.setLong(2, tileKey);
+                    upsert.setInt(3, change.count);
+                    upsert.setDouble(4, change.sumLatitude);
+                    upsert.setDouble(5, change.sumLongitude);
+                    upsert.setLong(6, change.entered);
+                    upsert.addBatch();
+
+                    if (change.left == null) {
+                        continue;
+                    }
+                    if (change.count < 0) {
+                        delete.setInt(1, zoom);
+                        delete.setLong(2, tileKey);
+                        delete.addBatch();
+                    }
+                    for (long id : change.left) {
+                        resample.setLong(1, QuadKey.min(tileKey));
+                        resample.setLong(2, QuadKey.max(tileKey));
+                        resample.setInt(3, zoom);
+                        resample.setLong(4, tileKey);
+                        resample.setLong(5, id);
+                        resample.addBatch();
+                    }
+                }
+                upsert.executeBatch();
+                delete.executeBatch();
+                resample.executeBatch();
+            } finally {
+                upsert.close();
+                delete.close();
+                resample.close();
+            }
+        }
+
+        private void enter(long id, double latitude, double longitude, long tileKey) {
+            Change change = get(tileKey);
+            change.count++;
+            change.sumLatitude += latitude;
+            change.sumLongitude += longitude;
+            change.entered = id;
+        }
+
+        private void leave(long id, double latitude, double longitude, long tileKey) {
+            Change change = get(tileKey);
+            change.count--;
+            change.sumLatitude -= latitude;
+            change.sumLongitude -= longitude;
+            if (change.left == null) {
+                change.left = new ArrayList<Long>(2);
+            }
+            change.left.add(id);
+        }
+
+        private Change get(long tileKey) {
+            Change change = changes.get(tileKey);
+            if (change == null) {
+                change = new Change();
+                changes.put(tileKey, change);
+            }
+            return change;
+        }
+    }
+
+    /**
+     * Recomputes the whole table from the location table, useful after bulk changes.
+     * <p>
+     * <br/>
+     * Only the {@link ZoomLevel#Z19} tiles are counted from the locations, grouping them by quad key in the order
+     * of the ix_location_quad_key index which covers the query, so the location table is read once and without
+     * sorting. Every other zoom level is then summed up from the tiles of the level below, which are far fewer
+     * rows than the locations.
+     *
+     * @param conn
+     * @throws SQLException
+     */
+    public static void rebuild(Connection conn) throws SQLException {
+        long start = System.currentTimeMillis();
+        PreparedStatement delete = conn.prepareStatement("DELETE FROM tile_count");
+        try {
+            delete.executeUpdate();
+        } finally {
+            delete.close();
+        }
+
+        PreparedStatement leaves = conn.prepareStatement(
+                "INSERT INTO tile_count (zoom, tile_key, cnt, sum_lat, sum_lng, sample_location_id) " +
+                        "SELECT ?, quad_key, COUNT(*), SUM(latitude), SUM(longitude), MIN(id) " +
+                        "FROM location " +
+                        "WHERE quad_key IS NOT NULL " +
+                        "GROUP BY quad_key");
+        try {
+            leaves.setInt(1, MAX_ZOOM);
+            leaves.executeUpdate();
+        } finally {
+            leaves.close();
+        }
+
+        // A tile of a single location has a single child tile of a single location, so its sample stays right
+        PreparedStatement parents = conn.prepareStatement(
+                "INSERT INTO tile_count (zoom, tile_key, cnt, sum_lat, sum_lng, sample_location_id) " +
+                        "SELECT ?, ((tile_key >> ?) << ?) | ?, SUM(cnt), SUM(sum_lat), SUM(sum_lng), MIN(sample_location_id) " +
+                        "FROM tile_count " +
+                        "WHERE zoom = ? " +
+                        "GROUP BY tile_key >> ?");
+        try {
+            for (int zoom = MAX_ZOOM - 1; zoom >= MIN_ZOOM; zoom--) {
+                int shift = QuadKey.shift(zoom);
+                parents.setInt(1, zoom);
+                parents.setInt(2, shift);
+                parents.setInt(3, shift);
+                parents.setInt(4, zoom);
+                parents.setInt(5, zoom + 1);
+                parents.setInt(6, shift);
+                parents.executeUpdate();
+            }
+        } finally {
+            parents.close();
+        }
+        log.info("Rebuilt the tile counts in {} ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Returns all the clusters at the given zoom level whose tiles intersect the given bounds.
+     *
+     * @param sw   south west bound {@link LatLng}
+     * @param ne   north east bound {@link LatLng}
+     * @param zoom the zoom level of the clusters
+     * @return
+     * @throws SQLException
+     */
+    public static List<Cluster> findClusters(LatLng sw, LatLng ne, ZoomLevel zoom) throws SQLException {
+        Cluster.Collector collector = new Cluster.Collector();
+        visitClusters(sw, ne, zoom, collector);
+        return collector.clusters;
+    }
+
+    /**
+     * Returns all the clusters at the given zoom level inside a tile of a lower (or the same) zoom level.
+     *
+     * @param quadKey the {@link QuadKey} of the tile
+     * @param zoom    the zoom level of the clusters
+     * @return
+     * @throws SQLException
+     */
+    public static List<Cluster> findClusters(long quadKey, ZoomLevel zoom) throws SQLException {
+        // The descendants of a tile are a single range of keys
+        long[] range = {QuadKey.first(quadKey, zoom.zoom), QuadKey.last(quadKey, zoom.zoom)};
+        Cluster.Collector collector = new Cluster.Collector();
+        visitClusters(range, QuadTile.getMinTileXY(quadKey, zoom), QuadTile.getMaxTileXY(quadKey, zoom), zoom, collector);
+        return collector.clusters;
+    }
+
+    /**
+     * Visits all the clusters at the given zoom level whose tiles intersect the given bounds,
+     * as the rows are read from the database.
+     *
+     * @param sw      south west bound {@link LatLng}
+     * @param ne      north east bound {@link LatLng}
+     * @param zoom    the zoom level of the clusters
+     * @param visitor receives the clusters
+     * @throws SQLException
+     */
+    public static void visitClusters(LatLng sw, LatLng ne, ZoomLevel zoom, ClusterVisitor visitor) throws SQLException {
+        visitClusters(QuadTile.getCoveringRanges(sw, ne, zoom, MAX_RANGES),
+                QuadTile.getMinTileXY(sw, ne, zoom), QuadTile.getMaxTileXY(sw, ne, zoom), zoom, visitor);
+    }
+
+    private static void visitClusters(long[] ranges, Point min, Point max, ZoomLevel zoom,
+                                      ClusterVisitor visitor) throws SQLException {
+        if (ranges.length == 0) {
+            return;
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT t.tile_key, t.cnt, t.sum_lat, t.sum_lng, l.id, l.name, l.latitude, l.longitude " +
+                "FROM tile_count t " +
+                "LEFT JOIN location l ON l.id = t.sample_location_id AND t.cnt = 1 " +
+                "WHERE t.zoom = ? AND (");
+        for (int i = 0; i < ranges.length; i += 2) {
+            sql.append(i == 0 ? "" : " OR ").append("t.tile_key BETWEEN ? AND ?");
+        }
+        sql.append(")");
+
+        Connection conn = play.db.DB.getConnection();
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            if ("MySQL".equals(conn.getMetaData().getDatabaseProductName())) {
+                // Hand the rows to the visitor as they arrive instead of buffering them all in the driver
+                stmt.setFetchSize(Integer.MIN_VALUE);
+            }
+            stmt.setInt(1, zoom.zoom);
+            for (int i = 0; i < ranges.length; i++) {
+                stmt.setLong(i + 2, ranges[i]);
+            }
+
+            log.debug("Executing SQL {}", stmt.toString());
+
+            ResultSet result = stmt.executeQuery();
+            while (result.next()) {
+                long quadKey = result.getLong("tile_key");
+                int x = QuadKey.x(quadKey);
+                int y = QuadKey.y(quadKey);
+                // Merged ranges can include a few tiles outside of the bounds
+                if (x < min.x || x > max.x || y < min.y || y > max.y) {
+                    continue;
+                }
+                int count = result.getInt("cnt");
+                Location location = null;
+                if (count == 1) {
+                    location = new Location();
+                    location.id = result.getLong("id");
+                    location.name = result.getString("name");
+                    location.latitude = result.getDouble("latitude");
+                    location.longitude = result.getDouble("longitude");
+                }
+                visitor.visit(quadKey, count, result.getDouble("sum_lat") / count, result.getDouble("sum_lng") / count, location);
+            }
+        } finally {
+            try {
+                if (stmt != null) {
+                    stmt.close();
+                }
+                conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void add(Connection conn, long id, double latitude, double longitude, long quadKey,
+                            int fromZoom) throws SQLException {
+        String sql = "INSERT INTO tile_count (zoom, tile_key, cnt, sum_lat, sum_lng, sample_location_id) " +
+                "VALUES (?, ?, 1, ?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE cnt = cnt + 1, sum_lat = sum_lat + VALUES(sum_lat), sum_lng = sum_lng + VALUES(sum_lng)";
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            for (int zoom = fromZoom; zoom <= MAX_ZOOM; zoom++) {
+                stmt.setInt(1, zoom);
+                stmt.setLong(2, QuadKey.ancestor(quadKey, zoom));
+                stmt.setDouble(3, latitude);
+                stmt.setDouble(4, longitude);
+                stmt.setLong(5, id);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static void remove(Connection conn, long id, double latitude, double longitude, long quadKey,
+                               int fromZoom) throws SQLException {
+        PreparedStatement decrement = conn.prepareStatement(
+                "UPDATE tile_count SET cnt = cnt - 1, sum_lat = sum_lat - ?, sum_lng = sum_lng - ? " +
+                        "WHERE zoom = ? AND tile_key = ?");
+        PreparedStatement delete = conn.prepareStatement(
+                "DELETE FROM tile_count WHERE zoom = ? AND tile_key = ? AND cnt <= 0");
+        // Pick another location of the tile as the sample if the removed one was the sample
+        PreparedStatement resample = conn.prepareStatement(
+                "UPDATE tile_count SET sample_location_id = " +
+                        "(SELECT id FROM location WHERE quad_key BETWEEN ? AND ? AND id <> ? LIMIT 1) " +
+                        "WHERE zoom = ? AND tile_key = ? AND sample_location_id = ?");
+        try {
+            for (int zoom = fromZoom; zoom <= MAX_ZOOM; zoom++) {
+                long tileKey = QuadKey.ancestor(quadKey, zoom);
+
+                decrement.setDouble(1, latitude);
+                decrement.setDouble(2, longitude);
+                decrement.setInt(3, zoom);
+                decrement.setLong(4, tileKey);
+                decrement.addBatch();
+
+                delete.setInt(1, zoom);
+                delete.setLong(2, tileKey);
+                delete.addBatch();
+
+                resample.setLong(1, QuadKey.min(tileKey));
+                resample.setLong(2, QuadKey.max(tileKey));
+                resample.setLong(3, id);
+                resample.setInt(4, zoom);
+                resample.setLong(5, tileKey);
+                resample.setLong(6, id);
+                resample.addBatch();
+            }
+            decrement.executeBatch();
+            delete.executeBatch();
+            resample.executeBatch();
+        } finally {
+            decrement.close();
+            delete.close();
+            resample.close();
+        }
+    }
+}
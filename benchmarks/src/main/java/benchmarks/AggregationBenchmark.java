@@ -0,0 +1,132 @@
+package benchmarks;
+
+import clustering.ClusterVisitor;
+import clustering.LatLng;
+import clustering.LocationUtils;
+import clustering.PointStore;
+import clustering.QuadTree;
+import clustering.RandomLocationsGenerator;
+import clustering.ZoomLevel;
+import models.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static clustering.ZoomLevel.Z19;
+
+/**
+ * Aggregating the clusters of a 1024x768 pixels viewport from a {@link QuadTree} and from the sorted columns
+ * of a {@link PointStore} of the same synthetic locations over the UK, spread evenly or around cities,
+ * at a country, a city and a street zoom level. The store is scanned on the calling thread and split across
+ * a {@link ForkJoinPool} of all the cores, which only kicks in for views of more than
+ * {@link PointStore#PARALLEL_THRESHOLD} locations.
+ * <p>
+ * <br/>
+ * The dataset is built once per trial. 100M points ("-p points=100000000") need a heap of about 32GB,
+ * so they also need "-jvmArgsAppend -Xmx32g".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AggregationBenchmark {
+
+    private static final LatLng UK_SW = new LatLng(51.508742, -3.240967);
+    private static final LatLng UK_NE = new LatLng(54.316523, -0.736084);
+
+    private static final int VIEWPORT_WIDTH = 1024;
+    private static final int VIEWPORT_HEIGHT = 768;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int points;
+
+    @Param({"Z6", "Z10", "Z14"})
+    public ZoomLevel zoom;
+
+    @Param({"UNIFORM", "CITIES"})
+    public RandomLocationsGenerator.Distribution distribution;
+
+    private QuadTree tree;
+    private PointStore store;
+    private ForkJoinPool pool;
+    private LatLng sw;
+    private LatLng ne;
+
+    @Setup
+    public void setUp() {
+        Positions positions = new Positions(points, new RandomLocationsGenerator.Builder()
+                .bounds(UK_SW, UK_NE)
+                .distribution(distribution)
+                .seed(42)
+                .build());
+        tree = new QuadTree();
+        for (int i = 0; i < points; i++) {
+            Location location = new Location();
+            location.id = (long) i;
+            location.latitude = positions.latitudes[i];
+            location.longitude = positions.longitudes[i];
+            tree.add(LocationUtils.getQuadKey(positions.latitudes[i], positions.longitudes[i], Z19), location);
+        }
+        store = positions.toStore(true);
+        pool = new ForkJoinPool();
+
+        Viewport viewport = new Viewport((UK_SW.latitude + UK_NE.latitude) / 2,
+                (UK_SW.longitude + UK_NE.longitude) / 2, zoom.zoom, VIEWPORT_WIDTH, VIEWPORT_HEIGHT);
+        sw = viewport.sw;
+        ne = viewport.ne;
+    }
+
+    @Benchmark
+    public int visitClusters() {
+        Counter counter = new Counter();
+        tree.visitClusters(sw, ne, zoom, counter);
+        return counter.count;
+    }
+
+    @Benchmark
+    public int visitStoreClusters() {
+        Counter counter = new Counter();
+        store.visitClusters(sw, ne, zoom, counter);
+        return counter.count;
+    }
+
+    @Benchmark
+    public int visitStoreClustersInParallel() {
+        Counter counter = new Counter();
+        store.visitClusters(sw, ne, zoom, pool, counter);
+        return counter.count;
+    }
+
+    @Benchmark
+    public int getClusters() {
+        return tree.getClusters(sw, ne, zoom).size();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    private static final class Counter implements ClusterVisitor {
+        int count;
+
+        @Override
+        public void visit(long quadKey, int count, double latitude, double longitude, Location location) {
+            this.count += count;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package benchmarks;
+
+import clustering.Cluster;
+import clustering.ClusterJsonWriter;
+import clustering.ClusterVisitor;
+import clustering.LocationUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static clustering.ZoomLevel.Z10;
+
+/**
+ * Serializing a viewport of clusters to JSON, by building {@link Cluster}s for Jackson data binding as
+ * {@link play.libs.Json#toJson(Object)} does, or by streaming them with a {@link ClusterJsonWriter}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClusterJsonBenchmark {
+
+    @Param({"100", "1000"})
+    public int clusters;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+
+    private long[] quadKeys;
+    private int[] counts;
+    private Positions positions;
+
+    @Setup
+    public void setUp() {
+        positions = new Positions(clusters, Positions.SW, Positions.NE, 42);
+        Random random = new Random(42);
+        quadKeys = new long[clusters];
+        counts = new int[clusters];
+        for (int i = 0; i < clusters; i++) {
+            quadKeys[i] = LocationUtils.getQuadKey(positions.latitudes[i], positions.longitudes[i], Z10);
+            // Only clusters, single locations would need the database
+            counts[i] = 2 + random.nextInt(1000);
+        }
+    }
+
+    @Benchmark
+    public int dataBinding() throws IOException {
+        Cluster.Collector collector = new Cluster.Collector();
+        visit(collector);
+        Map<Long, Cluster> byQuadKey = new LinkedHashMap<Long, Cluster>();
+        for (Cluster cluster : collector.clusters) {
+            byQuadKey.put(cluster.quadKey, cluster);
+        }
+        out.reset();
+        mapper.writeValue(out, byQuadKey);
+        return out.size();
+    }
+
+    @Benchmark
+    public int streaming() throws IOException {
+        out.reset();
+        ClusterJsonWriter writer = new ClusterJsonWriter(out);
+        visit(writer);
+        writer.close();
+        return out.size();
+    }
+
+    private void visit(ClusterVisitor visitor) {
+        for (int i = 0; i < clusters; i++) {
+            visitor.visit(quadKeys[i], counts[i], positions.latitudes[i], positions.longitudes[i], null);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package benchmarks;
+
+import clustering.DistanceMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The throughput of every {@link DistanceMode} for pairs of positions within a few kilometers, a few hundred
+ * kilometers and anywhere on Earth. The error of the mode against {@link DistanceMode#VINCENTY} for the same
+ * pairs is printed once per trial, before the measurements.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceModeBenchmark {
+
+    /**
+     * How far apart the two positions of a pair are at most, in degrees.
+     */
+    @Param({"0.05", "5", "180"})
+    public double span;
+
+    @Param({"VINCENTY", "HAVERSINE", "EQUIRECTANGULAR"})
+    public DistanceMode mode;
+
+    private final double[] latitudes1 = new double[Positions.SIZE];
+    private final double[] longitudes1 = new double[Positions.SIZE];
+    private final double[] latitudes2 = new double[Positions.SIZE];
+    private final double[] longitudes2 = new double[Positions.SIZE];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < Positions.SIZE; i++) {
+            latitudes1[i] = random.nextDouble() * 160 - 80;
+            longitudes1[i] = random.nextDouble() * 360 - 180;
+            latitudes2[i] = Math.max(-85, Math.min(85, latitudes1[i] + (random.nextDouble() * 2 - 1) * span / 2));
+            longitudes2[i] = longitudes1[i] + (random.nextDouble() * 2 - 1) * span;
+        }
+
+        double maxError = 0;
+        double sumError = 0;
+        int compared = 0;
+        for (int i = 0; i < Positions.SIZE; i++) {
+            double reference = DistanceMode.VINCENTY.distance(latitudes1[i], longitudes1[i], latitudes2[i], longitudes2[i]);
+            // Vincenty gives 0 when it does not converge, near antipodal points
+            if (reference > 1) {
+                double distance = mode.distance(latitudes1[i], longitudes1[i], latitudes2[i], longitudes2[i]);
+                double error = Math.abs(distance - reference) / reference;
+                maxError = Math.max(maxError, error);
+                sumError += error;
+                compared++;
+            }
+        }
+        System.out.println(String.format("%n%s within %s degrees: error mean %.4f%% max %.4f%%",
+                mode, span, 100 * sumError / compared, 100 * maxError));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Positions.SIZE)
+    public double distances() {
+        double sum = 0;
+        for (int i = 0; i < Positions.SIZE; i++) {
+            sum += mode.distance(latitudes1[i], longitudes1[i], latitudes2[i], longitudes2[i]);
+        }
+        return sum;
+    }
+}
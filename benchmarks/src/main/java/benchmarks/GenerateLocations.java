@@ -0,0 +1,89 @@
+package benchmarks;
+
+import clustering.LatLng;
+import clustering.LocationUtils;
+import clustering.RandomLocationsGenerator;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static clustering.ZoomLevel.Z19;
+
+/**
+ * Writes a synthetic dataset of a {@link RandomLocationsGenerator} to a binary file, for loading datasets
+ * bigger than the database comfortably holds into tools and benchmarks.
+ * <p>
+ * <br/>
+ * The file is little endian: the magic "LOCS", a version int of 1 and a long count, then per location its
+ * latitude and longitude as doubles and its quad key at Z19 as a long.
+ * <p>
+ * <br/>
+ * Usage: GenerateLocations file count [distribution=UNIFORM] [seed=42] [sw=49.9,-8.2] [ne=58.7,1.8]
+ */
+public class GenerateLocations {
+
+    public static final int MAGIC = 0x53434f4c;
+    public static final int VERSION = 1;
+
+    private static final int BATCH_SIZE = 8192;
+    private static final int RECORD_SIZE = 24;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: GenerateLocations file count [distribution=UNIFORM] [seed=42] " +
+                    "[sw=49.9,-8.2] [ne=58.7,1.8]");
+            System.exit(1);
+        }
+        long count = Long.parseLong(args[1]);
+        RandomLocationsGenerator generator = new RandomLocationsGenerator.Builder()
+                .distribution(RandomLocationsGenerator.Distribution.valueOf(
+                        (args.length > 2 ? args[2] : "UNIFORM").toUpperCase()))
+                .seed(args.length > 3 ? Long.parseLong(args[3]) : 42)
+                .bounds(LatLng.parse(args.length > 4 ? args[4] : "49.9,-8.2"),
+                        LatLng.parse(args.length > 5 ? args[5] : "58.7,1.8"))
+                .build();
+
+        long start = System.currentTimeMillis();
+        FileOutputStream out = new FileOutputStream(args[0]);
+        try {
+            write(out.getChannel(), generator, count);
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + count + " " + generator.getDistribution() + " locations to " + args[0]
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    static void write(FileChannel channel, RandomLocationsGenerator generator, long count) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(count).flip();
+        writeFully(channel, header);
+
+        Random random = generator.random(0);
+        double[] latitudes = new double[BATCH_SIZE];
+        double[] longitudes = new double[BATCH_SIZE];
+        long[] quadKeys = new long[BATCH_SIZE];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_SIZE * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (long written = 0; written < count; written += BATCH_SIZE) {
+            int size = (int) Math.min(BATCH_SIZE, count - written);
+            generator.generate(random, latitudes, longitudes, 0, size);
+            LocationUtils.getQuadKeys(latitudes, longitudes, 0, size, Z19, quadKeys);
+            buffer.clear();
+            for (int i = 0; i < size; i++) {
+                buffer.putDouble(latitudes[i]).putDouble(longitudes[i]).putLong(quadKeys[i]);
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
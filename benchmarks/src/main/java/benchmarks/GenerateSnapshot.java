@@ -0,0 +1,45 @@
+package benchmarks;
+
+import clustering.LatLng;
+import clustering.PointSnapshot;
+import clustering.PointStore;
+import clustering.RandomLocationsGenerator;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes a synthetic dataset of a {@link RandomLocationsGenerator} to a {@link PointSnapshot} file, which the
+ * benchmarks and the server (clustering.index.snapshot) can map without a database.
+ * <p>
+ * <br/>
+ * The ids of the locations are their indexes in generation order, so the names of the single location clusters
+ * of a server restored from such a file are the ones of whatever rows of the location table have those ids.
+ * <p>
+ * <br/>
+ * Usage: GenerateSnapshot file count [distribution=UNIFORM] [seed=42] [sw=49.9,-8.2] [ne=58.7,1.8]
+ */
+public class GenerateSnapshot {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: GenerateSnapshot file count [distribution=UNIFORM] [seed=42] " +
+                    "[sw=49.9,-8.2] [ne=58.7,1.8]");
+            System.exit(1);
+        }
+        int count = Integer.parseInt(args[1]);
+        RandomLocationsGenerator generator = new RandomLocationsGenerator.Builder()
+                .distribution(RandomLocationsGenerator.Distribution.valueOf(
+                        (args.length > 2 ? args[2] : "UNIFORM").toUpperCase()))
+                .seed(args.length > 3 ? Long.parseLong(args[3]) : 42)
+                .bounds(LatLng.parse(args.length > 4 ? args[4] : "49.9,-8.2"),
+                        LatLng.parse(args.length > 5 ? args[5] : "58.7,1.8"))
+                .build();
+
+        long start = System.currentTimeMillis();
+        PointStore store = new Positions(count, generator).toStore(false);
+        PointSnapshot.write(store, 0, new File(args[0]));
+        System.out.println("Wrote " + count + " " + generator.getDistribution() + " locations to " + args[0]
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
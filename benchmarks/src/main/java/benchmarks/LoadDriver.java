@@ -0,0 +1,217 @@
+package benchmarks;
+
+import clustering.LatLng;
+import clustering.RandomLocationsGenerator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays pan and zoom sessions against /json/locations of a running server and reports the latencies
+ * and the throughput.
+ * <p>
+ * <br/>
+ * Every user starts at a location drawn from the same {@link RandomLocationsGenerator} as the data, so most
+ * sessions start over a city, then keeps panning by up to half a screen, zooming in or out by a level and
+ * sometimes jumping to another location, waiting for every response before the next request. Users are seeded
+ * by their index, so the same arguments replay the same viewports.
+ * <p>
+ * <br/>
+ * Usage: LoadDriver url [users=8] [seconds=60] [thinkMs=0] [distribution=CITIES] [seed=42]
+ * [sw=49.9,-8.2] [ne=58.7,1.8], for example LoadDriver http://localhost:9000 16 120
+ */
+public class LoadDriver {
+
+    private static final int VIEWPORT_WIDTH = 1024;
+    private static final int VIEWPORT_HEIGHT = 768;
+    private static final int MIN_ZOOM = 5;
+    private static final int MAX_ZOOM = 17;
+
+    private final String url;
+    private final RandomLocationsGenerator generator;
+    private final long deadline;
+    private final long thinkMillis;
+
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private LoadDriver(String url, RandomLocationsGenerator generator, long deadline, long thinkMillis) {
+        this.url = url;
+        this.generator = generator;
+        this.deadline = deadline;
+        this.thinkMillis = thinkMillis;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadDriver url [users=8] [seconds=60] [thinkMs=0] [distribution=CITIES] " +
+                    "[seed=42] [sw=49.9,-8.2] [ne=58.7,1.8]");
+            System.exit(1);
+        }
+        String url = args[0].replaceAll("/+$", "");
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        long thinkMillis = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        RandomLocationsGenerator generator = new RandomLocationsGenerator.Builder()
+                .distribution(RandomLocationsGenerator.Distribution.valueOf(
+                        (args.length > 4 ? args[4] : "CITIES").toUpperCase()))
+                .seed(args.length > 5 ? Long.parseLong(args[5]) : 42)
+                .bounds(LatLng.parse(args.length > 6 ? args[6] : "49.9,-8.2"),
+                        LatLng.parse(args.length > 7 ? args[7] : "58.7,1.8"))
+                .build();
+
+        long start = System.nanoTime();
+        LoadDriver driver = new LoadDriver(url, generator, start + seconds * 1000000000L, thinkMillis);
+        List<User> sessions = new ArrayList<User>(users);
+        List<Thread> threads = new ArrayList<Thread>(users);
+        for (int i = 0; i < users; i++) {
+            User user = driver.new User(i);
+            Thread thread = new Thread(user, "user-" + i);
+            sessions.add(user);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        int total = 0;
+        for (User user : sessions) {
+            total += user.count;
+        }
+        long[] latencies = new long[total];
+        int n = 0;
+        for (User user : sessions) {
+            System.arraycopy(user.latencies, 0, latencies, n, user.count);
+            n += user.count;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println(String.format("%d users, %d requests in %.1f s, %.1f requests/s, %d errors, %.1f MB",
+                users, total, elapsed, total / elapsed, driver.errors.get(), driver.bytes.get() / 1e6));
+        if (total > 0) {
+            System.out.println(String.format("latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f",
+                    percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999), latencies[total - 1] / 1e6));
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    /**
+     * A user panning and zooming the map, recording the latency of every request.
+     */
+    private final class User implements Runnable {
+        private final Random random;
+        private long[] latencies = new long[1024];
+        private int count;
+
+        private double latitude;
+        private double longitude;
+        private int zoom;
+
+        User(int index) {
+            random = generator.random(index);
+            jump();
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                Viewport viewport = new Viewport(latitude, longitude, zoom, VIEWPORT_WIDTH, VIEWPORT_HEIGHT);
+                long start = System.nanoTime();
+                if (request(viewport)) {
+                    record(System.nanoTime() - start);
+                } else {
+                    errors.incrementAndGet();
+                }
+                move(viewport);
+                if (thinkMillis > 0) {
+                    try {
+                        Thread.sleep(thinkMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void jump() {
+            LatLng latLng = generator.generate(random);
+            latitude = latLng.latitude;
+            longitude = latLng.longitude;
+            zoom = MIN_ZOOM + random.nextInt(MAX_ZOOM - MIN_ZOOM + 1);
+        }
+
+        /**
+         * Pans most of the time, zooms sometimes and rarely jumps somewhere else.
+         */
+        private void move(Viewport viewport) {
+            double action = random.nextDouble();
+            if (action < 0.65) {
+                latitude += (random.nextDouble() - 0.5) * (viewport.ne.latitude - viewport.sw.latitude);
+                longitude += (random.nextDouble() - 0.5) * (viewport.ne.longitude - viewport.sw.longitude);
+                latitude = Math.max(-85, Math.min(85, latitude));
+                longitude = Math.max(-180, Math.min(180, longitude));
+            } else if (action < 0.95) {
+                zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom + (random.nextBoolean() ? 1 : -1)));
+            } else {
+                jump();
+            }
+        }
+
+        private boolean request(Viewport viewport) {
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL(url + "/json/locations?sw=" + viewport.sw.latitude + ","
+                        + viewport.sw.longitude + "&ne=" + viewport.ne.latitude + "," + viewport.ne.longitude
+                        + "&zoom=" + zoom).openConnection();
+                if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    drain(conn.getErrorStream());
+                    return false;
+                }
+                bytes.addAndGet(drain(conn.getInputStream()));
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void record(long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+    }
+
+    /**
+     * Reads a response to its end, so the connection can be kept alive for the next request.
+     */
+    private static long drain(InputStream in) throws IOException {
+        if (in == null) {
+            return 0;
+        }
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import clustering.DistanceMode;
+import clustering.LatLng;
+import clustering.LocationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static clustering.ZoomLevel.Z19;
+
+/**
+ * The projection of positions to quad keys and the distances between positions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationUtilsBenchmark {
+
+    @Param({"VINCENTY", "HAVERSINE", "EQUIRECTANGULAR"})
+    public DistanceMode mode;
+
+    private Positions positions;
+    private LatLng[] latLngs;
+    private long[] quadKeys;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        positions = new Positions();
+        latLngs = new LatLng[Positions.SIZE];
+        for (int i = 0; i < Positions.SIZE; i++) {
+            latLngs[i] = new LatLng(positions.latitudes[i], positions.longitudes[i]);
+        }
+        quadKeys = new long[Positions.SIZE];
+    }
+
+    @Benchmark
+    public long quadKey() {
+        return LocationUtils.getQuadKey(latLngs[next++ & Positions.MASK], Z19);
+    }
+
+    @Benchmark
+    public long quadKeyPrimitive() {
+        int i = next++ & Positions.MASK;
+        return LocationUtils.getQuadKey(positions.latitudes[i], positions.longitudes[i], Z19);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Positions.SIZE)
+    public long[] quadKeys() {
+        LocationUtils.getQuadKeys(positions.latitudes, positions.longitudes, 0, Positions.SIZE, Z19, quadKeys);
+        return quadKeys;
+    }
+
+    @Benchmark
+    public double distance() {
+        int i = next++ & Positions.MASK;
+        int j = (i + 1) & Positions.MASK;
+        return LocationUtils.distanceBetween(positions.latitudes[i], positions.longitudes[i],
+                positions.latitudes[j], positions.longitudes[j], mode);
+    }
+}
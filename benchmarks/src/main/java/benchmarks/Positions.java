@@ -0,0 +1,70 @@
+package benchmarks;
+
+import clustering.LatLng;
+import clustering.LocationUtils;
+import clustering.PointStore;
+import clustering.RandomLocationsGenerator;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static clustering.ZoomLevel.Z19;
+
+/**
+ * A fixed, seeded set of random positions, so every run and every benchmark sees the same inputs.
+ */
+final class Positions {
+
+    /**
+     * A power of two, so the benchmarks can cycle through the positions with a mask.
+     */
+    static final int SIZE = 4096;
+    static final int MASK = SIZE - 1;
+
+    static final LatLng SW = new LatLng(-85, -180);
+    static final LatLng NE = new LatLng(85, 180);
+
+    final double[] latitudes;
+    final double[] longitudes;
+
+    Positions(int size, RandomLocationsGenerator generator) {
+        latitudes = new double[size];
+        longitudes = new double[size];
+        generator.generate(generator.random(0), latitudes, longitudes, 0, size);
+    }
+
+    Positions(int size, LatLng sw, LatLng ne, long seed) {
+        this(size, new RandomLocationsGenerator.Builder().bounds(sw, ne).seed(seed).build());
+    }
+
+    Positions() {
+        this(SIZE, SW, NE, 42);
+    }
+
+    /**
+     * Sorts the positions by quad key into a {@link PointStore}, their ids being their indexes.
+     *
+     * @param offHeap true to hold the columns in direct buffers
+     * @return
+     */
+    PointStore toStore(boolean offHeap) {
+        int size = latitudes.length;
+        final long[] keys = new long[size];
+        LocationUtils.getQuadKeys(latitudes, longitudes, 0, size, Z19, keys);
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(keys[a], keys[b]);
+            }
+        });
+        PointStore.Builder builder = new PointStore.Builder(size, offHeap);
+        for (int i : order) {
+            builder.add(keys[i], latitudes[i], longitudes[i], i);
+        }
+        return builder.build();
+    }
+}
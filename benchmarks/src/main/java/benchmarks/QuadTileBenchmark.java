@@ -0,0 +1,84 @@
+package benchmarks;
+
+import clustering.LatLng;
+import clustering.LocationUtils;
+import clustering.QuadTile;
+import clustering.ZoomLevel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up, creating and measuring {@link QuadTile}s, over tiles of every zoom level.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuadTileBenchmark {
+
+    private long[] quadKeys;
+    private int[] xs;
+    private int[] ys;
+    private ZoomLevel[] zooms;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Positions positions = new Positions();
+        Random random = new Random(42);
+        quadKeys = new long[Positions.SIZE];
+        xs = new int[Positions.SIZE];
+        ys = new int[Positions.SIZE];
+        zooms = new ZoomLevel[Positions.SIZE];
+        for (int i = 0; i < Positions.SIZE; i++) {
+            ZoomLevel zoom = ZoomLevel.get(random.nextInt(ZoomLevel.MAX_ZOOM + 1));
+            QuadTile tile = QuadTile.getTileFromLatLng(
+                    new LatLng(positions.latitudes[i], positions.longitudes[i]), zoom);
+            quadKeys[i] = LocationUtils.getQuadKey(positions.latitudes[i], positions.longitudes[i], zoom);
+            xs[i] = tile.x;
+            ys[i] = tile.y;
+            zooms[i] = zoom;
+        }
+    }
+
+    @Benchmark
+    public QuadTile fromQuadKey() {
+        return QuadTile.getTileFromQuadKey(quadKeys[next++ & Positions.MASK]);
+    }
+
+    @Benchmark
+    public QuadTile construct() {
+        int i = next++ & Positions.MASK;
+        return new QuadTile(xs[i], ys[i], zooms[i]);
+    }
+
+    @Benchmark
+    public QuadTile intern() {
+        int i = next++ & Positions.MASK;
+        return QuadTile.get(xs[i], ys[i], zooms[i]);
+    }
+
+    /**
+     * A new tile with all its geometry, what every tile cost before the geometry was computed on demand.
+     */
+    @Benchmark
+    public double constructWithGeometry() {
+        int i = next++ & Positions.MASK;
+        QuadTile tile = new QuadTile(xs[i], ys[i], zooms[i]);
+        return tile.getTopLeft().latitude + tile.getBottomRight().longitude + tile.getCenter().latitude
+                + tile.getRadius();
+    }
+}
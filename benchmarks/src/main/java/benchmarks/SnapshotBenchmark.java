@@ -0,0 +1,103 @@
+package benchmarks;
+
+import clustering.ClusterVisitor;
+import clustering.LatLng;
+import clustering.PointSnapshot;
+import clustering.PointStore;
+import clustering.RandomLocationsGenerator;
+import clustering.ZoomLevel;
+import models.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restoring the cluster index from a {@link PointSnapshot} file, which is what a restart costs, and aggregating
+ * a viewport of the mapped columns.
+ * <p>
+ * <br/>
+ * Without a file ("-p snapshot=locations.snapshot", see {@link GenerateSnapshot}) a snapshot of the given number
+ * of uniform locations over the UK is written to a temporary file first. The restore time includes the checksum,
+ * which reads the whole file, so it is mostly the speed of the disk or of the page cache.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SnapshotBenchmark {
+
+    private static final LatLng UK_SW = new LatLng(51.508742, -3.240967);
+    private static final LatLng UK_NE = new LatLng(54.316523, -0.736084);
+
+    @Param({""})
+    public String snapshot;
+
+    @Param({"10000000"})
+    public int points;
+
+    private File file;
+    private boolean temporary;
+    private PointStore store;
+    private LatLng sw;
+    private LatLng ne;
+
+    @Setup
+    public void setUp() throws IOException {
+        temporary = snapshot.isEmpty();
+        if (temporary) {
+            file = File.createTempFile("locations", ".snapshot");
+            PointSnapshot.write(new Positions(points, new RandomLocationsGenerator.Builder()
+                    .bounds(UK_SW, UK_NE)
+                    .seed(42)
+                    .build()).toStore(false), 0, file);
+        } else {
+            file = new File(snapshot);
+        }
+        store = PointSnapshot.map(file).store;
+
+        Viewport viewport = new Viewport((UK_SW.latitude + UK_NE.latitude) / 2,
+                (UK_SW.longitude + UK_NE.longitude) / 2, ZoomLevel.Z10.zoom, 1024, 768);
+        sw = viewport.sw;
+        ne = viewport.ne;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (temporary && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public int restore() throws IOException {
+        return PointSnapshot.map(file).store.size();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int visitClusters() {
+        final int[] total = new int[1];
+        store.visitClusters(sw, ne, ZoomLevel.Z10, new ClusterVisitor() {
+            @Override
+            public void visit(long quadKey, int count, double latitude, double longitude, Location location) {
+                total[0] += count;
+            }
+        });
+        return total[0];
+    }
+}
@@ -0,0 +1,96 @@
+package benchmarks;
+
+import clustering.LatLng;
+import clustering.RandomLocationsGenerator;
+import clustering.TileCounter;
+import clustering.ZoomLevel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Locations moving around London in a {@link TileCounter} on three threads while a fourth one reads
+ * the clusters of a city wide viewport, as the couriers of a live map would.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileCounterBenchmark {
+
+    private static final LatLng SW = new LatLng(51.28, -0.51);
+    private static final LatLng NE = new LatLng(51.69, 0.33);
+    private static final int LOCATIONS_PER_THREAD = 10000;
+
+    private final AtomicInteger threads = new AtomicInteger();
+    private TileCounter counter;
+
+    @Setup
+    public void setUp() {
+        counter = new TileCounter(1 << 20);
+    }
+
+    /**
+     * The locations a writer thread moves, none of them shared with the other writers.
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        LatLng[] positions;
+        Positions targets;
+        long firstId;
+        int next;
+
+        @Setup
+        public void setUp(TileCounterBenchmark benchmark) {
+            firstId = (long) benchmark.threads.getAndIncrement() * LOCATIONS_PER_THREAD;
+            targets = new Positions(Positions.SIZE, new RandomLocationsGenerator.Builder()
+                    .bounds(SW, NE)
+                    .seed(firstId)
+                    .build());
+            positions = new LatLng[LOCATIONS_PER_THREAD];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = new LatLng(targets.latitudes[i & Positions.MASK], targets.longitudes[i & Positions.MASK]);
+                benchmark.counter.add(firstId + i, positions[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("live")
+    @GroupThreads(3)
+    public void move(Writer writer) {
+        int i = writer.next++ % LOCATIONS_PER_THREAD;
+        int target = writer.next & Positions.MASK;
+        LatLng to = new LatLng(writer.targets.latitudes[target], writer.targets.longitudes[target]);
+        counter.move(writer.firstId + i, writer.positions[i], to);
+        writer.positions[i] = to;
+    }
+
+    @Benchmark
+    @Group("live")
+    @GroupThreads(1)
+    public int read() {
+        final int[] total = new int[1];
+        counter.visitTiles(SW, NE, ZoomLevel.Z12, new TileCounter.Visitor() {
+            @Override
+            public void visit(long quadKey, int count, double latitude, double longitude, long id) {
+                total[0] += count;
+            }
+        });
+        return total[0];
+    }
+}
@@ -0,0 +1,28 @@
+package benchmarks;
+
+import clustering.LatLng;
+
+/**
+ * The bounds of a map of a given size in pixels.
+ */
+final class Viewport {
+
+    final LatLng sw;
+    final LatLng ne;
+
+    /**
+     * @param latitude  the latitude of the center
+     * @param longitude the longitude of the center
+     * @param zoom      the zoom level
+     * @param width     the width in pixels
+     * @param height    the height in pixels
+     */
+    Viewport(double latitude, double longitude, int zoom, int width, int height) {
+        // Close enough for a viewport: the latitude span shrinks with the Mercator scale at the center
+        double degreesPerPixel = 360.0 / (256L << zoom);
+        double halfWidth = width * degreesPerPixel / 2;
+        double halfHeight = height * degreesPerPixel * Math.cos(Math.toRadians(latitude)) / 2;
+        sw = new LatLng(Math.max(latitude - halfHeight, -85), Math.max(longitude - halfWidth, -180));
+        ne = new LatLng(Math.min(latitude + halfHeight, 85), Math.min(longitude + halfWidth, 180));
+    }
+}
@@ -1,8 +1,5 @@
-# --- Created by Ebean DDL
-# To stop Ebean DDL generation, remove this comment and start using Evolutions
-
-# --- !Ups
-
+# --- !Ups
+
 create table location (
   id                        bigint auto_increment not null,
   latitude                  double,
@@ -14,9 +11,9 @@ create table location (
 
 
 
-
-# --- !Downs
-
+
+# --- !Downs
+
 SET FOREIGN_KEY_CHECKS=0;
 
 drop table location;
@@ -0,0 +1,23 @@
+# Store the quad key as a 64 bit Morton code (see clustering.QuadKey) instead of a string
+
+# --- !Ups
+
+alter table location add column quad_key_z19 bigint;
+
+update location set quad_key_z19 = (cast(conv(quad_key, 4, 10) as unsigned) << 5) | 19 where char_length(quad_key) = 19;
+
+alter table location drop column quad_key;
+
+alter table location change quad_key_z19 quad_key bigint;
+
+
+# --- !Downs
+
+alter table location add column quad_key_str varchar(255);
+
+update location set quad_key_str = lpad(conv(quad_key >> 5, 10, 4), 19, '0') where quad_key is not null;
+
+alter table location drop column quad_key;
+
+alter table location change quad_key_str quad_key varchar(255);
+
@@ -0,0 +1,31 @@
+# Pre-aggregated cluster counts per tile and zoom level (see models.TileCount)
+
+# --- !Ups
+
+create table tile_count (
+  zoom                      tinyint not null,
+  tile_key                  bigint not null,
+  cnt                       integer not null,
+  sum_lat                   double not null,
+  sum_lng                   double not null,
+  sample_location_id        bigint,
+  constraint pk_tile_count primary key (zoom, tile_key))
+;
+
+insert into tile_count (zoom, tile_key, cnt, sum_lat, sum_lng, sample_location_id)
+select z.zoom, ((l.quad_key >> (5 + 2 * (19 - z.zoom))) << (5 + 2 * (19 - z.zoom))) | z.zoom,
+       count(*), sum(l.latitude), sum(l.longitude), min(l.id)
+from location l
+cross join (select 0 as zoom union all select 1 union all select 2 union all select 3 union all select 4
+            union all select 5 union all select 6 union all select 7 union all select 8 union all select 9
+            union all select 10 union all select 11 union all select 12 union all select 13 union all select 14
+            union all select 15 union all select 16 union all select 17 union all select 18 union all select 19) z
+where l.quad_key is not null
+group by z.zoom, l.quad_key >> (5 + 2 * (19 - z.zoom))
+;
+
+
+# --- !Downs
+
+drop table tile_count;
+
@@ -0,0 +1,15 @@
+# Index the locations by quad key (see models.TileCount and clustering.ClusterIndex)
+#
+# The quad key comes first, so the index serves the range scans of the locations inside a tile. The position
+# and the name follow it, and InnoDB adds the primary key to every secondary index, so grouping the locations
+# by tile and loading the cluster index read the index alone, in key order, without touching the table rows.
+
+# --- !Ups
+
+create index ix_location_quad_key on location (quad_key, latitude, longitude, name);
+
+
+# --- !Downs
+
+drop index ix_location_quad_key on location;
+
@@ -0,0 +1,20 @@
+# The changes of the locations since the last snapshot of the cluster index (see models.LocationLog)
+#
+# Every insert, move and delete going through models.Location appends a row with the quad keys of the location
+# before and after the change. On startup the cluster index maps its snapshot file and replays the rows newer
+# than it, instead of reading the whole location table.
+
+# --- !Ups
+
+create table location_log (
+  id                        bigint auto_increment not null,
+  location_id               bigint not null,
+  old_quad_key              bigint,
+  new_quad_key              bigint,
+  constraint pk_location_log primary key (id))
+;
+
+
+# --- !Downs
+
+drop table location_log;
@@ -4,10 +4,11 @@ var defZoom = 12;
 var defCenter = new google.maps.LatLng(51.504789, -0.156555);
 
 var map = null;
-var markers = [];
-var clusters = [];
-var maxCluster;
-var tiles = [];
+// The clusters on the map by quad key, with their marker and tile
+var clusters = {};
+var maxCluster = 0;
+// The diff request in flight
+var pending = null;
 
 function initialize() {
     var mapOptions = {
@@ -49,7 +50,6 @@ function parseCluster(key, value) {
 
 function addMarker(cluster) {
     var marker = createMarker(cluster);
-    markers.push(marker);
 
     // Create the tooltip and its text
     var infoWindow = new google.maps.InfoWindow();
@@ -64,6 +64,7 @@ function addMarker(cluster) {
 
     // Add the marker to the map
     marker.setMap(map);
+    return marker;
 }
 
 // Create a cluster or a single Marker
@@ -85,38 +86,73 @@ function getClusterMarker(cluster) {
     return new MarkerWithLabel({
         position: cluster.center,
         map: map,
-        icon: {
-            path: google.maps.SymbolPath.CIRCLE,
-            fillOpacity: 0.5,
-            fillColor: 'ff0000',
-            strokeOpacity: 0,
-            scale: 5 + 30 * (cluster.count / maxCluster)
-        },
+        icon: getClusterIcon(cluster),
         labelContent: cluster.count,
         labelAnchor: new google.maps.Point(50, 10),
         labelClass: "cluster"
     });
 }
 
+function getClusterIcon(cluster) {
+    return {
+        path: google.maps.SymbolPath.CIRCLE,
+        fillOpacity: 0.5,
+        fillColor: 'ff0000',
+        strokeOpacity: 0,
+        scale: 5 + 30 * (cluster.count / maxCluster)
+    };
+}
+
 // Deletes all markers on the map
 function clearMap() {
-    clearMarkers();
-    clearTiles();
-    clusters = [];
+    for (key in clusters) {
+        removeCluster(key);
+    }
+    clusters = {};
 }
 
-function clearMarkers() {
-    for (i in markers) {
-        markers[i].setMap(null);
+function showCluster(key, value) {
+    var cluster = parseCluster(key, value);
+    cluster.stamp = value.stamp;
+    cluster.marker = addMarker(cluster);
+    cluster.tile = drawTile(cluster);
+    clusters[key] = cluster;
+}
+
+function removeCluster(key) {
+    var cluster = clusters[key];
+    if (!cluster) return;
+    cluster.marker.setMap(null);
+    if (cluster.tile) {
+        cluster.tile.setMap(null);
     }
-    markers = [];
+    delete clusters[key];
 }
 
-function clearTiles() {
-    for (i in tiles) {
-        tiles[i].setMap(null);
+// The stamps of the clusters on the map, so the server only sends back what changed
+function getHeldStamps() {
+    var held = {};
+    for (key in clusters) {
+        held[key] = clusters[key].stamp;
+    }
+    return held;
+}
+
+// Rescales the cluster markers when the biggest cluster changed
+function updateMaxCluster() {
+    var max = 0;
+    for (key in clusters) {
+        if (clusters[key].count > max) {
+            max = clusters[key].count;
+        }
+    }
+    if (max == maxCluster) return;
+    maxCluster = max;
+    for (key in clusters) {
+        if (clusters[key].count > 1) {
+            clusters[key].marker.setIcon(getClusterIcon(clusters[key]));
+        }
     }
-    tiles = [];
 }
 
 function getClusters(bounds, zoom) {
@@ -131,35 +167,55 @@ function getClusters(bounds, zoom) {
         lng: bounds.getNorthEast().lng()
     };
 
-    clearMap();
+    // A diff only applies to the clusters it was computed against
+    if (pending) {
+        pending.abort();
+    }
 
-    jsRoutes.controllers.Application.jsonList(sw, ne, zoom).ajax({
-        success: function (data) {
+    pending = jsRoutes.controllers.Application.jsonDiff(sw, ne, zoom).ajax({
+        contentType: 'application/json',
+        data: JSON.stringify(getHeldStamps()),
 
-            maxCluster = 0;
+        success: function (data) {
+            pending = null;
 
-            $.each(data, function (key, value) {
-                var cluster = parseCluster(key, value);;
-                if (cluster.count > maxCluster) {
-                    maxCluster = cluster.count;
+            // Keep the max of the new and current clusters until the old ones are gone,
+            // so the new markers are not drawn with a scale about to change
+            $.each(data.added, function (key, value) {
+                if (value.count > maxCluster) {
+                    maxCluster = value.count;
+                }
+            });
+            $.each(data.changed, function (key, value) {
+                if (value.count > maxCluster) {
+                    maxCluster = value.count;
                 }
-                clusters.push(cluster);
             });
 
-            for (i in clusters) {
-                addMarker(clusters[i]);
-                drawTile(clusters[i]);
-            }
+            $.each(data.removed, function (i, key) {
+                removeCluster(key);
+            });
+            $.each(data.changed, function (key, value) {
+                removeCluster(key);
+                showCluster(key, value);
+            });
+            $.each(data.added, function (key, value) {
+                showCluster(key, value);
+            });
+
+            updateMaxCluster();
         },
 
-        error: function (error) {
-            console.log("Error: " + error);
+        error: function (xhr, status, error) {
+            if (status != 'abort') {
+                console.log("Error: " + error);
+            }
         }
     });
 }
 
 function drawTile(cluster) {
-    if(cluster.count <= 1) return;
+    if(cluster.count <= 1) return null;
     var tile = new google.maps.Rectangle({
         strokeColor: '#3254c7',
         strokeOpacity: 0.8,
@@ -169,5 +225,5 @@ function drawTile(cluster) {
         map: map,
         bounds: new google.maps.LatLngBounds(cluster.bottomLeft, cluster.topRight)
     });
-    tiles.push(tile);
+    return tile;
 }
\ No newline at end of file
@@ -0,0 +1,39 @@
+import clustering.ClusterBinaryWriter;
+import models.Location;
+import org.junit.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.fest.assertions.Assertions.*;
+
+
+public class ClusterBinaryWriterTest {
+
+    @Test
+    public void writesLittleEndianRecords() throws Exception {
+        Location location = new Location();
+        location.id = 42L;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ClusterBinaryWriter writer = new ClusterBinaryWriter(out);
+        writer.visit(1234567L, 7, 51.5, -0.1, null);
+        writer.visit(7654321L, 1, 51.6, 0.05, location);
+        writer.close();
+
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(buffer.remaining()).isEqualTo(20 + 28);
+
+        assertThat(buffer.getLong()).isEqualTo(1234567L);
+        assertThat(buffer.getInt()).isEqualTo(7);
+        assertThat(buffer.getFloat()).isEqualTo(51.5f);
+        assertThat(buffer.getFloat()).isEqualTo(-0.1f);
+
+        assertThat(buffer.getLong()).isEqualTo(7654321L);
+        assertThat(buffer.getInt()).isEqualTo(1);
+        assertThat(buffer.getFloat()).isEqualTo(51.6f);
+        assertThat(buffer.getFloat()).isEqualTo(0.05f);
+        assertThat(buffer.getLong()).isEqualTo(42L);
+    }
+}
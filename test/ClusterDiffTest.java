@@ -0,0 +1,35 @@
+import clustering.Cluster;
+import clustering.ClusterDiff;
+import clustering.LatLng;
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.*;
+
+
+public class ClusterDiffTest {
+
+    @Test
+    public void sendsOnlyWhatChanged() {
+        Cluster same = cluster(1, 10, 51.5);
+        Cluster moved = cluster(2, 10, 51.6);
+        Cluster added = cluster(3, 4, 51.7);
+
+        Map<Long, Integer> held = new HashMap<Long, Integer>();
+        held.put(1L, same.stamp);
+        held.put(2L, cluster(2, 10, 51.55).stamp);
+        held.put(4L, 0);
+
+        ClusterDiff diff = ClusterDiff.diff(Arrays.asList(same, moved, added), held);
+        assertThat(diff.added.keySet()).containsOnly(3L);
+        assertThat(diff.changed.keySet()).containsOnly(2L);
+        assertThat(diff.removed).containsOnly(4L);
+    }
+
+    private static Cluster cluster(long quadKey, int count, double latitude) {
+        return new Cluster.Builder().quadKey(quadKey).count(count).center(new LatLng(latitude, -0.1)).build();
+    }
+}
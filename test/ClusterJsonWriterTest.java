@@ -0,0 +1,47 @@
+import clustering.Cluster;
+import clustering.ClusterJsonWriter;
+import clustering.LatLng;
+import clustering.QuadTile;
+import clustering.ZoomLevel;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import models.Location;
+import org.junit.*;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.fest.assertions.Assertions.*;
+
+
+public class ClusterJsonWriterTest {
+
+    @Test
+    public void writesClustersByQuadKey() throws Exception {
+        long cluster = QuadTile.getTileFromLatLng(new LatLng(51.5, -0.1), ZoomLevel.Z12).quadKey;
+        long single = QuadTile.getTileFromLatLng(new LatLng(51.6, 0.05), ZoomLevel.Z12).quadKey;
+        Location location = new Location();
+        location.id = 42L;
+        location.name = "Big Ben";
+        location.latitude = 51.6;
+        location.longitude = 0.05;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ClusterJsonWriter writer = new ClusterJsonWriter(out);
+        writer.visit(cluster, 7, 51.5, -0.1, null);
+        writer.visit(single, 1, 51.6, 0.05, location);
+        writer.close();
+
+        JsonNode json = new ObjectMapper().readTree(out.toByteArray());
+        assertThat(json.size()).isEqualTo(2);
+
+        JsonNode first = json.get(Long.toString(cluster));
+        assertThat(first.get("count").asInt()).isEqualTo(7);
+        assertThat(first.get("center").get("latitude").asDouble()).isEqualTo(51.5);
+        assertThat(first.get("topRight").get("latitude").asDouble())
+                .isEqualTo(QuadTile.getTileFromQuadKey(cluster).getTopRight().latitude);
+        assertThat(first.get("location").isNull()).isTrue();
+        assertThat(first.get("stamp").asInt()).isEqualTo(Cluster.stamp(7, 51.5, -0.1, null));
+
+        assertThat(json.get(Long.toString(single)).get("location").get("name").asText()).isEqualTo("Big Ben");
+    }
+}
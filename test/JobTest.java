@@ -0,0 +1,101 @@
+import jobs.Job;
+import org.junit.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.*;
+
+
+public class JobTest {
+
+    /**
+     * The ids of the location table, written batch by batch as the jobs commit them.
+     */
+    private final List<Long> table = new ArrayList<Long>();
+    /**
+     * The ids of the locations counted by the last rebuild.
+     */
+    private final List<Long> counted = new ArrayList<Long>();
+    private int rollbacks;
+
+    private final Job.Tables tables = new Job.Tables() {
+        @Override
+        public Connection getConnection() {
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().equals("rollback")) {
+                                rollbacks++;
+                            }
+                            return null;
+                        }
+                    });
+        }
+
+        @Override
+        public void rebuild() {
+            counted.clear();
+            counted.addAll(table);
+        }
+    };
+
+    @Test
+    public void countsTheLocationsOfAJobFailingHalfway() {
+        Job job = new Job(tables) {
+            @Override
+            public String getName() {
+                return "Failing job";
+            }
+
+            @Override
+            protected void execute(Connection conn) throws SQLException {
+                for (long id = 1; id <= 10; id++) {
+                    table.add(id);
+                    processed.incrementAndGet();
+                    if (id == 5) {
+                        throw new SQLException("Connection reset");
+                    }
+                }
+            }
+        };
+        job.run();
+
+        Job.Status status = job.getStatus();
+        assertThat(status.state).isEqualTo(Job.State.FAILED);
+        assertThat(status.error).isEqualTo("Connection reset");
+        assertThat(status.finishedAt).isGreaterThan(0);
+        assertThat(rollbacks).isEqualTo(1);
+        // The batches committed before the failure are counted
+        assertThat(table).hasSize(5);
+        assertThat(counted).isEqualTo(table);
+    }
+
+    @Test
+    public void countsTheLocationsOfAJobDone() {
+        Job job = new Job(tables) {
+            @Override
+            public String getName() {
+                return "Job";
+            }
+
+            @Override
+            protected void execute(Connection conn) {
+                table.add(1L);
+                table.add(2L);
+            }
+        };
+        job.run();
+
+        assertThat(job.getStatus().state).isEqualTo(Job.State.DONE);
+        assertThat(job.getStatus().error).isNull();
+        assertThat(rollbacks).isEqualTo(0);
+        assertThat(counted).isEqualTo(table);
+    }
+}
@@ -0,0 +1,59 @@
+import jobs.LocationCsvParser;
+import org.junit.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.*;
+import static org.fest.assertions.Delta.delta;
+
+
+public class LocationCsvParserTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void parsesNamesWithoutPositions() {
+        ByteBuffer csv = ByteBuffer.wrap("\uFEFFname\r\nLarry's Markets\r\nDe Pinna\r\n\r\n".getBytes(UTF_8));
+        LocationCsvParser parser = LocationCsvParser.forHeader(csv);
+        assertThat(parser.hasPositions()).isFalse();
+
+        List<Object[]> rows = parse(parser, csv);
+        assertThat(rows).hasSize(2);
+        assertThat(rows.get(0)[0]).isEqualTo("Larry's Markets");
+        assertThat((Double) rows.get(1)[1]).isNaN();
+    }
+
+    @Test
+    public void parsesQuotedNamesAndCoordinates() {
+        ByteBuffer csv = ByteBuffer.wrap(("id,lng,Name,lat\n" +
+                "1,-0.3860662609863539,\"Smith, \"\"The\"\" Baker\",51.49217889772613\n" +
+                "2,1e-3,Café,-51.5\n" +
+                "3,abc,Broken,51.5").getBytes(UTF_8));
+        LocationCsvParser parser = LocationCsvParser.forHeader(csv);
+        assertThat(parser.hasPositions()).isTrue();
+
+        List<Object[]> rows = parse(parser, csv);
+        assertThat(rows).hasSize(3);
+        assertThat(rows.get(0)[0]).isEqualTo("Smith, \"The\" Baker");
+        assertThat((Double) rows.get(0)[1]).isEqualTo(51.49217889772613, delta(1e-12));
+        assertThat((Double) rows.get(0)[2]).isEqualTo(-0.3860662609863539, delta(1e-12));
+        assertThat(rows.get(1)[0]).isEqualTo("Café");
+        assertThat((Double) rows.get(1)[1]).isEqualTo(-51.5);
+        assertThat((Double) rows.get(1)[2]).isEqualTo(0.001);
+        assertThat((Double) rows.get(2)[2]).isNaN();
+    }
+
+    private static List<Object[]> parse(LocationCsvParser parser, ByteBuffer csv) {
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        parser.parse(csv, new LocationCsvParser.RowHandler() {
+            @Override
+            public void row(String name, double latitude, double longitude) {
+                rows.add(new Object[]{name, latitude, longitude});
+            }
+        });
+        return rows;
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Checks the plans of the queries on the location table against a MySQL database with the evolutions applied,
+ * for example: play -Dtest.db.url=jdbc:mysql://localhost/clustering_server -Dtest.db.user=playuser
+ * -Dtest.db.password=clusterbuster test. Skipped without a database.
+ */
+public class LocationIndexTest {
+
+    private static final String INDEX = "ix_location_quad_key";
+
+    private Connection conn;
+
+    @Before
+    public void connect() throws SQLException {
+        String url = System.getProperty("test.db.url");
+        Assume.assumeNotNull(url);
+        conn = DriverManager.getConnection(url, System.getProperty("test.db.user"), System.getProperty("test.db.password"));
+    }
+
+    @After
+    public void close() throws SQLException {
+        if (conn != null) {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void tileCountsGroupLocationsFromTheIndex() throws SQLException {
+        // As TileCount.rebuild counts the Z19 tiles
+        Plan plan = explain("SELECT 19, quad_key, COUNT(*), SUM(latitude), SUM(longitude), MIN(id) " +
+                "FROM location WHERE quad_key IS NOT NULL GROUP BY quad_key");
+        assertThat(plan.key).isEqualTo(INDEX);
+        assertThat(plan.extra).contains("Using index").excludes("Using temporary").excludes("Using filesort");
+    }
+
+    @Test
+    public void samplesAreFoundWithARangeScan() throws SQLException {
+        // As TileCount picks another sample location of a tile
+        Plan plan = explain("SELECT id FROM location WHERE quad_key BETWEEN 1000 AND 2000 AND id <> 1 LIMIT 1");
+        assertThat(plan.key).isEqualTo(INDEX);
+        assertThat(plan.type).isEqualTo("range");
+    }
+
+    @Test
+    public void clusterIndexLoadsFromTheIndex() throws SQLException {
+        // As ClusterIndex.load reads all the locations
+        Plan plan = explain("SELECT id, latitude, longitude, quad_key FROM location " +
+                "WHERE quad_key IS NOT NULL ORDER BY quad_key");
+        assertThat(plan.key).isEqualTo(INDEX);
+        assertThat(plan.extra).contains("Using index").excludes("Using filesort");
+    }
+
+    private static final class Plan {
+        String type;
+        String key;
+        String extra;
+    }
+
+    private Plan explain(String sql) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            ResultSet result = stmt.executeQuery("EXPLAIN " + sql);
+            assertThat(result.next()).isTrue();
+            Plan plan = new Plan();
+            plan.type = result.getString("type");
+            plan.key = result.getString("key");
+            plan.extra = String.valueOf(result.getString("Extra"));
+            return plan;
+        } finally {
+            stmt.close();
+        }
+    }
+}
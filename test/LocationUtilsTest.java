@@ -0,0 +1,81 @@
+import clustering.DistanceMode;
+import clustering.LatLng;
+import clustering.LocationUtils;
+import clustering.Point;
+import clustering.ZoomLevel;
+import org.junit.*;
+
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.*;
+import static org.fest.assertions.Delta.delta;
+
+
+public class LocationUtilsTest {
+
+    @Test
+    public void primitiveProjectionMatchesPoints() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            LatLng latLng = new LatLng(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+            ZoomLevel zoom = ZoomLevel.get(random.nextInt(20));
+
+            Point pixel = LocationUtils.latLngToWorldPoint(latLng, zoom);
+            long packed = LocationUtils.latLngToWorldPixel(latLng.latitude, latLng.longitude, zoom);
+            assertThat(LocationUtils.pixelX(packed)).isEqualTo(pixel.x);
+            assertThat(LocationUtils.pixelY(packed)).isEqualTo(pixel.y);
+
+            Point tile = LocationUtils.worldPointToTileXY(pixel);
+            assertThat(LocationUtils.longitudeToTileX(latLng.longitude, zoom)).isEqualTo(tile.x);
+            assertThat(LocationUtils.latitudeToTileY(latLng.latitude, zoom)).isEqualTo(tile.y);
+            assertThat(LocationUtils.getQuadKey(latLng.latitude, latLng.longitude, zoom))
+                    .isEqualTo(LocationUtils.getQuadKey(tile.x, tile.y, zoom.zoom));
+        }
+    }
+
+    @Test
+    public void batchesQuadKeys() {
+        double[] latitudes = {51.5, -33.9, 0};
+        double[] longitudes = {-0.1, 151.2, 0};
+        long[] quadKeys = new long[3];
+        LocationUtils.getQuadKeys(latitudes, longitudes, 1, 3, ZoomLevel.Z19, quadKeys);
+
+        assertThat(quadKeys[0]).isEqualTo(0);
+        for (int i = 1; i < 3; i++) {
+            assertThat(quadKeys[i]).isEqualTo(LocationUtils.getQuadKey(new LatLng(latitudes[i], longitudes[i]), ZoomLevel.Z19));
+        }
+    }
+
+    @Test
+    public void distanceMatchesResultsArray() {
+        float[] results = new float[1];
+        LocationUtils.distanceBetween(51.5, -0.1, 48.85, 2.35, results);
+        assertThat(LocationUtils.distanceBetween(51.5, -0.1, 48.85, 2.35)).isEqualTo(results[0]);
+    }
+
+    @Test
+    public void fastDistancesStayCloseToVincenty() {
+        // London to Paris, about 344 km
+        double vincenty = DistanceMode.VINCENTY.distance(51.5, -0.1, 48.85, 2.35);
+        assertThat(DistanceMode.HAVERSINE.distance(51.5, -0.1, 48.85, 2.35)).isEqualTo(vincenty, delta(vincenty * 0.005));
+        assertThat(DistanceMode.EQUIRECTANGULAR.distance(51.5, -0.1, 48.85, 2.35)).isEqualTo(vincenty, delta(vincenty * 0.005));
+
+        // Across the antimeridian
+        double haversine = DistanceMode.HAVERSINE.distance(0, 179.9, 0, -179.9);
+        assertThat(DistanceMode.EQUIRECTANGULAR.distance(0, 179.9, 0, -179.9)).isEqualTo(haversine, delta(1));
+        assertThat(haversine).isLessThan(30000);
+    }
+
+    @Test
+    public void batchesDistances() {
+        double[] latitudes = {48.85, -33.9, 51.5};
+        double[] longitudes = {2.35, 151.2, -0.1};
+        double[] distances = new double[3];
+        DistanceMode.HAVERSINE.distances(51.5, -0.1, latitudes, longitudes, 0, 3, distances);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(distances[i]).isEqualTo(LocationUtils.distanceBetween(51.5, -0.1, latitudes[i], longitudes[i], DistanceMode.HAVERSINE));
+        }
+        assertThat(distances[2]).isEqualTo(0);
+    }
+}
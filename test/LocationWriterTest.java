@@ -0,0 +1,157 @@
+import clustering.LocationWriter;
+import org.junit.*;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.*;
+import static org.fest.assertions.Delta.delta;
+
+
+public class LocationWriterTest {
+
+    /**
+     * The location table: the positions by id, null for the locations without one.
+     */
+    private final Map<Long, LocationWriter.Position> table = new HashMap<Long, LocationWriter.Position>();
+    private final List<Integer> batches = new ArrayList<Integer>();
+    private boolean failing;
+    /**
+     * The id of a location whose writes always fail, or 0.
+     */
+    private long broken;
+    private LocationWriter writer;
+
+    @Before
+    public void setUp() {
+        for (long id = 1; id <= 10; id++) {
+            table.put(id, null);
+        }
+        writer = new LocationWriter(new LocationWriter.Store() {
+            @Override
+            public Map<Long, Long> findQuadKeys(long[] ids, int count) {
+                Map<Long, Long> found = new HashMap<Long, Long>();
+                for (int i = 0; i < count; i++) {
+                    if (table.containsKey(ids[i])) {
+                        LocationWriter.Position position = table.get(ids[i]);
+                        found.put(ids[i], position != null ? position.quadKey : null);
+                    }
+                }
+                return found;
+            }
+
+            @Override
+            public int write(List<LocationWriter.Position> positions) throws SQLException {
+                if (failing) {
+                    throw new SQLException("Connection refused");
+                }
+                for (LocationWriter.Position position : positions) {
+                    if (position.id == broken) {
+                        throw new SQLException("Data truncation");
+                    }
+                }
+                batches.add(positions.size());
+                int found = 0;
+                for (LocationWriter.Position position : positions) {
+                    if (table.containsKey(position.id)) {
+                        table.put(position.id, position);
+                        found++;
+                    }
+                }
+                return found;
+            }
+        }, 4, 2, 3600 * 1000);
+    }
+
+    @After
+    public void tearDown() {
+        writer.shutdown();
+    }
+
+    @Test
+    public void writesTheLastPositionOfEveryLocation() throws Exception {
+        writer.write(positions(1, 51.50, -0.12));
+        writer.write(positions(2, 51.40, -0.20, 1, 51.51, -0.13));
+        writer.write(positions(1, 51.52, -0.14, 3, 51.60, 0.01));
+
+        assertThat(writer.getPending()).isEqualTo(3);
+        assertThat(writer.getAccepted()).isEqualTo(5);
+        assertThat(writer.getCoalesced()).isEqualTo(2);
+        assertThat(table.get(1L)).isNull();
+
+        assertThat(writer.flush()).isEqualTo(3);
+        assertThat(batches).isEqualTo(Arrays.asList(2, 1));
+        assertThat(writer.getPending()).isEqualTo(0);
+        assertThat(writer.getFlushed()).isEqualTo(3);
+        assertThat(writer.getLag()).isEqualTo(0);
+        assertThat(table.get(1L).latitude).isEqualTo(51.52, delta(1e-9));
+        assertThat(table.get(1L).longitude).isEqualTo(-0.14, delta(1e-9));
+        assertThat(table.get(2L).latitude).isEqualTo(51.40, delta(1e-9));
+    }
+
+    @Test
+    public void rejectsNewLocationsOnceFull() throws Exception {
+        LocationWriter.Outcome outcome = writer.write(positions(
+                1, 51.5, -0.1, 2, 51.5, -0.1, 3, 51.5, -0.1, 4, 51.5, -0.1, 5, 51.5, -0.1, 42, 51.5, -0.1));
+        assertThat(outcome.accepted).isEqualTo(4);
+        assertThat(outcome.rejected).containsOnly(5L);
+        assertThat(outcome.unknown).containsOnly(42L);
+
+        // The waiting locations still move
+        outcome = writer.write(positions(2, 51.6, -0.2, 6, 51.6, -0.2));
+        assertThat(outcome.accepted).isEqualTo(1);
+        assertThat(outcome.rejected).containsOnly(6L);
+        assertThat(writer.getRejected()).isEqualTo(2);
+
+        writer.flush();
+        assertThat(writer.write(positions(6, 51.6, -0.2)).accepted).isEqualTo(1);
+    }
+
+    @Test
+    public void keepsThePositionsUntilTheyAreWritten() throws Exception {
+        writer.write(positions(1, 51.5, -0.1, 2, 51.5, -0.1, 3, 51.5, -0.1));
+        failing = true;
+        assertThat(writer.flush()).isEqualTo(0);
+        assertThat(writer.getFailures()).isEqualTo(1);
+        assertThat(writer.getPending()).isEqualTo(3);
+        assertThat(writer.getLastFlush()).isEqualTo(0);
+
+        failing = false;
+        writer.shutdown();
+        assertThat(writer.getPending()).isEqualTo(0);
+        assertThat(table.get(3L)).isNotNull();
+    }
+
+    @Test
+    public void dropsThePositionsWhichKeepFailing() throws Exception {
+        broken = 2;
+        writer.write(positions(1, 51.5, -0.1, 2, 51.5, -0.1, 3, 51.5, -0.1));
+        assertThat(writer.flush()).isEqualTo(2);
+        assertThat(writer.getPending()).isEqualTo(1);
+        assertThat(table.get(1L)).isNotNull();
+        assertThat(table.get(3L)).isNotNull();
+
+        for (int i = 1; i < LocationWriter.MAX_ATTEMPTS; i++) {
+            writer.write(positions(4, 51.5, -0.1));
+            assertThat(writer.flush()).isEqualTo(1);
+        }
+        assertThat(writer.getDropped()).isEqualTo(1);
+        assertThat(writer.getPending()).isEqualTo(0);
+        assertThat(table.get(2L)).isNull();
+    }
+
+    /**
+     * @param values the id, latitude and longitude of every position
+     */
+    private static List<LocationWriter.Position> positions(double... values) {
+        List<LocationWriter.Position> positions = new ArrayList<LocationWriter.Position>();
+        for (int i = 0; i < values.length; i += 3) {
+            positions.add(new LocationWriter.Position((long) values[i], values[i + 1], values[i + 2]));
+        }
+        return positions;
+    }
+}
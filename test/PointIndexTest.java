@@ -0,0 +1,158 @@
+import clustering.Cluster;
+import clustering.LatLng;
+import clustering.LocationUtils;
+import clustering.PointIndex;
+import clustering.PointStore;
+import clustering.QuadTree;
+import clustering.ZoomLevel;
+import models.Location;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.fest.assertions.Assertions.*;
+import static org.fest.assertions.Delta.delta;
+
+
+public class PointIndexTest {
+
+    private static final LatLng SW = new LatLng(51.28, -0.51);
+    private static final LatLng NE = new LatLng(51.69, 0.33);
+
+    private final Map<Long, String> names = new HashMap<Long, String>();
+    private final QuadTree tree = new QuadTree();
+    private PointIndex index;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(42);
+        List<Location> locations = new ArrayList<Location>();
+        for (long id = 1; id <= 2000; id++) {
+            Location location = new Location();
+            location.id = id;
+            location.name = "Location " + id;
+            // The store keeps floats, so does the reference tree
+            location.latitude = (double) (float) (SW.latitude + random.nextDouble() * (NE.latitude - SW.latitude));
+            location.longitude = (double) (float) (SW.longitude + random.nextDouble() * (NE.longitude - SW.longitude));
+            location.quadKey = LocationUtils.getQuadKey(location.latitude, location.longitude, ZoomLevel.Z19);
+            locations.add(location);
+            names.put(id, location.name);
+        }
+        Collections.sort(locations, new Comparator<Location>() {
+            @Override
+            public int compare(Location a, Location b) {
+                return a.quadKey.compareTo(b.quadKey);
+            }
+        });
+
+        PointStore.Builder builder = new PointStore.Builder(16, true);
+        for (Location location : locations) {
+            builder.add(location.quadKey, location.latitude, location.longitude, location.id);
+            tree.add(location.quadKey, location);
+        }
+        index = new PointIndex(builder.build(), new PointIndex.Names() {
+            @Override
+            public Map<Long, String> find(long[] ids, int count) {
+                Map<Long, String> found = new HashMap<Long, String>();
+                for (int i = 0; i < count; i++) {
+                    found.put(ids[i], names.get(ids[i]));
+                }
+                return found;
+            }
+        });
+    }
+
+    @Test
+    public void aggregatesLikeTheQuadTree() throws Exception {
+        LatLng sw = new LatLng(51.4, -0.3);
+        LatLng ne = new LatLng(51.6, 0.1);
+        for (ZoomLevel zoom : new ZoomLevel[]{ZoomLevel.Z0, ZoomLevel.Z8, ZoomLevel.Z12, ZoomLevel.Z15, ZoomLevel.Z19}) {
+            assertSameClusters(index.getClusters(sw, ne, zoom), tree.getClusters(sw, ne, zoom));
+        }
+    }
+
+    @Test
+    public void mergesTheChangesSinceTheSnapshot() throws Exception {
+        Location removed = tree.getClusters(SW, NE, ZoomLevel.Z19).get(0).location;
+        assertThat(index.remove(removed.quadKey, removed.id)).isTrue();
+        tree.remove(removed.quadKey, removed.id);
+
+        Location added = new Location();
+        added.id = 5000L;
+        added.name = "Added";
+        added.latitude = 51.5;
+        added.longitude = -0.12;
+        added.quadKey = LocationUtils.getQuadKey(added.latitude, added.longitude, ZoomLevel.Z19);
+        index.add(added);
+        tree.add(added.quadKey, added);
+
+        assertThat(index.size()).isEqualTo(2000);
+        assertThat(index.getChanges()).isEqualTo(2);
+        for (ZoomLevel zoom : new ZoomLevel[]{ZoomLevel.Z4, ZoomLevel.Z13, ZoomLevel.Z19}) {
+            assertSameClusters(index.getClusters(SW, NE, zoom), tree.getClusters(SW, NE, zoom));
+        }
+    }
+
+    @Test
+    public void splitsLargeScansIntoTasks() throws Exception {
+        Random random = new Random(7);
+        int size = PointStore.PARALLEL_THRESHOLD + 1000;
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = LocationUtils.getQuadKey(SW.latitude + random.nextDouble() * (NE.latitude - SW.latitude),
+                    SW.longitude + random.nextDouble() * (NE.longitude - SW.longitude), ZoomLevel.Z19);
+        }
+        Arrays.sort(keys);
+        PointStore.Builder builder = new PointStore.Builder(size, false);
+        for (int i = 0; i < size; i++) {
+            builder.add(keys[i], 51.5 + random.nextDouble(), -0.1 + random.nextDouble(), i);
+        }
+        PointStore large = builder.build();
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // All the locations are in a single tile at Z0, cut between every task
+            for (ZoomLevel zoom : new ZoomLevel[]{ZoomLevel.Z0, ZoomLevel.Z2, ZoomLevel.Z10, ZoomLevel.Z17}) {
+                Cluster.Collector sequential = new Cluster.Collector();
+                large.visitClusters(SW, NE, zoom, sequential);
+                Cluster.Collector parallel = new Cluster.Collector();
+                large.visitClusters(SW, NE, zoom, pool, parallel);
+                assertSameClusters(parallel.clusters, sequential.clusters);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresAscendingKeys() {
+        new PointStore.Builder(16, false).add(2L << 5 | 19, 0, 0, 1).add(1L << 5 | 19, 0, 0, 2);
+    }
+
+    private static void assertSameClusters(List<Cluster> actual, List<Cluster> expected) {
+        assertThat(actual).hasSize(expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Cluster a = actual.get(i);
+            Cluster e = expected.get(i);
+            assertThat(a.quadKey).isEqualTo(e.quadKey);
+            assertThat(a.count).isEqualTo(e.count);
+            assertThat(a.center.latitude).isEqualTo(e.center.latitude, delta(1e-9));
+            assertThat(a.center.longitude).isEqualTo(e.center.longitude, delta(1e-9));
+            if (e.location == null) {
+                assertThat(a.location).isNull();
+            } else {
+                assertThat(a.location.id).isEqualTo(e.location.id);
+                assertThat(a.location.quadKey).isEqualTo(e.location.quadKey);
+                assertThat(a.location.name).isEqualTo(e.location.name);
+            }
+        }
+    }
+}
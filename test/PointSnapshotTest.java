@@ -0,0 +1,96 @@
+import clustering.Cluster;
+import clustering.LatLng;
+import clustering.LocationUtils;
+import clustering.PointSnapshot;
+import clustering.PointStore;
+import clustering.QuadKey;
+import clustering.RandomLocationsGenerator;
+import clustering.ZoomLevel;
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.*;
+
+
+public class PointSnapshotTest {
+
+    private File file;
+    private PointStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("clustering", ".snapshot");
+        Random random = new Random(42);
+        long[] keys = new long[1000];
+        for (int i = 0; i < keys.length; i++) {
+            LatLng latLng = RandomLocationsGenerator.generate(new LatLng(51.28, -0.51), new LatLng(51.69, 0.33), random);
+            keys[i] = LocationUtils.getQuadKey(latLng.latitude, latLng.longitude, ZoomLevel.Z19);
+        }
+        Arrays.sort(keys);
+        PointStore.Builder builder = new PointStore.Builder(16, false);
+        for (int i = 0; i < keys.length; i++) {
+            builder.add(keys[i], 51.5, -0.1, i + 1);
+        }
+        store = builder.build();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void mapsWhatWasWritten() throws IOException {
+        PointSnapshot.write(store, 1234, file);
+        PointSnapshot snapshot = PointSnapshot.map(file);
+        assertThat(snapshot.logId).isEqualTo(1234);
+        assertThat(snapshot.store.size()).isEqualTo(1000);
+
+        List<Cluster> expected = clusters(store, ZoomLevel.Z12);
+        List<Cluster> actual = clusters(snapshot.store, ZoomLevel.Z12);
+        assertThat(actual).hasSize(expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.get(i).quadKey).isEqualTo(expected.get(i).quadKey);
+            assertThat(actual.get(i).count).isEqualTo(expected.get(i).count);
+            assertThat(actual.get(i).center.latitude).isEqualTo(expected.get(i).center.latitude);
+            assertThat(actual.get(i).center.longitude).isEqualTo(expected.get(i).center.longitude);
+        }
+    }
+
+    @Test
+    public void removingFromAMappedStoreLeavesTheFileAlone() throws IOException {
+        PointSnapshot.write(store, 0, file);
+        PointSnapshot snapshot = PointSnapshot.map(file);
+        Cluster first = clusters(snapshot.store, ZoomLevel.Z19).get(0);
+        assertThat(snapshot.store.remove(first.quadKey, 1)).isTrue();
+        assertThat(clusters(snapshot.store, ZoomLevel.Z19).get(0).quadKey).isNotEqualTo(first.quadKey);
+        assertThat(clusters(PointSnapshot.map(file).store, ZoomLevel.Z19).get(0).quadKey).isEqualTo(first.quadKey);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsACorruptedFile() throws IOException {
+        PointSnapshot.write(store, 0, file);
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.seek(PointSnapshot.HEADER_SIZE + 100);
+            int b = output.read();
+            output.seek(PointSnapshot.HEADER_SIZE + 100);
+            output.write(0xff ^ b);
+        } finally {
+            output.close();
+        }
+        PointSnapshot.map(file);
+    }
+
+    private static List<Cluster> clusters(PointStore store, ZoomLevel zoom) {
+        Cluster.Collector collector = new Cluster.Collector();
+        store.visitClusters(QuadKey.of(0, 0, 0), zoom, collector);
+        return collector.clusters;
+    }
+}
@@ -0,0 +1,61 @@
+import clustering.LatLng;
+import clustering.LocationUtils;
+import clustering.QuadKey;
+import clustering.QuadTile;
+import org.junit.*;
+
+import static clustering.ZoomLevel.Z19;
+import static org.fest.assertions.Assertions.*;
+
+
+public class QuadKeyTest {
+
+    @Test
+    public void roundTripsTileCoordinates() {
+        long key = QuadKey.of(3, 5, 3);
+        assertThat(QuadKey.x(key)).isEqualTo(3);
+        assertThat(QuadKey.y(key)).isEqualTo(5);
+        assertThat(QuadKey.zoom(key)).isEqualTo(3);
+
+        long deepest = QuadKey.of((1 << 19) - 1, (1 << 19) - 1, 19);
+        assertThat(QuadKey.x(deepest)).isEqualTo((1 << 19) - 1);
+        assertThat(QuadKey.y(deepest)).isEqualTo((1 << 19) - 1);
+    }
+
+    @Test
+    public void matchesQuadKeyStrings() {
+        // Bing Maps example: tile (3, 5) at level 3 has the quad key "213"
+        assertThat(QuadKey.toString(QuadKey.of(3, 5, 3))).isEqualTo("213");
+        assertThat(QuadKey.fromString("213")).isEqualTo(QuadKey.of(3, 5, 3));
+        assertThat(QuadKey.toString(QuadKey.fromString(""))).isEqualTo("");
+    }
+
+    @Test
+    public void navigatesTheTree() {
+        long key = QuadKey.fromString("0313102");
+        assertThat(QuadKey.parent(key)).isEqualTo(QuadKey.fromString("031310"));
+        assertThat(QuadKey.ancestor(key, 2)).isEqualTo(QuadKey.fromString("03"));
+        assertThat(QuadKey.child(key, 3)).isEqualTo(QuadKey.fromString("03131023"));
+        assertThat(QuadKey.digit(key, 2)).isEqualTo(3);
+        assertThat(QuadKey.contains(QuadKey.fromString("031"), key)).isTrue();
+        assertThat(QuadKey.contains(QuadKey.fromString("032"), key)).isFalse();
+    }
+
+    @Test
+    public void descendantsAreContiguous() {
+        long tile = QuadKey.fromString("0313");
+        long inside = LocationUtils.getQuadKey(QuadTile.getTileFromQuadKey(tile).getCenter(), Z19);
+        assertThat(inside).isGreaterThanOrEqualTo(QuadKey.min(tile));
+        assertThat(inside).isLessThanOrEqualTo(QuadKey.max(tile));
+        assertThat(QuadKey.max(tile) + 32).isEqualTo(QuadKey.min(QuadKey.fromString("0320")));
+        assertThat(QuadKey.ancestor(inside, 4)).isEqualTo(tile);
+        assertThat(inside >> QuadKey.shift(4)).isEqualTo(QuadKey.morton(tile));
+    }
+
+    @Test
+    public void encodesLocations() {
+        long key = LocationUtils.getQuadKey(new LatLng(51.504789, -0.156555), Z19);
+        assertThat(QuadKey.zoom(key)).isEqualTo(19);
+        assertThat(QuadKey.toString(key)).hasSize(19).startsWith("03131");
+    }
+}
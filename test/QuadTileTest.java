@@ -0,0 +1,61 @@
+import clustering.LatLng;
+import clustering.QuadKey;
+import clustering.QuadTile;
+import clustering.ZoomLevel;
+import org.junit.*;
+
+import java.util.List;
+
+import static org.fest.assertions.Assertions.*;
+
+
+public class QuadTileTest {
+
+    private static final LatLng SW = new LatLng(51.49217889772613, -0.3860662609863539);
+    private static final LatLng NE = new LatLng(51.58144308238268, 0.07295626098630237);
+
+    @Test
+    public void coversExactlyTheTilesInBounds() {
+        ZoomLevel zoom = ZoomLevel.Z13;
+        int minX = QuadTile.getMinTileXY(SW, NE, zoom).x, maxX = QuadTile.getMaxTileXY(SW, NE, zoom).x;
+        int minY = QuadTile.getMinTileXY(SW, NE, zoom).y, maxY = QuadTile.getMaxTileXY(SW, NE, zoom).y;
+        int expected = (maxX - minX + 1) * (maxY - minY + 1);
+
+        List<Long> keys = QuadTile.getCoveringQuadKeys(SW, NE, zoom);
+        assertThat(keys.size()).isLessThan(expected);
+
+        int covered = 0;
+        for (long key : keys) {
+            covered += 1 << (2 * (zoom.zoom - QuadKey.zoom(key)));
+        }
+        assertThat(covered).isEqualTo(expected);
+    }
+
+    @Test
+    public void mergesRangesToTheLimit() {
+        ZoomLevel zoom = ZoomLevel.Z15;
+        long[] ranges = QuadTile.getCoveringRanges(SW, NE, zoom, 4);
+        assertThat(ranges.length).isLessThanOrEqualTo(8);
+
+        long inside = QuadTile.getTileFromLatLng(new LatLng(51.5, -0.1), zoom).quadKey;
+        boolean found = false;
+        for (int i = 0; i < ranges.length; i += 2) {
+            assertThat(ranges[i]).isLessThanOrEqualTo(ranges[i + 1]);
+            found |= inside >= ranges[i] && inside <= ranges[i + 1];
+        }
+        assertThat(found).isTrue();
+    }
+
+    @Test
+    public void internsTilesAndComputesCornersOnDemand() {
+        QuadTile tile = QuadTile.get(4093, 2724, ZoomLevel.Z13);
+        assertThat(QuadTile.getTileFromQuadKey(tile.quadKey)).isSameAs(tile);
+
+        assertThat(tile.getTopLeft().longitude).isEqualTo(tile.getBottomLeft().longitude);
+        assertThat(tile.getTopLeft().latitude).isEqualTo(tile.getTopRight().latitude);
+        assertThat(tile.getTopLeft().latitude).isGreaterThan(tile.getCenter().latitude);
+        assertThat(tile.getCenter().latitude).isGreaterThan(tile.getBottomRight().latitude);
+        assertThat(QuadTile.getTileFromLatLng(tile.getCenter(), ZoomLevel.Z13)).isSameAs(tile);
+        assertThat(tile.getRadius()).isGreaterThan(0);
+    }
+}
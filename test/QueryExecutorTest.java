@@ -0,0 +1,59 @@
+import clustering.QueryExecutor;
+import org.junit.*;
+import play.libs.F;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.*;
+import static org.junit.Assert.fail;
+
+
+public class QueryExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private final F.Function0<String> blocked = new F.Function0<String>() {
+        @Override
+        public String apply() throws InterruptedException {
+            started.countDown();
+            release.await();
+            return "done";
+        }
+    };
+
+    @Test
+    public void shedsQueriesWhenTheQueueIsFull() throws Exception {
+        QueryExecutor executor = new QueryExecutor(1, 1, 10000);
+        try {
+            executor.submit(blocked, "timeout");
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+            executor.submit(blocked, "timeout");
+            try {
+                executor.submit(blocked, "timeout");
+                fail("The third query should have been rejected");
+            } catch (RejectedExecutionException e) {
+                assertThat(executor.getRejected()).isEqualTo(1);
+                assertThat(executor.getQueued()).isEqualTo(1);
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void answersSlowQueriesWithTheTimeoutValue() throws Exception {
+        QueryExecutor executor = new QueryExecutor(1, 1, 50);
+        try {
+            F.Promise<String> result = executor.submit(blocked, "timeout");
+            assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("timeout");
+            assertThat(executor.getTimedOut()).isEqualTo(1);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import clustering.LatLng;
+import clustering.RandomLocationsGenerator;
+import clustering.RandomLocationsGenerator.Distribution;
+import org.junit.*;
+
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.*;
+
+
+public class RandomLocationsGeneratorTest {
+
+    private static final LatLng SW = new LatLng(49.9, -8.2);
+    private static final LatLng NE = new LatLng(58.7, 1.8);
+
+    @Test
+    public void streamsAreReproducible() {
+        for (Distribution distribution : Distribution.values()) {
+            double[][] first = generate(distribution, 42, 3);
+            double[][] second = generate(distribution, 42, 3);
+            assertThat(second[0]).isEqualTo(first[0]);
+            assertThat(second[1]).isEqualTo(first[1]);
+
+            assertThat(generate(distribution, 42, 4)[0]).isNotEqualTo(first[0]);
+            assertThat(generate(distribution, 43, 3)[0]).isNotEqualTo(first[0]);
+        }
+    }
+
+    @Test
+    public void locationsStayWithinBounds() {
+        for (Distribution distribution : Distribution.values()) {
+            double[][] locations = generate(distribution, 7, 0);
+            for (int i = 0; i < locations[0].length; i++) {
+                assertThat(locations[0][i]).isGreaterThanOrEqualTo(SW.latitude).isLessThanOrEqualTo(NE.latitude);
+                assertThat(locations[1][i]).isGreaterThanOrEqualTo(SW.longitude).isLessThanOrEqualTo(NE.longitude);
+            }
+        }
+    }
+
+    @Test
+    public void citiesAreDenserThanUniform() {
+        // How many locations fall in the busiest of 100x100 cells
+        assertThat(busiestCell(generate(Distribution.CITIES, 42, 0)))
+                .isGreaterThan(10 * busiestCell(generate(Distribution.UNIFORM, 42, 0)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsInvertedBounds() {
+        new RandomLocationsGenerator.Builder()
+                .bounds(NE, SW)
+                .distribution(Distribution.CITIES)
+                .build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsBoundsCrossingTheAntimeridian() {
+        new RandomLocationsGenerator.Builder()
+                .bounds(new LatLng(-20, 170), new LatLng(-10, -170))
+                .distribution(Distribution.HOTSPOTS)
+                .build();
+    }
+
+    private static double[][] generate(Distribution distribution, long seed, int stream) {
+        RandomLocationsGenerator generator = new RandomLocationsGenerator.Builder()
+                .bounds(SW, NE)
+                .distribution(distribution)
+                .seed(seed)
+                .build();
+        Random random = generator.random(stream);
+        double[][] locations = new double[2][10000];
+        generator.generate(random, locations[0], locations[1], 0, 10000);
+        return locations;
+    }
+
+    private static int busiestCell(double[][] locations) {
+        int[] cells = new int[100 * 100];
+        int busiest = 0;
+        for (int i = 0; i < locations[0].length; i++) {
+            int row = Math.min(99, (int) ((locations[0][i] - SW.latitude) / (NE.latitude - SW.latitude) * 100));
+            int column = Math.min(99, (int) ((locations[1][i] - SW.longitude) / (NE.longitude - SW.longitude) * 100));
+            busiest = Math.max(busiest, ++cells[row * 100 + column]);
+        }
+        return busiest;
+    }
+}
@@ -0,0 +1,58 @@
+import clustering.SingleFlight;
+import org.junit.*;
+import play.libs.F;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.*;
+
+
+public class SingleFlightTest {
+
+    private final SingleFlight<String, String> flights = new SingleFlight<String, String>();
+    private final AtomicInteger computations = new AtomicInteger();
+
+    @Test
+    public void identicalRequestsShareTheComputationInFlight() throws Exception {
+        scala.concurrent.Promise<String> pending = scala.concurrent.Promise$.MODULE$.apply();
+        F.Promise<String> first = flights.run("key", compute(F.Promise.wrap(pending.future())));
+        F.Promise<String> second = flights.run("key", compute(F.Promise.pure("other")));
+        F.Promise<String> other = flights.run("other", compute(F.Promise.pure("other")));
+
+        assertThat(computations.get()).isEqualTo(2);
+        assertThat(flights.getJoined()).isEqualTo(1);
+        assertThat(other.get(5, TimeUnit.SECONDS)).isEqualTo("other");
+
+        pending.success("value");
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("value");
+        assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo("value");
+    }
+
+    @Test
+    public void forgetsTheComputationOnceDone() throws Exception {
+        assertThat(flights.run("key", compute(F.Promise.pure("first"))).get(5, TimeUnit.SECONDS)).isEqualTo("first");
+        assertThat(flights.getInFlight()).isEqualTo(0);
+        assertThat(flights.run("key", compute(F.Promise.pure("second"))).get(5, TimeUnit.SECONDS)).isEqualTo("second");
+
+        assertThat(flights.run("failed", compute(F.Promise.<String>throwing(new IllegalStateException())))
+                .recover(new F.Function<Throwable, String>() {
+                    @Override
+                    public String apply(Throwable t) {
+                        return t.getClass().getSimpleName();
+                    }
+                }).get(5, TimeUnit.SECONDS)).isEqualTo("IllegalStateException");
+        assertThat(flights.getInFlight()).isEqualTo(0);
+        assertThat(computations.get()).isEqualTo(3);
+    }
+
+    private F.Function0<F.Promise<String>> compute(final F.Promise<String> result) {
+        return new F.Function0<F.Promise<String>>() {
+            @Override
+            public F.Promise<String> apply() {
+                computations.incrementAndGet();
+                return result;
+            }
+        };
+    }
+}
@@ -0,0 +1,69 @@
+import clustering.Cluster;
+import clustering.LocationUtils;
+import clustering.QuadKey;
+import clustering.TileCache;
+import clustering.ZoomLevel;
+import org.junit.*;
+
+import java.util.List;
+
+import static org.fest.assertions.Assertions.*;
+
+
+public class TileCacheTest {
+
+    private static final long LONDON = LocationUtils.getQuadKey(51.5, -0.12, ZoomLevel.Z19);
+    private static final long SYDNEY = LocationUtils.getQuadKey(-33.87, 151.21, ZoomLevel.Z19);
+
+    private final TileCache cache = new TileCache(1024 * 1024);
+    private int loads;
+
+    @Test
+    public void reloadsTheInvalidatedTilesOnly() throws Exception {
+        TileCache.Loader loader = loader(null);
+        cache.get(block(LONDON), ZoomLevel.Z12, loader);
+        cache.get(block(SYDNEY), ZoomLevel.Z12, loader);
+        assertThat(loads).isEqualTo(2);
+
+        cache.invalidate(LONDON);
+        assertThat(cache.contains(block(LONDON), ZoomLevel.Z12)).isFalse();
+        assertThat(cache.contains(block(SYDNEY), ZoomLevel.Z12)).isTrue();
+
+        cache.get(block(LONDON), ZoomLevel.Z12, loader);
+        cache.get(block(SYDNEY), ZoomLevel.Z12, loader);
+        assertThat(loads).isEqualTo(3);
+    }
+
+    @Test
+    public void keepsTheLoadsRacingWithTheWritesOfOtherTiles() throws Exception {
+        // A write elsewhere does not discard the load
+        cache.get(block(LONDON), ZoomLevel.Z12, loader(SYDNEY));
+        assertThat(cache.contains(block(LONDON), ZoomLevel.Z12)).isTrue();
+
+        // A write inside the tile does
+        cache.get(block(SYDNEY), ZoomLevel.Z12, loader(SYDNEY));
+        assertThat(cache.contains(block(SYDNEY), ZoomLevel.Z12)).isFalse();
+    }
+
+    private static long block(long quadKey) {
+        return QuadKey.ancestor(quadKey, TileCache.getBlockZoom(ZoomLevel.Z12).zoom);
+    }
+
+    /**
+     * @param written a location written while the clusters load, or null
+     */
+    private TileCache.Loader loader(final Long written) {
+        return new TileCache.Loader() {
+            @Override
+            public List<Cluster> load(long quadKey, ZoomLevel zoom) {
+                loads++;
+                if (written != null) {
+                    cache.invalidate(written);
+                }
+                Cluster.Collector clusters = new Cluster.Collector();
+                clusters.visit(quadKey, 1, 0, 0, null);
+                return clusters.clusters;
+            }
+        };
+    }
+}
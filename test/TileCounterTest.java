@@ -0,0 +1,150 @@
+import clustering.LatLng;
+import clustering.LocationUtils;
+import clustering.QuadKey;
+import clustering.TileCounter;
+import clustering.ZoomLevel;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.fest.assertions.Assertions.*;
+import static org.fest.assertions.Delta.delta;
+
+
+public class TileCounterTest {
+
+    private static final LatLng SW = new LatLng(51.28, -0.51);
+    private static final LatLng NE = new LatLng(51.69, 0.33);
+
+    private final TileCounter counter = new TileCounter(16);
+
+    @Test
+    public void countsTheLocationsOnEveryZoomLevel() {
+        LatLng london = new LatLng(51.5, -0.12);
+        LatLng paris = new LatLng(48.86, 2.35);
+        counter.add(1, london);
+        counter.add(2, paris);
+
+        assertThat(counter.size()).isEqualTo(2);
+        assertThat(counter.getCount(LocationUtils.getQuadKey(51.5, -0.12, ZoomLevel.Z19))).isEqualTo(1);
+
+        final List<Long> ids = new ArrayList<Long>();
+        counter.visitTiles(new LatLng(48, -1), new LatLng(52, 3), ZoomLevel.Z12, new TileCounter.Visitor() {
+            @Override
+            public void visit(long quadKey, int count, double latitude, double longitude, long id) {
+                ids.add(id);
+            }
+        });
+        assertThat(ids).containsOnly(1L, 2L);
+    }
+
+    @Test
+    public void movesKeepTheSharedTilesCounted() {
+        LatLng from = new LatLng(51.5, -0.12);
+        LatLng to = new LatLng(51.51, -0.13);
+        counter.add(7, from);
+        counter.move(7, from, to);
+
+        assertThat(counter.size()).isEqualTo(1);
+        assertThat(counter.getCount(LocationUtils.getQuadKey(51.5, -0.12, ZoomLevel.Z19))).isEqualTo(0);
+        assertThat(counter.getCount(LocationUtils.getQuadKey(51.51, -0.13, ZoomLevel.Z19))).isEqualTo(1);
+
+        final double[] centroid = new double[2];
+        counter.visitTiles(QuadKey.of(0, 0, 0), ZoomLevel.Z0, new TileCounter.Visitor() {
+            @Override
+            public void visit(long quadKey, int count, double latitude, double longitude, long id) {
+                centroid[0] = latitude;
+                centroid[1] = longitude;
+                assertThat(id).isEqualTo(7);
+            }
+        });
+        assertThat(centroid[0]).isEqualTo(51.51, delta(1e-7));
+        assertThat(centroid[1]).isEqualTo(-0.13, delta(1e-7));
+
+        counter.remove(7, to);
+        assertThat(counter.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void reclaimsTheSlotsOfTheEmptyTiles() {
+        Random random = new Random(3);
+        LatLng position = new LatLng(51.5, -0.12);
+        counter.add(1, position);
+        for (int n = 0; n < 100000; n++) {
+            LatLng to = new LatLng(SW.latitude + random.nextDouble() * (NE.latitude - SW.latitude),
+                    SW.longitude + random.nextDouble() * (NE.longitude - SW.longitude));
+            counter.move(1, position, to);
+            position = to;
+        }
+
+        // A single location has at most 20 non empty tiles, the rest of the slots were reclaimed
+        assertThat(counter.getTiles()).isLessThan(64);
+        assertThat(counter.size()).isEqualTo(1);
+        assertThat(counter.getCount(LocationUtils.getQuadKey(position.latitude, position.longitude, ZoomLevel.Z19)))
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void concurrentMovesAddUp() throws Exception {
+        final int threads = 4;
+        final int locations = 500;
+        final LatLng[][] positions = new LatLng[threads][locations];
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < locations; i++) {
+                positions[t][i] = new LatLng(51.5, -0.12);
+                counter.add(t * locations + i, positions[t][i]);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> moves = new ArrayList<Future<Void>>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                moves.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Random random = new Random(thread);
+                        for (int n = 0; n < 20000; n++) {
+                            int i = random.nextInt(locations);
+                            LatLng to = new LatLng(SW.latitude + random.nextDouble() * (NE.latitude - SW.latitude),
+                                    SW.longitude + random.nextDouble() * (NE.longitude - SW.longitude));
+                            counter.move(thread * locations + i, positions[thread][i], to);
+                            positions[thread][i] = to;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> move : moves) {
+                move.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        assertThat(counter.size()).isEqualTo(threads * locations);
+        int counted = 0;
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < locations; i++) {
+                long quadKey = LocationUtils.getQuadKey(positions[t][i].latitude, positions[t][i].longitude, ZoomLevel.Z19);
+                assertThat(counter.getCount(quadKey)).isGreaterThan(0);
+                counted++;
+            }
+        }
+        final int[] total = new int[1];
+        counter.visitTiles(SW, NE, ZoomLevel.Z19, new TileCounter.Visitor() {
+            @Override
+            public void visit(long quadKey, int count, double latitude, double longitude, long id) {
+                total[0] += count;
+            }
+        });
+        assertThat(total[0]).isEqualTo(counted);
+    }
+}
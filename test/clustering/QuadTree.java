@@ -0,0 +1,249 @@
+package clustering;
+
+import models.Location;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A resident, pre-aggregated quad tree of all the locations, keyed by their quad key at {@link ZoomLevel#Z19}.
+ * <p>
+ * <br/>
+ * Every node of the tree is a {@link QuadTile} at the zoom level equal to its depth and remembers how many
+ * locations fall inside it, so the clusters for any zoom level between {@link ZoomLevel#Z0} and
+ * {@link ZoomLevel#Z19} are already counted. Answering a query only walks the nodes whose tiles intersect
+ * the requested bounds, which means the cost grows with the number of visible tiles and not with
+ * the number of locations.
+ * <p>
+ * <br/>
+ * Every node also keeps the sum of the latitudes and longitudes of its locations, so the centroid of a cluster
+ * is known without looking at its locations.
+ * <p>
+ * <br/>
+ * The children of a node are indexed by the quad key digit of the child tile: 0 = top left, 1 = top right,
+ * 2 = bottom left, 3 = bottom right. The locations themselves are only kept by the {@link ZoomLevel#Z19} leaves.
+ * <p>
+ * <br/>
+ * The tree was replaced by {@link PointIndex} and is only kept as the reference the tests and the benchmarks
+ * compare it with.
+ */
+public class QuadTree {
+
+    private static final class Node {
+        /**
+         * How many locations fall inside this tile.
+         */
+        int count;
+        /**
+         * The sum of the latitudes of the locations inside this tile.
+         */
+        double sumLatitude;
+        /**
+         * The sum of the longitudes of the locations inside this tile.
+         */
+        double sumLongitude;
+        /**
+         * The four children of this tile at the next zoom level.
+         */
+        Node[] children;
+        /**
+         * The locations inside a {@link ZoomLevel#Z19} tile.
+         */
+        List<Location> locations;
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * Adds a location to the tree, increasing the count of every tile on the path of its quad key.
+     *
+     * @param quadKey  the {@link QuadKey} of the location at {@link ZoomLevel#Z19}
+     * @param location the location
+     */
+    public synchronized void add(long quadKey, Location location) {
+        checkQuadKey(quadKey);
+        Node node = root;
+        increment(node, location, 1);
+        for (int zoom = 1; zoom <= ZoomLevel.MAX_ZOOM; zoom++) {
+            int digit = QuadKey.digit(quadKey, zoom);
+            if (node.children == null) {
+                node.children = new Node[4];
+            }
+            Node child = node.children[digit];
+            if (child == null) {
+                child = new Node();
+                node.children[digit] = child;
+            }
+            node = child;
+            increment(node, location, 1);
+        }
+        if (node.locations == null) {
+            node.locations = new ArrayList<Location>(1);
+        }
+        node.locations.add(location);
+    }
+
+    /**
+     * Removes a location from the tree, decreasing the count of every tile on the path of its quad key
+     * and dropping the tiles left empty.
+     *
+     * @param quadKey the {@link QuadKey} of the location at {@link ZoomLevel#Z19}
+     * @param id      the id of the location
+     * @return true if the location was found
+     */
+    public synchronized boolean remove(long quadKey, long id) {
+        checkQuadKey(quadKey);
+        Node[] path = new Node[ZoomLevel.MAX_ZOOM + 1];
+        Node node = root;
+        path[0] = node;
+        for (int zoom = 1; zoom <= ZoomLevel.MAX_ZOOM; zoom++) {
+            node = node.children == null ? null : node.children[QuadKey.digit(quadKey, zoom)];
+            if (node == null) {
+                return false;
+            }
+            path[zoom] = node;
+        }
+
+        Location removed = null;
+        for (Iterator<Location> it = node.locations.iterator(); it.hasNext(); ) {
+            Location location = it.next();
+            if (location.id == id) {
+                it.remove();
+                removed = location;
+                break;
+            }
+        }
+        if (removed == null) {
+            return false;
+        }
+
+        for (int zoom = ZoomLevel.MAX_ZOOM; zoom >= 0; zoom--) {
+            increment(path[zoom], removed, -1);
+            if (path[zoom].count == 0 && zoom > 0) {
+                path[zoom - 1].children[QuadKey.digit(quadKey, zoom)] = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return how many locations have been added to the tree.
+     */
+    public synchronized int size() {
+        return root.count;
+    }
+
+    /**
+     * Returns all the clusters at the given zoom level whose tiles intersect the given bounds.
+     *
+     * @param sw   south west bound {@link LatLng}
+     * @param ne   north east bound {@link LatLng}
+     * @param zoom the zoom level of the clusters
+     * @return
+     */
+    public List<Cluster> getClusters(LatLng sw, LatLng ne, ZoomLevel zoom) {
+        Cluster.Collector collector = new Cluster.Collector();
+        visitClusters(sw, ne, zoom, collector);
+        return collector.clusters;
+    }
+
+    /**
+     * Returns all the clusters at the given zoom level inside a tile of a lower (or the same) zoom level.
+     *
+     * @param quadKey the {@link QuadKey} of the tile
+     * @param zoom    the zoom level of the clusters
+     * @return
+     */
+    public List<Cluster> getClusters(long quadKey, ZoomLevel zoom) {
+        Cluster.Collector collector = new Cluster.Collector();
+        visitClusters(quadKey, zoom, collector);
+        return collector.clusters;
+    }
+
+    /**
+     * Visits all the clusters at the given zoom level whose tiles intersect the given bounds, in quad key order.
+     * The tree is locked while visiting, so the visitor should not block.
+     *
+     * @param sw      south west bound {@link LatLng}
+     * @param ne      north east bound {@link LatLng}
+     * @param zoom    the zoom level of the clusters
+     * @param visitor receives the clusters
+     */
+    public void visitClusters(LatLng sw, LatLng ne, ZoomLevel zoom, ClusterVisitor visitor) {
+        visitClusters(QuadTile.getMinTileXY(sw, ne, zoom), QuadTile.getMaxTileXY(sw, ne, zoom), zoom, visitor);
+    }
+
+    /**
+     * Visits all the clusters at the given zoom level inside a tile of a lower (or the same) zoom level.
+     *
+     * @param quadKey the {@link QuadKey} of the tile
+     * @param zoom    the zoom level of the clusters
+     * @param visitor receives the clusters
+     */
+    public void visitClusters(long quadKey, ZoomLevel zoom, ClusterVisitor visitor) {
+        visitClusters(QuadTile.getMinTileXY(quadKey, zoom), QuadTile.getMaxTileXY(quadKey, zoom), zoom, visitor);
+    }
+
+    private synchronized void visitClusters(Point min, Point max, ZoomLevel zoom, ClusterVisitor visitor) {
+        visit(root, 0, 0, 0, zoom.zoom, min, max, visitor);
+    }
+
+    private void visit(Node node, int x, int y, int depth, int zoom, Point min, Point max,
+                       ClusterVisitor visitor) {
+        // The range of tiles at the requested zoom covered by this node
+        int shift = zoom - depth;
+        int fromX = x << shift;
+        int toX = ((x + 1) << shift) - 1;
+        int fromY = y << shift;
+        int toY = ((y + 1) << shift) - 1;
+        if (node.count == 0 || toX < min.x || fromX > max.x || toY < min.y || fromY > max.y) {
+            return;
+        }
+
+        if (depth == zoom) {
+            visitor.visit(QuadKey.of(x, y, zoom), node.count,
+                    node.sumLatitude / node.count, node.sumLongitude / node.count,
+                    node.count == 1 ? single(node) : null);
+            return;
+        }
+
+        if (node.children != null) {
+            for (int digit = 0; digit < 4; digit++) {
+                Node child = node.children[digit];
+                if (child != null) {
+                    visit(child, (x << 1) | (digit & 1), (y << 1) | (digit >> 1), depth + 1, zoom, min, max, visitor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Follows the only non empty path below a node with a single location down to its leaf.
+     */
+    private static Location single(Node node) {
+        while (node.children != null) {
+            Node next = null;
+            for (Node child : node.children) {
+                if (child != null && child.count > 0) {
+                    next = child;
+                    break;
+                }
+            }
+            node = next;
+        }
+        return node.locations.get(0);
+    }
+
+    private static void increment(Node node, Location location, int delta) {
+        node.count += delta;
+        node.sumLatitude += delta * location.latitude;
+        node.sumLongitude += delta * location.longitude;
+    }
+
+    private static void checkQuadKey(long quadKey) {
+        if (QuadKey.zoom(quadKey) != ZoomLevel.MAX_ZOOM) {
+            throw new IllegalArgumentException("Expected a quad key at zoom level " + ZoomLevel.MAX_ZOOM + ": " + quadKey);
+        }
+    }
+}